@@ -3,12 +3,68 @@
  */
 package simplevm.app;
 
+import java.io.IOException;
+import java.nio.file.Path;
+
+import simplevm.vm.Profiler;
+import simplevm.vm.Program;
+import simplevm.vm.ProgramFile;
 import simplevm.vm.VirtualMachine;
 
+import static simplevm.vm.Bytecode.*;
+
 public class App {
-    public static void main(String[] args) {
+    // Something to run when not given a program file: counts locals[0]
+    // down from 1000, summing into globals[0]
+    static final int[] DEMO = {
+        /* 0*/ CONST, 1000,
+        /* 2*/ STORE, 0,
+        /* 4*/ GLOAD, 0,
+        /* 6*/ LOAD, 0,
+        /* 8*/ ADD,
+        /* 9*/ GSTORE, 0,
+        /*11*/ LOAD, 0,
+        /*13*/ CONST, 1,
+        /*15*/ SUB,
+        /*16*/ STORE, 0,
+        /*18*/ LOAD, 0,
+        /*20*/ JNZ, 4,
+        /*22*/ GLOAD, 0,
+        /*24*/ PRINT,
+        /*25*/ HALT
+    };
+
+    public static void main(String[] args) throws IOException {
         System.out.println("SimpleVM Interpreter v0.0");
 
+        boolean profile = false;
+        String path = null;
+        for (String arg : args) {
+            if (arg.equals("--profile"))
+                profile = true;
+            else if (arg.startsWith("--") || path != null)
+                System.err.println("Unrecognized argument: " + arg);
+            else
+                path = arg;
+        }
+
         VirtualMachine vm = new VirtualMachine();
+        Profiler profiler = null;
+        if (profile) {
+            profiler = new Profiler();
+            vm.setListener(profiler);
+        }
+        Program program;
+        if (path != null) {
+            ProgramFile file = ProgramFile.open(Path.of(path));
+            file.initialize(vm);
+            program = file.program();
+        }
+        else {
+            program = Program.load(DEMO);
+        }
+        vm.execute(program);
+        if (profiler != null)
+            System.out.print(profiler.report());
     }
 }
@@ -0,0 +1,23 @@
+/*
+ * JMH benchmarks for the vm project. "gradle run" runs every benchmark
+ * with the GC profiler attached; pass JMH options through --args to
+ * narrow it down, e.g. gradle run --args="fib -prof gc".
+ */
+
+plugins {
+    id("simplevm.java-application-conventions")
+}
+
+dependencies {
+    implementation(project(":vm"))
+    implementation("org.openjdk.jmh:jmh-core:1.35")
+    annotationProcessor("org.openjdk.jmh:jmh-generator-annprocess:1.35")
+}
+
+application {
+    mainClass.set("org.openjdk.jmh.Main")
+}
+
+tasks.named<JavaExec>("run") {
+    args = listOf("-prof", "gc")
+}
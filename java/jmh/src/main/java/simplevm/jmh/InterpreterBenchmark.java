@@ -0,0 +1,74 @@
+package simplevm.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import simplevm.vm.Program;
+import simplevm.vm.VirtualMachine;
+
+/*
+ * Throughput of VirtualMachine.execute() over the programs in Programs.
+ * The programs are loaded (verified and decoded) once up front; each
+ * invocation then runs the whole program on a fresh VM, the way a host
+ * would run a script, and returns its result so JMH can keep it alive.
+ * Run with "-prof gc" (the default for "gradle run" in this project) to
+ * get allocation rates alongside ops/sec.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class InterpreterBenchmark {
+    @Param({"SWITCH", "THREADED", "TIERED", "REGISTER"})
+    public VirtualMachine.Engine engine;
+
+    @Param({"false", "true"})
+    public boolean fused;
+
+    @Param({"10000"})
+    public int iterations;
+
+    @Param({"20"})
+    public int fibN;
+
+    Program arithmetic;
+    Program branches;
+    Program fib;
+    Program globals;
+
+    @Setup
+    public void setup() {
+        arithmetic = load(Programs.arithmetic(iterations));
+        branches = load(Programs.branches(iterations));
+        fib = load(Programs.fib(fibN));
+        globals = load(Programs.globals(iterations));
+    }
+    Program load(int[] code) {
+        Program program = Program.load(code);
+        return fused ? program.fuse() : program;
+    }
+
+    int run(Program program) {
+        VirtualMachine vm = new VirtualMachine(engine);
+        vm.execute(program);
+        return vm.pop();
+    }
+
+    @Benchmark public int arithmetic() { return run(arithmetic); }
+    @Benchmark public int branches() { return run(branches); }
+    @Benchmark public int fib() { return run(fib); }
+    @Benchmark public int globals() { return run(globals); }
+}
@@ -0,0 +1,74 @@
+package simplevm.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import simplevm.vm.PackedCode;
+import simplevm.vm.Program;
+import simplevm.vm.VirtualMachine;
+
+/*
+ * The SWITCH interpreter running the programs in Programs packed (see
+ * PackedCode) and unpacked, side by side; the same as
+ * InterpreterBenchmark otherwise.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PackedBenchmark {
+    @Param({"false", "true"})
+    public boolean packed;
+
+    @Param({"10000"})
+    public int iterations;
+
+    @Param({"20"})
+    public int fibN;
+
+    Program[] programs;
+    PackedCode[] packedCode;
+
+    @Setup
+    public void setup() {
+        int[][] code = {
+            Programs.arithmetic(iterations),
+            Programs.branches(iterations),
+            Programs.fib(fibN),
+            Programs.globals(iterations),
+        };
+        programs = new Program[code.length];
+        packedCode = new PackedCode[code.length];
+        for (int k = 0; k < code.length; k++) {
+            programs[k] = Program.load(code[k]);
+            packedCode[k] = PackedCode.load(PackedCode.pack(code[k]));
+        }
+    }
+
+    int run(int k) {
+        VirtualMachine vm = new VirtualMachine(VirtualMachine.Engine.SWITCH);
+        if (packed)
+            vm.execute(packedCode[k]);
+        else
+            vm.execute(programs[k]);
+        return vm.pop();
+    }
+
+    @Benchmark public int arithmetic() { return run(0); }
+    @Benchmark public int branches() { return run(1); }
+    @Benchmark public int fib() { return run(2); }
+    @Benchmark public int globals() { return run(3); }
+}
@@ -0,0 +1,133 @@
+package simplevm.jmh;
+
+import static simplevm.vm.Bytecode.*;
+
+/*
+ * The bytecode programs the benchmarks run. Each one leaves a single
+ * result on top of the stack when it halts, so the benchmark can pop it
+ * and return it, which keeps JMH from optimizing the run away.
+ */
+public class Programs {
+    private Programs() { }
+
+    // Arithmetic-heavy: a multiply/add/mod/sub hash over locals,
+    // iterated n times
+    public static int[] arithmetic(int n) {
+        return new int[] {
+            /* 0*/ CONST, n,
+            /* 2*/ STORE, 0,    // locals[0] = n (counter)
+            /* 4*/ CONST, 0,
+            /* 6*/ STORE, 1,    // locals[1] = 0 (accumulator)
+            // loop:
+            /* 8*/ LOAD, 1,
+            /*10*/ LOAD, 0,
+            /*12*/ MUL,
+            /*13*/ CONST, 31,
+            /*15*/ ADD,
+            /*16*/ CONST, 65521,
+            /*18*/ MOD,
+            /*19*/ LOAD, 0,
+            /*21*/ SUB,
+            /*22*/ STORE, 1,    // acc = ((acc * count) + 31) % 65521 - count
+            /*24*/ LOAD, 0,
+            /*26*/ CONST, 1,
+            /*28*/ SUB,
+            /*29*/ STORE, 0,    // count = count - 1
+            /*31*/ LOAD, 0,
+            /*33*/ JNZ, 8,      // loop while count != 0
+            /*35*/ LOAD, 1,
+            /*37*/ HALT
+        };
+    }
+
+    // Branch-heavy: count the multiples of 3 in n..1, taking a
+    // conditional and an unconditional branch on most iterations
+    public static int[] branches(int n) {
+        return new int[] {
+            /* 0*/ CONST, n,
+            /* 2*/ STORE, 0,    // locals[0] = n (counter)
+            /* 4*/ CONST, 0,
+            /* 6*/ STORE, 1,    // locals[1] = 0 (multiples seen)
+            // loop:
+            /* 8*/ LOAD, 0,
+            /*10*/ CONST, 3,
+            /*12*/ MOD,
+            /*13*/ JNZ, 25,     // not a multiple of 3: skip the count
+            /*15*/ LOAD, 1,
+            /*17*/ CONST, 1,
+            /*19*/ ADD,
+            /*20*/ STORE, 1,
+            /*22*/ JMP, 25,     // hop over the FATAL
+            /*24*/ FATAL,
+            /*25*/ LOAD, 0,
+            /*27*/ CONST, 1,
+            /*29*/ SUB,
+            /*30*/ STORE, 0,    // count = count - 1
+            /*32*/ LOAD, 0,
+            /*34*/ JZ, 38,      // done when count == 0
+            /*36*/ JMP, 8,
+            /*38*/ LOAD, 1,
+            /*40*/ HALT
+        };
+    }
+
+    // Call-heavy: naive recursive fib(n)
+    public static int[] fib(int n) {
+        return new int[] {
+            /* 0*/ CONST, n,
+            /* 2*/ CALL, 5,
+            /* 4*/ HALT,
+            // function fib(n)
+            //    expects n on top of stack; leaves fib(n) on top of stack
+            /* 5*/ STORE, 0,
+            /* 7*/ LOAD, 0,
+            /* 9*/ CONST, 2,
+            /*11*/ LT,
+            /*12*/ JZ, 17,      // n >= 2: recurse
+            /*14*/ LOAD, 0,     // n < 2: fib(n) = n
+            /*16*/ RET,
+            /*17*/ LOAD, 0,
+            /*19*/ CONST, 1,
+            /*21*/ SUB,
+            /*22*/ CALL, 5,     // fib(n - 1)
+            /*24*/ LOAD, 0,
+            /*26*/ CONST, 2,
+            /*28*/ SUB,
+            /*29*/ CALL, 5,     // fib(n - 2)
+            /*31*/ ADD,
+            /*32*/ RET
+        };
+    }
+
+    // Globals-heavy: fibonacci mod 1000007 computed iteratively,
+    // with all of its state kept in globals
+    public static int[] globals(int n) {
+        return new int[] {
+            /* 0*/ CONST, n,
+            /* 2*/ GSTORE, 0,   // globals[0] = n (counter)
+            /* 4*/ CONST, 0,
+            /* 6*/ GSTORE, 1,   // globals[1] = 0 (a)
+            /* 8*/ CONST, 1,
+            /*10*/ GSTORE, 2,   // globals[2] = 1 (b)
+            // loop:
+            /*12*/ GLOAD, 1,
+            /*14*/ GLOAD, 2,
+            /*16*/ ADD,
+            /*17*/ GSTORE, 3,   // t = a + b
+            /*19*/ GLOAD, 2,
+            /*21*/ GSTORE, 1,   // a = b
+            /*23*/ GLOAD, 3,
+            /*25*/ CONST, 1000007,
+            /*27*/ MOD,
+            /*28*/ GSTORE, 2,   // b = t % 1000007
+            /*30*/ GLOAD, 0,
+            /*32*/ CONST, 1,
+            /*34*/ SUB,
+            /*35*/ GSTORE, 0,   // count = count - 1
+            /*37*/ GLOAD, 0,
+            /*39*/ JNZ, 12,     // loop while count != 0
+            /*41*/ GLOAD, 2,
+            /*43*/ HALT
+        };
+    }
+}
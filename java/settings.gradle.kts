@@ -8,4 +8,4 @@
  */
 
 rootProject.name = "simplevm"
-include("app", "vm")
+include("app", "vm", "jmh")
@@ -0,0 +1,316 @@
+package simplevm.vm;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Turns SimpleVM assembly text into code. One instruction per line, with
+ * the mnemonics Bytecode.name() gives (in either case), operands after
+ * whitespace or a comma, and anything after a ';' or '#' a comment:
+ *
+ *             CONST 5
+ *             CALL countdown
+ *             HALT
+ *     countdown:
+ *             STORE, 0
+ *     loop:   LOAD 0
+ *             JZ done      ; forward references are fine
+ *             ...
+ *             JMP loop
+ *     done:   RET
+ *
+ * A label names the address of whatever follows it, and can stand in for
+ * any operand: JMP, JZ, JNZ, CALL and TAILCALL get that address, RJMP
+ * the distance to it, and anything else (CONST, for JMPI) the address
+ * itself. Numbers are decimal or 0x hex, optionally negative. ".word n"
+ * puts n into the code as is.
+ *
+ * Source is consumed a line at a time, in one pass: forward references
+ * are patched at the end, from a list of where they were. Nothing is
+ * allocated per line or per token, beyond one String per distinct label,
+ * so multi-megabyte sources assemble in time (and garbage) proportional
+ * to their size.
+ */
+public final class Assembler {
+    private static final Symbols MNEMONICS = new Symbols();
+    private static final int[] OPCODES = new int[64];
+    private static final int WORD = -1;
+    static {
+        for (int opcode = 0; opcode < 64; opcode++) {
+            if (Bytecode.name(opcode) != null)
+                OPCODES[MNEMONICS.intern(Bytecode.name(opcode))] = opcode;
+        }
+    }
+
+    private final Symbols labels = new Symbols();
+    private int[] addresses = new int[16];      // by label, or -1 if not yet seen
+    private int[] code = new int[256];
+    private int length;
+    private int[] fixups = new int[48];         // (where, label, line) for each reference,
+                                                // label complemented if RJMP's
+    private int fixupCount;
+    private char[] line = new char[128];
+    private int lineLength;
+    private int lineNumber;
+
+    private Assembler() { }
+
+    /**
+     * Assemble source; throws VirtualMachine.Exception, naming the line,
+     * for the first thing wrong with it.
+     */
+    public static int[] assemble(CharSequence source) {
+        Assembler assembler = new Assembler();
+        for (int i = 0, n = source.length(); i < n; i++)
+            assembler.accept(source.charAt(i));
+        return assembler.finish();
+    }
+    /** assemble(), reading the source from reader until it runs out. */
+    public static int[] assemble(Reader reader) throws IOException {
+        Assembler assembler = new Assembler();
+        char[] buffer = new char[8192];
+        for (int count; (count = reader.read(buffer)) >= 0; ) {
+            for (int i = 0; i < count; i++)
+                assembler.accept(buffer[i]);
+        }
+        return assembler.finish();
+    }
+
+    private void accept(char c) {
+        if (c == '\n') {
+            assembleLine();
+            return;
+        }
+        if (lineLength == line.length)
+            line = Arrays.copyOf(line, lineLength * 2);
+        line[lineLength++] = c;
+    }
+
+    private int[] finish() {
+        if (lineLength > 0)
+            assembleLine();
+        for (int i = 0; i < fixupCount; i += 3) {
+            int where = fixups[i];
+            boolean relative = fixups[i + 1] < 0;
+            int label = relative ? ~fixups[i + 1] : fixups[i + 1];
+            if (addresses[label] < 0)
+                throw error(fixups[i + 2], "undefined label " + labels.name(label));
+            code[where] = relative ? addresses[label] - (where - 1) : addresses[label];
+        }
+        return Arrays.copyOf(code, length);
+    }
+
+    private void assembleLine() {
+        lineNumber++;
+        int end = lineLength;
+        lineLength = 0;
+        for (int i = 0; i < end; i++) {
+            if (line[i] == ';' || line[i] == '#') {
+                end = i;
+                break;
+            }
+        }
+
+        int start = skipSpace(0, end);
+        int tokenEnd = token(start, end);
+        // Labels
+        while (tokenEnd > start && line[tokenEnd - 1] == ':') {
+            if (tokenEnd - 1 == start || !isLabelStart(line[start]))
+                throw error(lineNumber, "bad label " + new String(line, start, tokenEnd - start));
+            int label = label(start, tokenEnd - 1);
+            if (addresses[label] >= 0)
+                throw error(lineNumber, "label " + labels.name(label) + " defined twice");
+            addresses[label] = length;
+            start = skipSpace(tokenEnd, end);
+            tokenEnd = token(start, end);
+        }
+        if (start == end)
+            return;
+
+        // The instruction
+        int opcode = mnemonic(start, tokenEnd);
+        int operands = (opcode == WORD) ? 1 : Bytecode.operands(opcode);
+        if (opcode != WORD)
+            emit(opcode);
+        for (int i = 0; i < operands; i++) {
+            start = skipSpace(tokenEnd, end);
+            tokenEnd = token(start, end);
+            if (start == end)
+                throw error(lineNumber, "missing operand");
+            operand(start, tokenEnd, opcode == Bytecode.RJMP);
+        }
+        if (skipSpace(tokenEnd, end) != end)
+            throw error(lineNumber, "too many operands");
+    }
+
+    private int skipSpace(int i, int end) {
+        while (i < end && (Character.isWhitespace(line[i]) || line[i] == ','))
+            i++;
+        return i;
+    }
+    private int token(int i, int end) {
+        while (i < end && !Character.isWhitespace(line[i]) && line[i] != ',')
+            i++;
+        return i;
+    }
+
+    private int mnemonic(int start, int end) {
+        if (end - start == 5 && line[start] == '.' && matches(start + 1, "word"))
+            return WORD;
+        // Upper-case it where it lies; nothing else looks at it
+        for (int i = start; i < end; i++)
+            line[i] = Character.toUpperCase(line[i]);
+        int id = MNEMONICS.find(line, start, end);
+        if (id < 0)
+            throw error(lineNumber, "unknown mnemonic " + new String(line, start, end - start));
+        return OPCODES[id];
+    }
+    private boolean matches(int start, String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (line[start + i] != word.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private void operand(int start, int end, boolean relative) {
+        if (isLabelStart(line[start])) {
+            if (fixupCount + 3 > fixups.length)
+                fixups = Arrays.copyOf(fixups, fixups.length * 2);
+            int label = label(start, end);
+            fixups[fixupCount++] = length;
+            fixups[fixupCount++] = relative ? ~label : label;
+            fixups[fixupCount++] = lineNumber;
+            emit(0);
+        }
+        else {
+            emit(number(start, end));
+        }
+    }
+    private static boolean isLabelStart(char c) {
+        return Character.isLetter(c) || c == '_' || c == '.';
+    }
+
+    private int number(int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (line[i] == '-' || line[i] == '+')
+            negative = (line[i++] == '-');
+        int radix = 10;
+        if (end - i > 2 && line[i] == '0' && (line[i + 1] == 'x' || line[i + 1] == 'X')) {
+            radix = 16;
+            i += 2;
+        }
+        if (i == end)
+            throw badNumber(start, end);
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = Character.digit(line[i], radix);
+            if (digit < 0)
+                throw badNumber(start, end);
+            value = value * radix + digit;
+            // Hex may use all 32 bits; decimal has to fit in an int
+            if (value > (radix == 16 ? 0xFFFFFFFFL : 0x80000000L))
+                throw badNumber(start, end);
+        }
+        if (radix == 10 && !negative && value > Integer.MAX_VALUE)
+            throw badNumber(start, end);
+        return negative ? (int) -value : (int) value;
+    }
+    private VirtualMachine.Exception badNumber(int start, int end) {
+        return error(lineNumber, "bad operand " + new String(line, start, end - start));
+    }
+
+    private int label(int start, int end) {
+        int label = labels.find(line, start, end);
+        if (label < 0) {
+            label = labels.intern(new String(line, start, end - start));
+            if (label == addresses.length)
+                addresses = Arrays.copyOf(addresses, label * 2);
+            addresses[label] = -1;
+        }
+        return label;
+    }
+
+    private void emit(int word) {
+        if (length == code.length)
+            code = Arrays.copyOf(code, length * 2);
+        code[length++] = word;
+    }
+
+    private static VirtualMachine.Exception error(int line, String message) {
+        return new VirtualMachine.Exception("Line " + line + ": " + message);
+    }
+
+    /*
+     * Names, numbered in the order they were added, looked up straight
+     * from a char array so that finding one allocates nothing. Open
+     * addressing, kept at most half full.
+     */
+    static final class Symbols {
+        private String[] names = new String[16];
+        private int count;
+        private String[] slots = new String[32];
+        private int[] ids = new int[32];
+
+        int find(char[] chars, int start, int end) {
+            int mask = slots.length - 1;
+            for (int slot = hash(chars, start, end) & mask; slots[slot] != null; slot = (slot + 1) & mask) {
+                if (equal(slots[slot], chars, start, end))
+                    return ids[slot];
+            }
+            return -1;
+        }
+        int intern(String name) {
+            char[] chars = name.toCharArray();
+            int id = find(chars, 0, chars.length);
+            if (id >= 0)
+                return id;
+            if (count == names.length)
+                names = Arrays.copyOf(names, count * 2);
+            names[count] = name;
+            if ((count + 1) * 2 > slots.length)
+                rehash(slots.length * 2);
+            place(name, count);
+            return count++;
+        }
+        String name(int id) {
+            return names[id];
+        }
+
+        private void place(String name, int id) {
+            int mask = slots.length - 1;
+            int slot = hash(name) & mask;
+            while (slots[slot] != null)
+                slot = (slot + 1) & mask;
+            slots[slot] = name;
+            ids[slot] = id;
+        }
+        private void rehash(int size) {
+            slots = new String[size];
+            ids = new int[size];
+            for (int id = 0; id < count; id++)
+                place(names[id], id);
+        }
+        private static int hash(char[] chars, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++)
+                hash = hash * 31 + chars[i];
+            return hash ^ (hash >>> 16);
+        }
+        private static int hash(String name) {
+            int hash = name.hashCode();
+            return hash ^ (hash >>> 16);
+        }
+        private static boolean equal(String name, char[] chars, int start, int end) {
+            if (name.length() != end - start)
+                return false;
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) != chars[start + i])
+                    return false;
+            }
+            return true;
+        }
+    }
+}
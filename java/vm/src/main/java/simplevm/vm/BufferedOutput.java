@@ -0,0 +1,118 @@
+package simplevm.vm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Output that collects everything in a byte buffer, encoding PRINTed
+ * values to ASCII digits itself, and writes it to an OutputStream in one
+ * go when the buffer fills or the VM flushes it. So a program that
+ * prints a thousand values costs a handful of writes rather than a
+ * thousand synchronized, flushed println() calls.
+ *
+ * Not thread-safe: give each VM its own, even if they all write to the
+ * same stream (each flush is a single write, so their output interleaves
+ * in whole chunks).
+ */
+public final class BufferedOutput implements Output {
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    // The most a value and its line break can take: "-2147483648\r\n"
+    private static final int LONGEST = 11 + NEWLINE.length;
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int length;
+
+    public BufferedOutput(OutputStream out) {
+        this(out, 8192);
+    }
+    public BufferedOutput(OutputStream out, int size) {
+        if (size < LONGEST)
+            throw new VirtualMachine.Exception("Output buffer of " + size + " bytes is too small");
+        this.out = out;
+        this.buffer = new byte[size];
+    }
+
+    @Override public void print(int value) {
+        if (length + LONGEST > buffer.length)
+            drain();
+        // Digits from the right, working with the value negated so that
+        // MIN_VALUE needs no special case
+        int negated = value < 0 ? value : -value;
+        int digits = 1;
+        for (int rest = negated; rest <= -10; rest /= 10)
+            digits++;
+        if (value < 0)
+            buffer[length++] = '-';
+        int at = length + digits;
+        length = at;
+        do {
+            buffer[--at] = (byte) ('0' - negated % 10);
+            negated /= 10;
+        } while (negated != 0);
+        newline();
+    }
+
+    @Override public void line(String text) {
+        int count = text.length();
+        for (int i = 0; i < count; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                // Not ASCII: let the JDK encode it, the whole line at once
+                write(text.getBytes(StandardCharsets.UTF_8));
+                newline();
+                return;
+            }
+        }
+        if (count + NEWLINE.length > buffer.length - length)
+            drain();
+        if (count + NEWLINE.length > buffer.length) {
+            write(text.getBytes(StandardCharsets.US_ASCII));
+        }
+        else {
+            for (int i = 0; i < count; i++)
+                buffer[length++] = (byte) text.charAt(i);
+        }
+        newline();
+    }
+
+    @Override public void flush() {
+        drain();
+        try {
+            out.flush();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void newline() {
+        if (length + NEWLINE.length > buffer.length)
+            drain();
+        for (byte b : NEWLINE)
+            buffer[length++] = b;
+    }
+    // Write bytes out, after whatever's already buffered
+    private void write(byte[] bytes) {
+        drain();
+        try {
+            out.write(bytes);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    private void drain() {
+        if (length == 0)
+            return;
+        try {
+            out.write(buffer, 0, length);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        length = 0;
+    }
+}
@@ -11,6 +11,8 @@ public class Bytecode {
     public static final int PRINT = 3;
     public static final int HALT = 4;
     public static final int FATAL = 5;
+    public static final int YIELD = 6;  // hand control back to whoever called VirtualMachine.run()
+    public static final int CALLHOST = 7; // call a host function; see VirtualMachine.setHostFunction()
 
     // Stack manipulation
     public static final int CONST = 10;
@@ -40,14 +42,143 @@ public class Bytecode {
     public static final int RJMPI = 43;
     public static final int JNZ = 44;
     public static final int JZ = 45;
+    // CALL then RET, in the caller's frame (see Program.load())
+    public static final int TAILCALL = 46;
 
     // Globals
     public static final int GLOAD = 50;
     public static final int GSTORE = 51;
+    // Atomic, for globals shared between VMs (see Globals)
+    public static final int GCAS = 52;  // [expected, update] -> [1 if swapped, else 0]
+    public static final int GADD = 53;  // [delta] -> [value before adding]
+    public static final int CADD = 54;  // [delta] -> [], adding to a counter
+    public static final int CLOAD = 55; // [] -> [counter's value]
+
+    // Linear memory (see Memory)
+    public static final int ALOAD = 56;  // [address] -> [value]
+    public static final int ASTORE = 57; // [address, value] -> []
+    public static final int MSIZE = 58;  // [] -> [size in words]
+    public static final int MGROW = 59;  // [delta] -> [size before growing, or -1]
 
     // Functions
     public static final int CALL = 60;
     public static final int RET = 61;
     public static final int LOAD = 62;
     public static final int STORE = 63;
+
+    /**
+     * How many operand words follow the given opcode in the code
+     * array, or -1 if it isn't an opcode at all.
+     */
+    public static int operands(int opcode) {
+        switch (opcode) {
+            case NOP: case DUMP: case TRACE: case PRINT: case HALT: case FATAL: case YIELD:
+            case POP:
+            case ADD: case SUB: case MUL: case DIV: case MOD: case ABS: case NEG:
+            case EQ: case NEQ: case GT: case LT: case GTE: case LTE:
+            case JMPI: case RJMPI:
+            case ALOAD: case ASTORE: case MSIZE: case MGROW:
+            case RET:
+                return 0;
+            case CALLHOST:
+            case CONST:
+            case JMP: case RJMP: case JNZ: case JZ: case TAILCALL:
+            case GLOAD: case GSTORE:
+            case GCAS: case GADD: case CADD: case CLOAD:
+            case CALL: case LOAD: case STORE:
+                return 1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * How many values the given opcode pops off the stack. CALL,
+     * TAILCALL, RET and CALLHOST count as popping (and pushing) nothing,
+     * since what they take and leave depends on the function.
+     */
+    public static int pops(int opcode) {
+        switch (opcode) {
+            case PRINT: case POP:
+            case ABS: case NEG:
+            case JMPI: case RJMPI: case JZ: case JNZ:
+            case GSTORE: case STORE:
+            case GADD: case CADD:
+            case ALOAD: case MGROW:
+                return 1;
+            case ADD: case SUB: case MUL: case DIV: case MOD:
+            case EQ: case NEQ: case GT: case LT: case GTE: case LTE:
+            case GCAS: case ASTORE:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+    /** How many values the given opcode pushes; see pops(). */
+    public static int pushes(int opcode) {
+        switch (opcode) {
+            case CONST: case GLOAD: case LOAD:
+            case GCAS: case GADD: case CLOAD:
+            case ALOAD: case MSIZE: case MGROW:
+            case ABS: case NEG:
+            case ADD: case SUB: case MUL: case DIV: case MOD:
+            case EQ: case NEQ: case GT: case LT: case GTE: case LTE:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * The mnemonic for the given opcode, or null if it isn't an opcode.
+     */
+    public static String name(int opcode) {
+        switch (opcode) {
+            case NOP: return "NOP";
+            case DUMP: return "DUMP";
+            case TRACE: return "TRACE";
+            case PRINT: return "PRINT";
+            case HALT: return "HALT";
+            case FATAL: return "FATAL";
+            case YIELD: return "YIELD";
+            case CALLHOST: return "CALLHOST";
+            case CONST: return "CONST";
+            case POP: return "POP";
+            case ADD: return "ADD";
+            case SUB: return "SUB";
+            case MUL: return "MUL";
+            case DIV: return "DIV";
+            case MOD: return "MOD";
+            case ABS: return "ABS";
+            case NEG: return "NEG";
+            case EQ: return "EQ";
+            case NEQ: return "NEQ";
+            case GT: return "GT";
+            case LT: return "LT";
+            case GTE: return "GTE";
+            case LTE: return "LTE";
+            case JMP: return "JMP";
+            case RJMP: return "RJMP";
+            case JMPI: return "JMPI";
+            case RJMPI: return "RJMPI";
+            case JNZ: return "JNZ";
+            case JZ: return "JZ";
+            case TAILCALL: return "TAILCALL";
+            case GLOAD: return "GLOAD";
+            case GSTORE: return "GSTORE";
+            case GCAS: return "GCAS";
+            case GADD: return "GADD";
+            case CADD: return "CADD";
+            case CLOAD: return "CLOAD";
+            case ALOAD: return "ALOAD";
+            case ASTORE: return "ASTORE";
+            case MSIZE: return "MSIZE";
+            case MGROW: return "MGROW";
+            case CALL: return "CALL";
+            case RET: return "RET";
+            case LOAD: return "LOAD";
+            case STORE: return "STORE";
+            default: return null;
+        }
+    }
 }
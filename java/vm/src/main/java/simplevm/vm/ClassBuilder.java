@@ -0,0 +1,257 @@
+package simplevm.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Just enough of a JVM class file writer for the JIT: a constant pool,
+ * methods with a Code attribute, and forward/backward branches.
+ *
+ * Classes come out as version 49 (Java 5) so they need no StackMapTable;
+ * the JVM still verifies them, by type inference.
+ */
+final class ClassBuilder {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // The JVM opcodes we emit
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD_0 = 0x2a;
+    static final int ALOAD_1 = 0x2b;
+    static final int IALOAD = 0x2e;
+    static final int ISTORE = 0x36;
+    static final int IASTORE = 0x4f;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int SWAP = 0x5f;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IDIV = 0x6c;
+    static final int IREM = 0x70;
+    static final int INEG = 0x74;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ACONST_NULL = 0x01;
+    static final int ATHROW = 0xbf;
+
+    private final Bytes pool = new Bytes();
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int constantCount = 1;
+    private final Bytes methods = new Bytes();
+    private int methodCount = 0;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+
+    ClassBuilder(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++)
+            interfaces[i] = classRef(interfaceNames[i]);
+    }
+
+    // Constant pool
+    //
+    private int constant(String key, int tag, Bytes entry) {
+        Integer index = constants.get(key);
+        if (index == null) {
+            index = constantCount++;
+            constants.put(key, index);
+            pool.u1(tag);
+            pool.append(entry);
+        }
+        return index;
+    }
+    int utf8(String value) {
+        Bytes entry = new Bytes();
+        byte[] bytes = value.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        entry.u2(bytes.length);
+        entry.append(bytes, bytes.length);
+        return constant("U" + value, 1, entry);
+    }
+    int integer(int value) {
+        return constant("I" + value, 3, new Bytes().u4(value));
+    }
+    int classRef(String name) {
+        return constant("C" + name, 7, new Bytes().u2(utf8(name)));
+    }
+    private int nameAndType(String name, String descriptor) {
+        return constant("N" + name + ":" + descriptor, 12, new Bytes().u2(utf8(name)).u2(utf8(descriptor)));
+    }
+    int fieldRef(String owner, String name, String descriptor) {
+        return constant("F" + owner + "." + name + ":" + descriptor, 9,
+            new Bytes().u2(classRef(owner)).u2(nameAndType(name, descriptor)));
+    }
+    int methodRef(String owner, String name, String descriptor) {
+        return constant("M" + owner + "." + name + ":" + descriptor, 10,
+            new Bytes().u2(classRef(owner)).u2(nameAndType(name, descriptor)));
+    }
+
+    // Methods
+    //
+    void method(int access, String name, String descriptor, Code code) {
+        code.resolve();
+        methodCount++;
+        methods.u2(access).u2(utf8(name)).u2(utf8(descriptor));
+        methods.u2(1); // one attribute: Code
+        methods.u2(utf8("Code"));
+        methods.u4(2 + 2 + 4 + code.bytes.length + 2 + 2);
+        methods.u2(code.maxStack).u2(code.maxLocals);
+        methods.u4(code.bytes.length);
+        methods.append(code.bytes);
+        methods.u2(0); // no exception table
+        methods.u2(0); // no attributes
+    }
+
+    byte[] toByteArray() {
+        Bytes out = new Bytes();
+        out.u4(0xCAFEBABE).u2(0).u2(49);
+        out.u2(constantCount);
+        out.append(pool);
+        out.u2(ACC_FINAL | ACC_SUPER);
+        out.u2(thisClass).u2(superClass);
+        out.u2(interfaces.length);
+        for (int i : interfaces)
+            out.u2(i);
+        out.u2(0); // no fields
+        out.u2(methodCount);
+        out.append(methods);
+        out.u2(0); // no attributes
+        return Arrays.copyOf(out.data, out.length);
+    }
+
+    /*
+     * The body of one method. Branch targets are labels: newLabel() hands
+     * one out, mark() pins it to the current position, and jump() emits a
+     * branch to it, patched in once the method is done.
+     */
+    static final class Code {
+        final Bytes bytes = new Bytes();
+        int maxStack;
+        int maxLocals;
+        private int[] labels = new int[16];
+        private int labelCount = 0;
+        private int[] fixups = new int[32]; // (branch position, label) pairs
+        private int fixupCount = 0;
+
+        Code(int maxStack, int maxLocals) {
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        int size() {
+            return bytes.length;
+        }
+        Code op(int opcode) {
+            bytes.u1(opcode);
+            return this;
+        }
+        Code op(int opcode, int index) {
+            bytes.u1(opcode).u2(index);
+            return this;
+        }
+        Code local(int opcode, int slot) {
+            bytes.u1(opcode).u1(slot);
+            return this;
+        }
+        Code constant(ClassBuilder cls, int value) {
+            if (value >= -1 && value <= 5)
+                bytes.u1(ICONST_0 + value);
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+                bytes.u1(BIPUSH).u1(value);
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+                bytes.u1(SIPUSH).u2(value);
+            else
+                bytes.u1(LDC_W).u2(cls.integer(value));
+            return this;
+        }
+
+        int newLabel() {
+            if (labelCount == labels.length)
+                labels = Arrays.copyOf(labels, labelCount * 2);
+            labels[labelCount] = -1;
+            return labelCount++;
+        }
+        void mark(int label) {
+            labels[label] = bytes.length;
+        }
+        void jump(int opcode, int label) {
+            if (fixupCount + 2 > fixups.length)
+                fixups = Arrays.copyOf(fixups, fixups.length * 2);
+            fixups[fixupCount++] = bytes.length;
+            fixups[fixupCount++] = label;
+            bytes.u1(opcode).u2(0);
+        }
+        private void resolve() {
+            for (int f = 0; f < fixupCount; f += 2) {
+                int at = fixups[f];
+                int offset = labels[fixups[f + 1]] - at;
+                bytes.data[at + 1] = (byte) (offset >> 8);
+                bytes.data[at + 2] = (byte) offset;
+            }
+            fixupCount = 0;
+        }
+    }
+
+    // A growable big-endian byte buffer
+    static final class Bytes {
+        byte[] data = new byte[64];
+        int length = 0;
+
+        private void ensure(int more) {
+            if (length + more > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + more));
+        }
+        Bytes u1(int value) {
+            ensure(1);
+            data[length++] = (byte) value;
+            return this;
+        }
+        Bytes u2(int value) {
+            ensure(2);
+            data[length++] = (byte) (value >> 8);
+            data[length++] = (byte) value;
+            return this;
+        }
+        Bytes u4(int value) {
+            ensure(4);
+            data[length++] = (byte) (value >> 24);
+            data[length++] = (byte) (value >> 16);
+            data[length++] = (byte) (value >> 8);
+            data[length++] = (byte) value;
+            return this;
+        }
+        Bytes append(byte[] bytes, int count) {
+            ensure(count);
+            System.arraycopy(bytes, 0, data, length, count);
+            length += count;
+            return this;
+        }
+        Bytes append(Bytes other) {
+            return append(other.data, other.length);
+        }
+    }
+}
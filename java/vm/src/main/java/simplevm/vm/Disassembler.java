@@ -0,0 +1,88 @@
+package simplevm.vm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Turns code back into assembly text the Assembler accepts, labelling
+ * every address something jumps to or calls ("L25:") and using those
+ * labels as the jumps' and calls' operands. Words that aren't
+ * instructions (an unknown opcode, or a last instruction missing its
+ * operand) come out as ".word" lines, so anything at all disassembles,
+ * and reassembles to the same code.
+ *
+ * Two passes over the code, one to find the labels and one to write,
+ * straight to the given Appendable.
+ */
+public final class Disassembler {
+    private Disassembler() { }
+
+    public static String disassemble(int[] code) {
+        StringBuilder text = new StringBuilder(code.length * 8);
+        try {
+            disassemble(code, text);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);      // StringBuilders don't
+        }
+        return text.toString();
+    }
+
+    public static void disassemble(int[] code, Appendable out) throws IOException {
+        // Where the instructions are, and which of them get labels
+        boolean[] instructions = new boolean[code.length + 1];
+        boolean[] labelled = new boolean[code.length + 1];
+        instructions[code.length] = true;
+        for (int ip = 0; ip < code.length; ip += width(code, ip))
+            instructions[ip] = true;
+        for (int ip = 0; ip < code.length; ip += width(code, ip)) {
+            int target = target(code, ip);
+            if (target >= 0 && target <= code.length && instructions[target])
+                labelled[target] = true;
+        }
+
+        for (int ip = 0; ip < code.length; ip += width(code, ip)) {
+            if (labelled[ip])
+                out.append('L').append(Integer.toString(ip)).append(":\n");
+            out.append("    ");
+            if (width(code, ip) == 1 && Bytecode.operands(code[ip]) != 0) {
+                out.append(".word ").append(Integer.toString(code[ip])).append('\n');
+                continue;
+            }
+            out.append(Bytecode.name(code[ip]));
+            if (Bytecode.operands(code[ip]) == 1) {
+                out.append(' ');
+                int target = target(code, ip);
+                if (target >= 0 && target <= code.length && labelled[target])
+                    out.append('L').append(Integer.toString(target));
+                else
+                    out.append(Integer.toString(code[ip + 1]));
+            }
+            out.append('\n');
+        }
+        if (labelled[code.length])
+            out.append('L').append(Integer.toString(code.length)).append(":\n");
+    }
+
+    // How many words the instruction at ip takes: just the one, if it
+    // isn't an instruction after all
+    private static int width(int[] code, int ip) {
+        int operands = Bytecode.operands(code[ip]);
+        return (operands < 0 || ip + operands >= code.length) ? 1 : 1 + operands;
+    }
+
+    // Where the instruction at ip goes, if it's a jump or call with a
+    // constant destination; else -1
+    private static int target(int[] code, int ip) {
+        if (width(code, ip) != 2)
+            return -1;
+        switch (code[ip]) {
+            case Bytecode.JMP: case Bytecode.JZ: case Bytecode.JNZ: case Bytecode.CALL: case Bytecode.TAILCALL:
+                return code[ip + 1];
+            case Bytecode.RJMP:
+                return ip + code[ip + 1];
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package simplevm.vm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+
+/*
+ * Java Flight Recorder events for what VirtualMachines do, so that a
+ * recording of a program running scripts shows what the scripts were
+ * up to:
+ *
+ *     simplevm.Load             a Program verified and decoded
+ *     simplevm.Execute          a run: execute(), resume() or run()
+ *     simplevm.Exception        an exception ending a run, FATAL's included
+ *     simplevm.OpcodeHistogram  a sampled run, and which opcodes it executed
+ *
+ * While JFR isn't recording them, none of these costs anything: until
+ * it is, an event's begin(), isEnabled() and commit() do nothing, and
+ * the JIT drops the event objects altogether. See VirtualMachine for how
+ * runs are recorded.
+ */
+final class Events {
+    private Events() { }
+
+    @Name("simplevm.Load")
+    @Label("Program Load")
+    @Category("SimpleVM")
+    @Description("Verifying and decoding a Program")
+    static final class Load extends Event {
+        @Label("Length")
+        @Description("Words of code")
+        int length;
+    }
+
+    @Name("simplevm.Execute")
+    @Label("Execute")
+    @Category("SimpleVM")
+    @Description("A VirtualMachine running a program, from start to HALT (or to whatever else stopped it)")
+    static final class Execute extends Event {
+        @Label("Engine")
+        String engine;
+
+        @Label("Length")
+        @Description("Words of code")
+        int length;
+
+        @Label("Call Depth")
+        @Description("The most frames there were at once, the top level's included")
+        int callDepth;
+
+        // Whether the frames were made ready to measure callDepth when
+        // the run started (not recorded)
+        transient boolean measuring;
+    }
+
+    @Name("simplevm.Exception")
+    @Label("Exception")
+    @Category("SimpleVM")
+    @Description("An exception that stopped a VirtualMachine running a program")
+    static final class Failure extends Event {
+        @Label("Exception Class")
+        Class<?> exceptionClass;
+
+        @Label("Message")
+        String message;
+
+        @Label("IP")
+        @Description("The address the VM was at, as of the last instruction it interpreted")
+        int ip;
+    }
+
+    @Name("simplevm.OpcodeHistogram")
+    @Label("Opcode Histogram")
+    @Category("SimpleVM")
+    @Description("The first run to start each period, interpreted to count how many times each opcode ran; "
+        + "it has no simplevm.Execute event")
+    @Period("1 s")
+    static final class OpcodeHistogram extends Event {
+        @Label("Engine")
+        @Description("The engine the VM was built with, not the one that ran")
+        String engine;
+
+        @Label("Instructions")
+        long instructions;
+
+        @Label("Histogram")
+        @Description("Opcodes and their counts, most frequent first")
+        String histogram;
+    }
+
+    // Set by JFR once a period while it's recording OpcodeHistograms;
+    // the next run to start takes it as its cue to be sampled
+    static volatile boolean sampleDue = false;
+    static {
+        if (FlightRecorder.isAvailable())
+            FlightRecorder.addPeriodicEvent(OpcodeHistogram.class, () -> sampleDue = true);
+    }
+
+    /*
+     * Counts a sampled run's instructions. Listening means the run is
+     * interpreted, and unfused, so these are the program's own opcodes
+     * and the counts are exact; but it also means a sampled run is
+     * slower than the rest, so it's timed by its OpcodeHistogram, and
+     * has no Execute event to throw the others' timings off.
+     */
+    static final class Sampler implements Listener {
+        // Opcodes are all below 64 (see Bytecode)
+        private final long[] opcodes = new long[64];
+        private final OpcodeHistogram event = new OpcodeHistogram();
+        long instructions;
+
+        Sampler() {
+            event.begin();
+        }
+
+        public void instruction(VirtualMachine vm, int ip, int opcode, int operand) {
+            opcodes[opcode]++;
+            instructions++;
+        }
+
+        void commit(String engine) {
+            event.end();
+            if (!event.shouldCommit())
+                return;
+            boolean[] done = new boolean[opcodes.length];
+            StringBuilder histogram = new StringBuilder();
+            for (;;) {
+                int most = -1;
+                for (int opcode = 0; opcode < opcodes.length; opcode++) {
+                    if (!done[opcode] && opcodes[opcode] > 0 && (most < 0 || opcodes[opcode] > opcodes[most]))
+                        most = opcode;
+                }
+                if (most < 0)
+                    break;
+                done[most] = true;
+                if (histogram.length() > 0)
+                    histogram.append(", ");
+                histogram.append(Bytecode.name(most)).append(' ').append(opcodes[most]);
+            }
+            event.engine = engine;
+            event.instructions = instructions;
+            event.histogram = histogram.toString();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package simplevm.vm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * A segment of globals, which any number of VirtualMachines can share
+ * (see VirtualMachine.setGlobals()), running on any number of threads.
+ *
+ * GLOAD and GSTORE stay plain array accesses, as fast as they are for a
+ * VM's own globals; they never tear, but nothing orders them against
+ * other threads. For anything other VMs need to see promptly, programs
+ * use the atomic opcodes instead: GCAS (compare-and-swap) and GADD
+ * (fetch-and-add), which are as strong as volatile accesses. The host
+ * gets the same through get(), set(), compareAndSet() and getAndAdd().
+ *
+ * Globals that every VM bumps all the time (request counts, say) make
+ * all those VMs fight over one cache line. Those belong in counters
+ * instead: CADD adds to this thread's stripe of the counter, each
+ * stripe on a cache line of its own, and CLOAD adds up the stripes. So
+ * counters are cheap to update and dearer to read, and a read racing
+ * updates sees some of them and not others.
+ */
+public final class Globals {
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+    // Counter stripes are this many ints apart, so no two share a
+    // (64-byte) cache line
+    private static final int PADDING = 16;
+
+    final int[] values;
+    // Whether this is a VM's own, not shared with any other
+    final boolean unshared;
+    private final int counterCount;
+    private final int stripes;
+    private final int padding;
+    private final int[] cells;
+
+    /**
+     * A segment of size globals and the given number of counters, striped
+     * for as many threads as there are processors.
+     */
+    public Globals(int size, int counters) {
+        this(size, counters, stripesFor(Runtime.getRuntime().availableProcessors()), PADDING);
+    }
+    // A VM's own globals only ever see one thread, so its counters get
+    // one unpadded stripe each
+    static Globals unshared(int size, int counters) {
+        return new Globals(size, counters, 1, 1);
+    }
+    private Globals(int size, int counters, int stripes, int padding) {
+        if (size < 0 || counters < 0)
+            throw new VirtualMachine.Exception("Cannot have " + size + " globals and " + counters + " counters");
+        this.values = new int[size];
+        this.unshared = (stripes == 1 && padding == 1);
+        this.counterCount = counters;
+        this.stripes = stripes;
+        this.padding = padding;
+        this.cells = new int[counters * stripes * padding];
+    }
+    // A bigger copy of an unshared segment
+    Globals grow(int size, int counters) {
+        Globals grown = unshared(Math.max(size, values.length), Math.max(counters, counterCount));
+        System.arraycopy(values, 0, grown.values, 0, values.length);
+        System.arraycopy(cells, 0, grown.cells, 0, cells.length);
+        return grown;
+    }
+    private static int stripesFor(int processors) {
+        // A power of two, so picking one is a mask
+        int wanted = Math.max(1, Math.min(processors, 64));
+        int stripes = Integer.highestOneBit(wanted);
+        return stripes < wanted ? stripes * 2 : stripes;
+    }
+
+    public int size() {
+        return values.length;
+    }
+    public int counters() {
+        return counterCount;
+    }
+
+    public int get(int index) {
+        return (int) INTS.getVolatile(values, index);
+    }
+    public void set(int index, int value) {
+        INTS.setVolatile(values, index, value);
+    }
+    public boolean compareAndSet(int index, int expected, int update) {
+        return INTS.compareAndSet(values, index, expected, update);
+    }
+    public int getAndAdd(int index, int delta) {
+        return (int) INTS.getAndAdd(values, index, delta);
+    }
+
+    /** Add delta to the given counter. */
+    public void add(int counter, int delta) {
+        int stripe = stripes == 1 ? 0 : stripe();
+        INTS.getAndAdd(cells, (counter * stripes + stripe) * padding, delta);
+    }
+    /** The given counter's value: the sum of all its stripes. */
+    public int sum(int counter) {
+        int sum = 0;
+        for (int stripe = 0; stripe < stripes; stripe++)
+            sum += (int) INTS.getVolatile(cells, (counter * stripes + stripe) * padding);
+        return sum;
+    }
+    // Every counter's value, and setting them all (with the globals)
+    // back, for snapshots
+    int[] counterValues() {
+        int[] sums = new int[counterCount];
+        for (int counter = 0; counter < counterCount; counter++)
+            sums[counter] = sum(counter);
+        return sums;
+    }
+    void load(int[] globals, int[] counters) {
+        System.arraycopy(globals, 0, values, 0, globals.length);
+        Arrays.fill(values, globals.length, values.length, 0);
+        Arrays.fill(cells, 0);
+        for (int counter = 0; counter < counters.length; counter++)
+            cells[counter * stripes * padding] = counters[counter];
+    }
+
+    private int stripe() {
+        // Spread thread identities out over the stripes
+        int hash = System.identityHashCode(Thread.currentThread()) * 0x9E3779B9;
+        return (hash >>> 16) & (stripes - 1);
+    }
+
+    // What the atomic opcodes do, for compiled code to call
+    //
+    static int cas(int expected, int update, VirtualMachine vm, int index) {
+        return vm.segment.compareAndSet(index, expected, update) ? 1 : 0;
+    }
+    static int add(int delta, VirtualMachine vm, int index) {
+        return vm.segment.getAndAdd(index, delta);
+    }
+    static void count(int delta, VirtualMachine vm, int counter) {
+        vm.segment.add(counter, delta);
+    }
+    static int total(VirtualMachine vm, int counter) {
+        return vm.segment.sum(counter);
+    }
+}
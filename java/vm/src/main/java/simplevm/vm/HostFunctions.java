@@ -0,0 +1,89 @@
+package simplevm.vm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/*
+ * Binds host functions for CALLHOST (see VirtualMachine.setHostFunction()).
+ *
+ * A host function is a MethodHandle taking ints and returning an int or
+ * nothing. bind() wraps it, once, into a handle of type
+ * (VirtualMachine)void that does the whole CALLHOST: reads each argument
+ * straight out of the VM's stack array, calls the function, drops the
+ * arguments and pushes the result. So a call is one invokeExact of a
+ * handle built out of plain int-typed pieces: no reflection, no boxing
+ * and no argument arrays.
+ *
+ * It isn't inlined into its caller, though. The handles are per VM, and
+ * HotSpot only inlines through a handle it sees as a constant, which
+ * these never are: VirtualMachine.callHost() reads them out of an array,
+ * and compiled code (see Jit) is shared by every VM running the program,
+ * so it can't bind any one VM's handles into itself. What HotSpot does
+ * do is compile each handle's own chain, from the stack reads through
+ * the function to the push, once it's been called often enough.
+ */
+final class HostFunctions {
+    private HostFunctions() { }
+
+    private static final MethodHandle ARGUMENT;
+    private static final MethodHandle RETURNED;
+    private static final MethodHandle RETURNED_NOTHING;
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            ARGUMENT = lookup.findStatic(HostFunctions.class, "argument",
+                MethodType.methodType(int.class, VirtualMachine.class, int.class));
+            RETURNED = lookup.findStatic(HostFunctions.class, "returned",
+                MethodType.methodType(void.class, int.class, VirtualMachine.class, int.class));
+            RETURNED_NOTHING = lookup.findStatic(HostFunctions.class, "returned",
+                MethodType.methodType(void.class, VirtualMachine.class, int.class));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // The argument depth values down the stack (the last one is on top)
+    private static int argument(VirtualMachine vm, int depth) {
+        return vm.stack[vm.sp - depth];
+    }
+    private static void returned(int result, VirtualMachine vm, int arity) {
+        vm.sp -= arity;
+        vm.push(result);
+    }
+    private static void returned(VirtualMachine vm, int arity) {
+        vm.sp -= arity;
+    }
+
+    /** The arity of function, which has to be a proper host function. */
+    static int arity(MethodHandle function) {
+        MethodType type = function.type();
+        for (Class<?> parameter : type.parameterList()) {
+            if (parameter != int.class)
+                throw new VirtualMachine.Exception("Host functions take only ints, not " + type);
+        }
+        if (type.returnType() != int.class && type.returnType() != void.class)
+            throw new VirtualMachine.Exception("Host functions return an int or nothing, not " + type);
+        return type.parameterCount();
+    }
+
+    static MethodHandle bind(MethodHandle function) {
+        int arity = arity(function);
+        Class<?> result = function.type().returnType();
+
+        // (int, int, ...) -> (vm, vm, ...) -> (vm)
+        MethodHandle[] arguments = new MethodHandle[arity];
+        for (int k = 0; k < arity; k++)
+            arguments[k] = MethodHandles.insertArguments(ARGUMENT, 1, arity - 1 - k);
+        MethodHandle call = MethodHandles.filterArguments(function, 0, arguments);
+        if (arity == 0)
+            call = MethodHandles.dropArguments(call, 0, VirtualMachine.class);
+        else
+            call = MethodHandles.permuteArguments(call, MethodType.methodType(result, VirtualMachine.class), new int[arity]);
+
+        // Then tidy up the stack: call first, then returned()
+        MethodHandle after = (result == int.class) ? RETURNED : RETURNED_NOTHING;
+        return MethodHandles.foldArguments(MethodHandles.insertArguments(after, after.type().parameterCount() - 1, arity), call);
+    }
+}
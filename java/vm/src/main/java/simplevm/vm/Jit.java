@@ -0,0 +1,456 @@
+package simplevm.vm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static simplevm.vm.Bytecode.*;
+
+/*
+ * The TIERED engine's compiler. The interpreter counts CALLs to each
+ * function (see enter()), and once a function has been called THRESHOLD
+ * times we try to translate it into a real JVM class, so HotSpot can
+ * optimize it like any other Java code. From then on CALLs to it run the
+ * compiled version.
+ *
+ * In the compiled code the function's locals become JVM locals, and the
+ * values it pushes live on the JVM operand stack; only values it pops
+ * that its caller pushed (its arguments) come off the VM stack, and
+ * anything still on the JVM stack goes back onto the VM stack at each
+ * CALL and RET. That's enough for compiled and interpreted functions to
+ * call each other freely and leave the VM in exactly the state the
+ * interpreter would have. A TAILCALL to the function itself becomes a
+ * jump back to its start; one to any other function returns, leaving
+ * the VM to make the call (see VirtualMachine.tailCalls()).
+ *
+ * Not everything compiles: functions that use DUMP, TRACE, HALT or the
+ * dynamic jumps, or whose stack depth at some instruction depends on the
+ * path taken to get there, stay interpreted. Compiled code is only used
+ * while nothing is listening (see Listener), and only while the call
+ * depth is below MAX_DEPTH, since unlike the interpreter it recurses on
+ * the (finite) JVM stack.
+ *
+ * One Jit serves every VirtualMachine running its Program. Compiled code
+ * keeps no state of its own (everything lives in the VM it's handed), so
+ * it's safe to share; compiling happens under a lock, once per function.
+ *
+ * Where the JVM has them (15 and up), compiled functions are hidden
+ * classes: nothing can find them by name, and they're unloaded once the
+ * Jit holding them (so the Program it belongs to) is unreachable, so a
+ * host loading program after program doesn't fill Metaspace. Older JVMs
+ * get ordinary classes in our own package, which stay loaded; they have
+ * to be in our class loader, not one of their own, to reach the VM's
+ * package-private internals.
+ */
+final class Jit {
+    interface Compiled {
+        void invoke(VirtualMachine vm);
+    }
+
+    static final int THRESHOLD = Integer.getInteger("simplevm.jit.threshold", 1000);
+    static final int MAX_DEPTH = 1024;
+
+    // Marks a function we tried and failed to compile
+    private static final Compiled INTERPRETED = vm -> { };
+    private static final AtomicInteger classCount = new AtomicInteger();
+    // (Lookup, byte[]) -> Lookup, defining a hidden class; null if the
+    // JVM can't (this compiles against Java 11, so we look it up)
+    private static final MethodHandle DEFINE_HIDDEN = defineHidden();
+
+    final Program program;
+    // Indexed by function entry address. Racing threads may lose the odd
+    // count, which only delays compilation a little.
+    private final int[] counts;
+    private final Compiled[] compiled;
+
+    Jit(Program program) {
+        this.program = program;
+        this.counts = new int[program.code.length];
+        this.compiled = new Compiled[program.code.length];
+    }
+
+    /*
+     * Note a CALL to target, and return its compiled code if it has (or
+     * now gets) some; null means interpret it.
+     */
+    Compiled enter(int target) {
+        Compiled result = compiled[target];
+        if (result == null) {
+            if (++counts[target] < THRESHOLD)
+                return null;
+            result = compileOnce(target);
+        }
+        return result == INTERPRETED ? null : result;
+    }
+
+    private synchronized Compiled compileOnce(int target) {
+        Compiled result = compiled[target];
+        if (result == null) {
+            result = compile(target);
+            compiled[target] = result == null ? INTERPRETED : result;
+        }
+        return result == null ? INTERPRETED : result;
+    }
+
+    // Translation
+    //
+    private static final String VM = "simplevm/vm/VirtualMachine";
+    private static final String VM_TYPE = "L" + VM + ";";
+    private static final String GLOBALS = "simplevm/vm/Globals";
+    private static final String MEMORY = "simplevm/vm/Memory";
+
+    private static boolean compilable(int opcode) {
+        switch (opcode) {
+            case DUMP: case TRACE: case HALT:
+            case JMPI: case RJMPI:
+                return false;
+            default:
+                return true;
+        }
+    }
+    /*
+     * Translate the function at entry into a class, or return null if it
+     * can't be.
+     */
+    Compiled compile(int entry) {
+        int[] code = program.code;
+
+        // How many values are on the JVM stack at the start of each
+        // instruction in the function (-1 where the function never goes)
+        int[] depths = program.depths(entry);
+        if (depths == null)
+            return null;
+        int maxDepth = 0;
+        for (int ip = 0; ip < code.length; ip++) {
+            if (depths[ip] < 0)
+                continue;
+            if (!compilable(code[ip]))
+                return null;
+            maxDepth = Math.max(maxDepth, depths[ip] + Bytecode.pushes(code[ip]));
+        }
+
+        // JVM local 0 is the VM, then the function's locals, then scratch
+        // space for spilling the stack
+        int localCount = program.frameSizes[entry];
+        int spill = 1 + localCount;
+        int maxLocals = spill + maxDepth;
+        if (maxLocals > 255)
+            return null;
+
+        String name = "simplevm/vm/Jit$Function" + classCount.incrementAndGet();
+        ClassBuilder cls = new ClassBuilder(name, "java/lang/Object", "simplevm/vm/Jit$Compiled");
+        ClassBuilder.Code body = new ClassBuilder.Code(maxDepth + 4, maxLocals);
+
+        int[] labels = new int[code.length];
+        for (int ip = 0; ip < code.length; ip++)
+            labels[ip] = depths[ip] < 0 ? -1 : body.newLabel();
+
+        // Locals start out zeroed, as they do in a fresh frame
+        for (int local = 0; local < localCount; local++)
+            body.op(ClassBuilder.ICONST_0).local(ClassBuilder.ISTORE, 1 + local);
+
+        int pop = cls.methodRef(VM, "pop", "()I");
+        int push = cls.methodRef(VM, "push", "(I)V");
+        for (int ip = 0; ip < code.length; ip++) {
+            if (depths[ip] < 0)
+                continue;
+            body.mark(labels[ip]);
+            int opcode = code[ip];
+            int depth = depths[ip];
+
+            // Pull in anything this instruction pops that isn't on the JVM
+            // stack, keeping the operands in order
+            int missing = Bytecode.pops(opcode) - depth;
+            if (missing == 1 && Bytecode.pops(opcode) == 1) {
+                body.op(ClassBuilder.ALOAD_0).op(ClassBuilder.INVOKEVIRTUAL, pop);
+            }
+            else if (missing == 1) {
+                // [rhs] -> [lhs, rhs]
+                body.op(ClassBuilder.ALOAD_0).op(ClassBuilder.INVOKEVIRTUAL, pop).op(ClassBuilder.SWAP);
+            }
+            else if (missing == 2) {
+                // [] -> [rhs, lhs] -> [lhs, rhs]
+                body.op(ClassBuilder.ALOAD_0).op(ClassBuilder.INVOKEVIRTUAL, pop);
+                body.op(ClassBuilder.ALOAD_0).op(ClassBuilder.INVOKEVIRTUAL, pop).op(ClassBuilder.SWAP);
+            }
+            int below = Math.max(depth - Bytecode.pops(opcode), 0);
+
+            switch (opcode) {
+                case NOP:
+                case YIELD:     // (compiled code never runs to a budget)
+                    break;
+                case PRINT:
+                    body.op(ClassBuilder.ALOAD_0).op(ClassBuilder.SWAP);
+                    body.op(ClassBuilder.INVOKEVIRTUAL, cls.methodRef(VM, "print", "(I)V"));
+                    break;
+                case FATAL:
+                    spill(body, depth, spill, push);
+                    body.op(ClassBuilder.ALOAD_0).constant(cls, ip);
+                    body.op(ClassBuilder.INVOKEVIRTUAL, cls.methodRef(VM, "fatal", "(I)L" + VM + "$Exception;"));
+                    body.op(ClassBuilder.ATHROW);
+                    break;
+
+                case CONST:
+                    body.constant(cls, code[ip + 1]);
+                    break;
+                case POP:
+                    body.op(ClassBuilder.POP);
+                    break;
+
+                case ADD: body.op(ClassBuilder.IADD); break;
+                case SUB: body.op(ClassBuilder.ISUB); break;
+                case MUL: body.op(ClassBuilder.IMUL); break;
+                case DIV:
+                case MOD:
+                    if (below > 0) {
+                        // If this throws, the values under the operands need
+                        // to be back on the VM stack first, as they would be
+                        // in the interpreter
+                        int ok = body.newLabel();
+                        body.op(ClassBuilder.DUP).jump(ClassBuilder.IFNE, ok);
+                        body.op(ClassBuilder.POP).op(ClassBuilder.POP);
+                        spill(body, below, spill, push);
+                        body.op(ClassBuilder.ICONST_1).op(ClassBuilder.ICONST_0).op(ClassBuilder.IDIV);
+                        body.op(ClassBuilder.ACONST_NULL).op(ClassBuilder.ATHROW);
+                        body.mark(ok);
+                    }
+                    body.op(opcode == DIV ? ClassBuilder.IDIV : ClassBuilder.IREM);
+                    break;
+                case ABS:
+                    body.op(ClassBuilder.INVOKESTATIC, cls.methodRef("java/lang/Math", "abs", "(I)I"));
+                    break;
+                case NEG:
+                    body.op(ClassBuilder.INEG);
+                    break;
+
+                case EQ: compare(body, ClassBuilder.IF_ICMPEQ); break;
+                case NEQ: compare(body, ClassBuilder.IF_ICMPNE); break;
+                case GT: compare(body, ClassBuilder.IF_ICMPGT); break;
+                case LT: compare(body, ClassBuilder.IF_ICMPLT); break;
+                case GTE: compare(body, ClassBuilder.IF_ICMPGE); break;
+                case LTE: compare(body, ClassBuilder.IF_ICMPLE); break;
+
+                case JMP:
+                    body.jump(ClassBuilder.GOTO, labels[code[ip + 1]]);
+                    break;
+                case JZ:
+                    body.jump(ClassBuilder.IFEQ, labels[code[ip + 1]]);
+                    break;
+                case JNZ:
+                    body.jump(ClassBuilder.IFNE, labels[code[ip + 1]]);
+                    break;
+
+                case GLOAD:
+                    body.op(ClassBuilder.ALOAD_0).op(ClassBuilder.GETFIELD, cls.fieldRef(VM, "globals", "[I"));
+                    body.constant(cls, code[ip + 1]).op(ClassBuilder.IALOAD);
+                    break;
+                case GSTORE:
+                    // [value] -> [globals, value] -> [globals, index, value]
+                    body.op(ClassBuilder.ALOAD_0).op(ClassBuilder.GETFIELD, cls.fieldRef(VM, "globals", "[I"));
+                    body.op(ClassBuilder.SWAP).constant(cls, code[ip + 1]).op(ClassBuilder.SWAP);
+                    body.op(ClassBuilder.IASTORE);
+                    break;
+                case GCAS:
+                    // [expected, update] -> [expected, update, vm, index]
+                    body.op(ClassBuilder.ALOAD_0).constant(cls, code[ip + 1]);
+                    body.op(ClassBuilder.INVOKESTATIC, cls.methodRef(GLOBALS, "cas", "(II" + VM_TYPE + "I)I"));
+                    break;
+                case GADD:
+                    body.op(ClassBuilder.ALOAD_0).constant(cls, code[ip + 1]);
+                    body.op(ClassBuilder.INVOKESTATIC, cls.methodRef(GLOBALS, "add", "(I" + VM_TYPE + "I)I"));
+                    break;
+                case CADD:
+                    body.op(ClassBuilder.ALOAD_0).constant(cls, code[ip + 1]);
+                    body.op(ClassBuilder.INVOKESTATIC, cls.methodRef(GLOBALS, "count", "(I" + VM_TYPE + "I)V"));
+                    break;
+                case CLOAD:
+                    body.op(ClassBuilder.ALOAD_0).constant(cls, code[ip + 1]);
+                    body.op(ClassBuilder.INVOKESTATIC, cls.methodRef(GLOBALS, "total", "(" + VM_TYPE + "I)I"));
+                    break;
+
+                case ALOAD:
+                {
+                    int load = cls.methodRef(MEMORY, "load", "(I" + VM_TYPE + ")I");
+                    if (below > 0)
+                        guard(cls, body, 1, below, spill, push, load);
+                    body.op(ClassBuilder.ALOAD_0).op(ClassBuilder.INVOKESTATIC, load);
+                    break;
+                }
+                case ASTORE:
+                {
+                    int store = cls.methodRef(MEMORY, "store", "(II" + VM_TYPE + ")V");
+                    if (below > 0)
+                        guard(cls, body, 2, below, spill, push, store);
+                    body.op(ClassBuilder.ALOAD_0).op(ClassBuilder.INVOKESTATIC, store);
+                    break;
+                }
+                case MSIZE:
+                    body.op(ClassBuilder.ALOAD_0);
+                    body.op(ClassBuilder.INVOKESTATIC, cls.methodRef(MEMORY, "size", "(" + VM_TYPE + ")I"));
+                    break;
+                case MGROW:
+                    body.op(ClassBuilder.ALOAD_0);
+                    body.op(ClassBuilder.INVOKESTATIC, cls.methodRef(MEMORY, "grow", "(I" + VM_TYPE + ")I"));
+                    break;
+
+                case CALLHOST:
+                    // Host functions take their arguments off the VM stack
+                    spill(body, depth, spill, push);
+                    body.op(ClassBuilder.ALOAD_0).constant(cls, code[ip + 1]);
+                    body.op(ClassBuilder.INVOKEVIRTUAL, cls.methodRef(VM, "callHost", "(I)V"));
+                    break;
+                case CALL:
+                {
+                    int target = code[ip + 1];
+                    spill(body, depth, spill, push);
+                    if (target == entry) {
+                        // Recursion goes straight to ourselves, as long as
+                        // there's JVM stack left for it
+                        int slow = body.newLabel();
+                        int done = body.newLabel();
+                        body.op(ClassBuilder.ALOAD_0).op(ClassBuilder.GETFIELD, cls.fieldRef(VM, "frameCount", "I"));
+                        body.constant(cls, MAX_DEPTH).jump(ClassBuilder.IF_ICMPGE, slow);
+                        body.op(ClassBuilder.ALOAD_0).constant(cls, ip + 2).op(ClassBuilder.ICONST_0);
+                        body.op(ClassBuilder.INVOKEVIRTUAL, cls.methodRef(VM, "pushFrame", "(II)V"));
+                        body.op(ClassBuilder.ALOAD_0).op(ClassBuilder.INVOKESTATIC, cls.methodRef(name, "run", "(" + VM_TYPE + ")V"));
+                        body.op(ClassBuilder.ALOAD_0).op(ClassBuilder.INVOKEVIRTUAL, cls.methodRef(VM, "tailCalls", "()V"));
+                        body.op(ClassBuilder.ALOAD_0).op(ClassBuilder.INVOKEVIRTUAL, cls.methodRef(VM, "popFrame", "()V"));
+                        body.jump(ClassBuilder.GOTO, done);
+                        body.mark(slow);
+                        call(cls, body, target, ip + 2);
+                        body.mark(done);
+                    }
+                    else {
+                        call(cls, body, target, ip + 2);
+                    }
+                    break;
+                }
+                case TAILCALL:
+                {
+                    int target = code[ip + 1];
+                    spill(body, depth, spill, push);
+                    if (target == entry) {
+                        // Calling ourselves last is just going round again,
+                        // with fresh locals
+                        for (int local = 0; local < localCount; local++)
+                            body.op(ClassBuilder.ICONST_0).local(ClassBuilder.ISTORE, 1 + local);
+                        body.jump(ClassBuilder.GOTO, labels[entry]);
+                    }
+                    else {
+                        // Anyone else we leave for whoever called us to
+                        // call (see VirtualMachine.tailCalls())
+                        body.op(ClassBuilder.ALOAD_0).constant(cls, target);
+                        body.op(ClassBuilder.PUTFIELD, cls.fieldRef(VM, "tailTarget", "I"));
+                        body.op(ClassBuilder.RETURN);
+                    }
+                    break;
+                }
+                case RET:
+                    spill(body, depth, spill, push);
+                    body.op(ClassBuilder.RETURN);
+                    break;
+                case LOAD:
+                    body.local(ClassBuilder.ILOAD, 1 + code[ip + 1]);
+                    break;
+                case STORE:
+                    body.local(ClassBuilder.ISTORE, 1 + code[ip + 1]);
+                    break;
+
+                default:
+                    throw new VirtualMachine.Exception("Should never happen");
+            }
+        }
+        // Branch offsets are 16 bits
+        if (body.size() > Short.MAX_VALUE)
+            return null;
+
+        ClassBuilder.Code constructor = new ClassBuilder.Code(1, 1);
+        constructor.op(ClassBuilder.ALOAD_0).op(ClassBuilder.INVOKESPECIAL, cls.methodRef("java/lang/Object", "<init>", "()V"));
+        constructor.op(ClassBuilder.RETURN);
+        cls.method(ClassBuilder.ACC_PUBLIC, "<init>", "()V", constructor);
+
+        ClassBuilder.Code invoke = new ClassBuilder.Code(1, 2);
+        invoke.op(ClassBuilder.ALOAD_1).op(ClassBuilder.INVOKESTATIC, cls.methodRef(name, "run", "(" + VM_TYPE + ")V"));
+        invoke.op(ClassBuilder.RETURN);
+        cls.method(ClassBuilder.ACC_PUBLIC, "invoke", "(" + VM_TYPE + ")V", invoke);
+
+        cls.method(ClassBuilder.ACC_STATIC, "run", "(" + VM_TYPE + ")V", body);
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> compiledClass = DEFINE_HIDDEN != null
+                ? ((MethodHandles.Lookup) DEFINE_HIDDEN.invokeExact(lookup, cls.toByteArray())).lookupClass()
+                : lookup.defineClass(cls.toByteArray());
+            return (Compiled) lookup.findConstructor(compiledClass, MethodType.methodType(void.class)).invoke();
+        }
+        catch (Throwable t) {
+            // Anything the JVM won't accept we just keep interpreting
+            return null;
+        }
+    }
+
+    private static MethodHandle defineHidden() {
+        try {
+            // defineHiddenClass(bytes, true), with no ClassOptions (so not
+            // STRONG: the class can go before its loader does)
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            Object options = Array.newInstance(option, 0);
+            MethodHandle define = MethodHandles.publicLookup().findVirtual(MethodHandles.Lookup.class, "defineHiddenClass",
+                MethodType.methodType(MethodHandles.Lookup.class, byte[].class, boolean.class, options.getClass()));
+            return MethodHandles.insertArguments(define, 2, true, options);
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // [lhs, rhs] -> [lhs OP rhs ? 1 : 0]
+    private static void compare(ClassBuilder.Code body, int branch) {
+        int yes = body.newLabel();
+        int done = body.newLabel();
+        body.jump(branch, yes);
+        body.op(ClassBuilder.ICONST_0).jump(ClassBuilder.GOTO, done);
+        body.mark(yes);
+        body.op(ClassBuilder.ICONST_1);
+        body.mark(done);
+    }
+
+    // Move the top count values of the JVM stack onto the VM stack,
+    // bottom one first
+    private static void spill(ClassBuilder.Code body, int count, int scratch, int push) {
+        for (int i = count - 1; i >= 0; i--)
+            body.local(ClassBuilder.ISTORE, scratch + i);
+        for (int i = 0; i < count; i++)
+            body.op(ClassBuilder.ALOAD_0).local(ClassBuilder.ILOAD, scratch + i).op(ClassBuilder.INVOKEVIRTUAL, push);
+    }
+
+    // Before a memory access taking the top count values of the JVM
+    // stack, address first: if the address is out of bounds, move the
+    // below values under them onto the VM stack, as they would be in the
+    // interpreter when it throws, and make the access there, to throw
+    private static void guard(ClassBuilder cls, ClassBuilder.Code body, int count, int below, int scratch, int push, int access) {
+        int address = scratch + below;
+        for (int i = count - 1; i > 0; i--)
+            body.local(ClassBuilder.ISTORE, address + i);
+        int ok = body.newLabel();
+        body.op(ClassBuilder.DUP).op(ClassBuilder.ALOAD_0);
+        body.op(ClassBuilder.INVOKESTATIC, cls.methodRef(MEMORY, "contains", "(I" + VM_TYPE + ")Z"));
+        body.jump(ClassBuilder.IFNE, ok);
+        body.local(ClassBuilder.ISTORE, address);
+        spill(body, below, scratch, push);
+        for (int i = 0; i < count; i++)
+            body.local(ClassBuilder.ILOAD, address + i);
+        body.op(ClassBuilder.ALOAD_0).op(ClassBuilder.INVOKESTATIC, access);
+        body.op(ClassBuilder.ACONST_NULL).op(ClassBuilder.ATHROW);
+        body.mark(ok);
+        for (int i = 1; i < count; i++)
+            body.local(ClassBuilder.ILOAD, address + i);
+    }
+
+    private static void call(ClassBuilder cls, ClassBuilder.Code body, int target, int returnAddress) {
+        body.op(ClassBuilder.ALOAD_0).constant(cls, target).constant(cls, returnAddress);
+        body.op(ClassBuilder.INVOKEVIRTUAL, cls.methodRef(VM, "call", "(II)V"));
+    }
+}
@@ -0,0 +1,88 @@
+package simplevm.vm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs one Program over and over, as many times at once as there are
+ * threads to run it on. The Program is verified and decoded once, and
+ * everything derived from it (threaded code, register code, compiled
+ * functions) is built once and shared; each run gets its own fresh
+ * VirtualMachine, and so its own stack, frames and globals, which nothing
+ * else ever sees.
+ *
+ *     Launcher launcher = new Launcher(Program.load(code), Engine.TIERED);
+ *     ExecutorService pool = Executors.newFixedThreadPool(8);
+ *     CompletableFuture<int[]> result = launcher.submit(pool, 20);
+ *
+ * Any Executor will do, virtual-thread executors included, since a run
+ * never blocks.
+ *
+ * Runs can also share a segment of globals (see Globals), to keep counts
+ * or hand results to each other.
+ */
+public final class Launcher {
+    private final Program program;
+    private final VirtualMachine.Engine engine;
+    private final Globals globals;
+
+    public Launcher(Program program) {
+        this(program, VirtualMachine.Engine.SWITCH);
+    }
+    public Launcher(Program program, VirtualMachine.Engine engine) {
+        this(program, engine, null);
+    }
+    /**
+     * Every run uses globals for its globals and counters; if null, each
+     * gets its own.
+     */
+    public Launcher(Program program, VirtualMachine.Engine engine, Globals globals) {
+        this.program = program;
+        this.engine = engine;
+        this.globals = globals;
+    }
+
+    public Program program() {
+        return program;
+    }
+    public VirtualMachine.Engine engine() {
+        return engine;
+    }
+
+    /**
+     * A VirtualMachine ready to run the program, for callers that want to
+     * set up its state or attach a listener first.
+     */
+    public VirtualMachine newContext() {
+        VirtualMachine.Builder builder = VirtualMachine.builder().engine(engine).sizedFor(program);
+        if (globals != null)
+            builder.globals(globals);
+        return builder.build();
+    }
+
+    /**
+     * Run the program on the calling thread, with arguments pushed onto
+     * the stack first (the first argument deepest), and return what's
+     * left on the stack when it HALTs.
+     */
+    public int[] run(int... arguments) {
+        VirtualMachine vm = newContext();
+        for (int argument : arguments)
+            vm.push(argument);
+        vm.execute(program);
+        return vm.getStack();
+    }
+
+    /** run(arguments), for handing to an ExecutorService. */
+    public Callable<int[]> task(int... arguments) {
+        int[] copy = arguments.clone();
+        return () -> run(copy);
+    }
+
+    /** run(arguments) on executor. */
+    public CompletableFuture<int[]> submit(Executor executor, int... arguments) {
+        int[] copy = arguments.clone();
+        return CompletableFuture.supplyAsync(() -> run(copy), executor);
+    }
+}
@@ -0,0 +1,55 @@
+package simplevm.vm;
+
+/**
+ * Watches a VirtualMachine run: every instruction it executes, every
+ * CALL and RET, and where every jump went. Attach one with
+ * VirtualMachine.setListener() before calling execute(); with nothing
+ * attached, the VM doesn't build or send any events at all.
+ *
+ * Events come from the SWITCH interpreter, which every engine falls back
+ * to while something is listening; compiled or register code that is
+ * already running when tracing is turned on carries on unobserved until
+ * control gets back to the interpreter. Each method does nothing by
+ * default, so listeners only implement the events they want.
+ */
+public interface Listener {
+    /**
+     * The instruction at ip is about to execute; operand is its operand
+     * if it has one (see Bytecode.operands()), 0 if not.
+     */
+    default void instruction(VirtualMachine vm, int ip, int opcode, int operand) { }
+
+    /** The CALL at ip is entering the function at target. */
+    default void call(VirtualMachine vm, int ip, int target) { }
+
+    /** The RET at ip is returning to returnAddress. */
+    default void ret(VirtualMachine vm, int ip, int returnAddress) { }
+
+    /**
+     * The jump at ip was either taken, to target, or fell through to the
+     * next instruction. Unconditional jumps are always taken.
+     */
+    default void branch(VirtualMachine vm, int ip, int target, boolean taken) { }
+
+    /** A listener that passes every event to first, then to second. */
+    static Listener both(Listener first, Listener second) {
+        return new Listener() {
+            public void instruction(VirtualMachine vm, int ip, int opcode, int operand) {
+                first.instruction(vm, ip, opcode, operand);
+                second.instruction(vm, ip, opcode, operand);
+            }
+            public void call(VirtualMachine vm, int ip, int target) {
+                first.call(vm, ip, target);
+                second.call(vm, ip, target);
+            }
+            public void ret(VirtualMachine vm, int ip, int returnAddress) {
+                first.ret(vm, ip, returnAddress);
+                second.ret(vm, ip, returnAddress);
+            }
+            public void branch(VirtualMachine vm, int ip, int target, boolean taken) {
+                first.branch(vm, ip, target, taken);
+                second.branch(vm, ip, target, taken);
+            }
+        };
+    }
+}
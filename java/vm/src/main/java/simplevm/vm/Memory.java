@@ -0,0 +1,152 @@
+package simplevm.vm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * A VirtualMachine's linear memory: a run of int words, addressed from
+ * 0, for data too big for globals and locals. Programs use it through
+ * ALOAD ([address] -> [value]), ASTORE ([address, value] -> []), MSIZE
+ * ([] -> [words]) and MGROW ([delta] -> [size before growing, or -1]);
+ * the host, through load(), store(), size() and grow().
+ *
+ * The words live off the Java heap, in a direct buffer, so megabytes of
+ * them add nothing to what the garbage collector has to trace or copy.
+ * Memory starts out as big as the VM was built with (see
+ * Builder.memory()), empty by default, and while a program runs only
+ * ever grows, by MGROW (or grow()); a program has to grow it to whatever
+ * size it needs before using it. Growing reserves twice what's needed, so a program growing
+ * a word at a time copies its memory only every so often. New words are
+ * zero. Nothing is allocated while memory is empty, so VMs that never
+ * use it don't pay for it.
+ *
+ * Every access is checked, on every engine, and one outside memory
+ * throws VirtualMachine.Exception. The check is the buffer's own, a
+ * single compare against its limit, so nothing is checked twice. The
+ * verifier doesn't hoist any of these checks out: nothing it can see
+ * proves an address in bounds, since an MGROW may fail (leaving memory
+ * as it was) and restoring a snapshot can shrink it. Checking a constant address against the
+ * memory a program will need before it runs isn't sound either, since
+ * the access may be on a path that never runs.
+ *
+ * Snapshots include memory, and restoring one sets it to the snapshot's
+ * size and words.
+ */
+public final class Memory {
+    // Shared by every Memory that hasn't grown yet (a direct buffer
+    // costs a native allocation and a Cleaner, even at size 0)
+    private static final IntBuffer EMPTY = IntBuffer.allocate(0);
+
+    private final int max;
+    // Absolute accesses only, so the position never matters; the limit
+    // is the size, and the capacity past it is zeroed and waiting
+    private IntBuffer words;
+
+    Memory(int initial, int max) {
+        this.max = max;
+        this.words = initial == 0 ? EMPTY : allocate(initial);
+    }
+
+    /** How many words there are now. */
+    public int size() {
+        return words.limit();
+    }
+    /** The most there can ever be. */
+    public int max() {
+        return max;
+    }
+
+    public int load(int address) {
+        try {
+            return words.get(address);
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw outOfBounds(address);
+        }
+    }
+    public void store(int address, int value) {
+        try {
+            words.put(address, value);
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw outOfBounds(address);
+        }
+    }
+    // Whether load() and store() would take address
+    boolean contains(int address) {
+        return address >= 0 && address < size();
+    }
+    private VirtualMachine.Exception outOfBounds(int address) {
+        return new VirtualMachine.Exception("Memory address " + address + " out of bounds: " + size() + " words");
+    }
+
+    /**
+     * Add delta words, and return how many there were before; or, if
+     * delta is negative or would take memory past its max, leave it as
+     * it is and return -1.
+     */
+    public int grow(int delta) {
+        int size = size();
+        if (delta < 0 || (long) size + delta > max)
+            return -1;
+        resize(size + delta);
+        return size;
+    }
+    private void resize(int size) {
+        if (size == 0)
+            return;
+        if (size > words.capacity()) {
+            IntBuffer grown = allocate((int) Math.min(max, Math.max(size, 2L * words.capacity())));
+            grown.put(words.duplicate().position(0));
+            words = grown;
+        }
+        words.limit(size);
+    }
+    // Every word, and making them words, for Snapshot
+    int[] toArray() {
+        int[] copy = new int[size()];
+        words.duplicate().position(0).get(copy);
+        return copy;
+    }
+    // (VirtualMachine.restore() has already checked it's no more than max)
+    void restore(int[] contents) {
+        if (contents.length == 0) {
+            words = EMPTY;
+            return;
+        }
+        if (contents.length > words.capacity()) {
+            words = allocate(contents.length);
+        }
+        else {
+            // Keep what's past the new size zeroed
+            for (int address = contents.length; address < size(); address++)
+                words.put(address, 0);
+        }
+        words.limit(contents.length);
+        words.duplicate().position(0).put(contents);
+    }
+
+    private static IntBuffer allocate(int size) {
+        // (direct buffers come zeroed)
+        return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    // What the memory opcodes do, for compiled code to call
+    //
+    static int load(int address, VirtualMachine vm) {
+        return vm.memory.load(address);
+    }
+    static void store(int address, int value, VirtualMachine vm) {
+        vm.memory.store(address, value);
+    }
+    static boolean contains(int address, VirtualMachine vm) {
+        return vm.memory.contains(address);
+    }
+    static int size(VirtualMachine vm) {
+        return vm.memory.size();
+    }
+    static int grow(int delta, VirtualMachine vm) {
+        return vm.memory.grow(delta);
+    }
+}
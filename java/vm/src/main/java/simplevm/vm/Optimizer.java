@@ -0,0 +1,252 @@
+package simplevm.vm;
+
+import java.util.Arrays;
+
+import static simplevm.vm.Bytecode.*;
+
+/**
+ * Rewrites code to do the same with less, ahead of time:
+ *
+ *   - CONST a; CONST b; (ADD, SUB, MUL, DIV, MOD, or a comparison)
+ *     becomes CONST (a op b), and CONST a; ABS/NEG becomes CONST |a| or
+ *     CONST -a, repeatedly, so whole constant expressions fold down to
+ *     one CONST (division by a constant 0 is left to fail at run time);
+ *   - CONST a; POP goes away altogether;
+ *   - CONST a; JZ/JNZ t becomes JMP t if the branch is always taken,
+ *     and goes away if it never is, as does a JMP to the very next
+ *     instruction;
+ *   - instructions nothing can reach any more are removed;
+ *
+ * and then lays the code out again, relocating every jump and call (and
+ * turning RJMPs into JMPs). A sequence is only folded if nothing jumps
+ * into the middle of it.
+ *
+ * Code that jumps through JMPI or RJMPI is returned as it is: addresses
+ * it computes at run time can't be relocated.
+ */
+public final class Optimizer {
+    private Optimizer() { }
+
+    /** The optimized version of code; throws if code doesn't verify. */
+    public static int[] optimize(int[] code) {
+        Program program = Program.load(code);
+        int length = program.length();
+        int[] verified = Arrays.copyOf(program.code, length);
+        for (int ip = 0; ip < length; ip += 1 + Bytecode.operands(verified[ip])) {
+            if (verified[ip] == JMPI || verified[ip] == RJMPI)
+                return code.clone();
+        }
+        return new Pass(verified).run();
+    }
+
+    /*
+     * The code as a list of instructions, where jumps and CALLs name the
+     * instruction they go to by index (count meaning the end of the
+     * code), and instructions are removed by marking them dead.
+     */
+    private static final class Pass {
+        private final int count;
+        private final int[] ops;
+        private final int[] args;
+        private final boolean[] dead;
+        private final int[] addresses;      // (once laid out)
+
+        Pass(int[] code) {
+            int n = 0;
+            int[] index = new int[code.length + 1];
+            for (int ip = 0; ip < code.length; ip += 1 + Bytecode.operands(code[ip]))
+                index[ip] = n++;
+            index[code.length] = n;
+            count = n;
+            ops = new int[n];
+            args = new int[n];
+            dead = new boolean[n];
+            addresses = new int[n + 1];
+            for (int ip = 0, i = 0; ip < code.length; ip += 1 + Bytecode.operands(code[ip]), i++) {
+                ops[i] = code[ip];
+                args[i] = Bytecode.operands(code[ip]) > 0 ? code[ip + 1] : 0;
+                if (isJump(ops[i]))
+                    args[i] = index[args[i]];
+            }
+        }
+
+        int[] run() {
+            boolean changed = true;
+            while (changed) {
+                boolean[] targets = targets();
+                changed = simplify(targets);
+                changed |= removeUnreachable();
+            }
+            return layOut();
+        }
+
+        // Which instructions something jumps or calls to
+        private boolean[] targets() {
+            boolean[] targets = new boolean[count + 1];
+            targets[0] = true;
+            for (int i = 0; i < count; i++) {
+                if (!dead[i] && isJump(ops[i]))
+                    targets[target(i)] = true;
+            }
+            return targets;
+        }
+        // Where the jump at i goes: if to a dead instruction, on to the
+        // next live one
+        private int target(int i) {
+            int target = args[i];
+            return (target < count && dead[target]) ? next(target) : target;
+        }
+
+        /*
+         * One pass of folding, keeping a stack of the live instructions
+         * seen since the last one something jumps to, so that a folded
+         * CONST can fold again with what follows it.
+         */
+        private boolean simplify(boolean[] targets) {
+            boolean changed = false;
+            int[] seen = new int[count];
+            int depth = 0;
+            for (int i = 0; i < count; i++) {
+                if (dead[i])
+                    continue;
+                if (targets[i])
+                    depth = 0;
+                int op = ops[i];
+                int top = depth > 0 ? seen[depth - 1] : -1;
+                int below = depth > 1 ? seen[depth - 2] : -1;
+                boolean constTop = top >= 0 && ops[top] == CONST;
+
+                if (constTop && below >= 0 && ops[below] == CONST && isBinary(op)
+                        && !((op == DIV || op == MOD) && args[top] == 0)) {
+                    args[below] = fold(op, args[below], args[top]);
+                    dead[top] = dead[i] = true;
+                    depth--;
+                    changed = true;
+                    continue;
+                }
+                if (constTop && (op == ABS || op == NEG)) {
+                    args[top] = (op == ABS) ? Math.abs(args[top]) : -args[top];
+                    dead[i] = true;
+                    changed = true;
+                    continue;
+                }
+                if (constTop && op == POP) {
+                    dead[top] = dead[i] = true;
+                    depth--;
+                    changed = true;
+                    continue;
+                }
+                if (constTop && (op == JZ || op == JNZ)) {
+                    boolean taken = (op == JZ) == (args[top] == 0);
+                    if (taken) {
+                        // Keep the CONST's place, in case something jumps to it
+                        ops[top] = JMP;
+                        args[top] = args[i];
+                        dead[i] = true;
+                    }
+                    else {
+                        dead[top] = dead[i] = true;
+                    }
+                    depth = 0;
+                    changed = true;
+                    continue;
+                }
+                if (op == JMP && next(i) == target(i)) {
+                    dead[i] = true;
+                    changed = true;
+                    continue;
+                }
+                seen[depth++] = i;
+            }
+            return changed;
+        }
+
+        // The next live instruction after i (or count, for the end)
+        private int next(int i) {
+            for (i++; i < count && dead[i]; i++)
+                ;
+            return i;
+        }
+
+        private boolean removeUnreachable() {
+            boolean[] reached = new boolean[count + 1];
+            int[] pending = new int[count + 1];
+            int pendingCount = 0;
+            pending[pendingCount++] = next(-1);
+            reached[pending[0]] = true;
+            while (pendingCount > 0) {
+                int i = pending[--pendingCount];
+                if (i == count)
+                    continue;
+                int op = ops[i];
+                int first = (op == JMP || op == TAILCALL || op == RET || op == HALT || op == FATAL) ? -1 : next(i);
+                int second = isJump(op) ? target(i) : -1;
+                for (int successor : new int[] { first, second }) {
+                    if (successor >= 0 && !reached[successor]) {
+                        reached[successor] = true;
+                        pending[pendingCount++] = successor;
+                    }
+                }
+            }
+            boolean changed = false;
+            for (int i = 0; i < count; i++) {
+                if (!dead[i] && !reached[i]) {
+                    dead[i] = true;
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        private int[] layOut() {
+            // Dead instructions' addresses are the next live one's
+            int length = 0;
+            for (int i = 0; i < count; i++) {
+                addresses[i] = length;
+                if (!dead[i])
+                    length += 1 + Bytecode.operands(ops[i]);
+            }
+            addresses[count] = length;
+            int[] code = new int[length];
+            for (int i = 0; i < count; i++) {
+                if (dead[i])
+                    continue;
+                int ip = addresses[i];
+                code[ip] = ops[i];
+                if (Bytecode.operands(ops[i]) > 0)
+                    code[ip + 1] = isJump(ops[i]) ? addresses[args[i]] : args[i];
+            }
+            return code;
+        }
+    }
+
+    // (Program.load has already turned RJMPs into JMPs)
+    private static boolean isJump(int op) {
+        return op == JMP || op == JZ || op == JNZ || op == CALL || op == TAILCALL;
+    }
+    private static boolean isBinary(int op) {
+        switch (op) {
+            case ADD: case SUB: case MUL: case DIV: case MOD:
+            case EQ: case NEQ: case GT: case LT: case GTE: case LTE:
+                return true;
+            default:
+                return false;
+        }
+    }
+    static int fold(int op, int lhs, int rhs) {
+        switch (op) {
+            case ADD: return lhs + rhs;
+            case SUB: return lhs - rhs;
+            case MUL: return lhs * rhs;
+            case DIV: return lhs / rhs;
+            case MOD: return lhs % rhs;
+            case EQ: return lhs == rhs ? 1 : 0;
+            case NEQ: return lhs != rhs ? 1 : 0;
+            case GT: return lhs > rhs ? 1 : 0;
+            case LT: return lhs < rhs ? 1 : 0;
+            case GTE: return lhs >= rhs ? 1 : 0;
+            case LTE: return lhs <= rhs ? 1 : 0;
+            default: throw new VirtualMachine.Exception("Should never happen");
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package simplevm.vm;
+
+/**
+ * Where a VirtualMachine's output goes: the values PRINT prints, and the
+ * lines DUMP and TRACE write (unless setTraceOutput() sends those
+ * elsewhere). See VirtualMachine.setOutput().
+ *
+ * Implementations may hold on to output for a while; the VM flushes its
+ * output whenever it stops running (HALT, an exception, the end of a
+ * budget, or after PRINT or DUMP in immediate mode).
+ */
+public interface Output {
+    /** A value, as PRINT prints it: in decimal, on a line of its own. */
+    void print(int value);
+    /** A line of text. */
+    void line(String text);
+    /** Send on anything held so far. */
+    void flush();
+}
@@ -0,0 +1,472 @@
+package simplevm.vm;
+
+import java.util.Arrays;
+
+import static simplevm.vm.Bytecode.*;
+
+/**
+ * Bytecode packed an instruction to a word: the opcode in the low 8 bits
+ * and its operand, if it has one, in the high 24, signed. So
+ *
+ *     CONST 5; LOAD 0; ADD; STORE 0
+ *
+ * is four words rather than seven, and running it reads one word per
+ * instruction instead of two. An operand that doesn't fit in 24 bits
+ * goes in the word after, with WIDE in the operand field to say so;
+ * instructions without operands have 0 there.
+ *
+ * Jump and CALL targets are packed addresses, and RJMP offsets count
+ * packed words, so pack() and unpack() move them as they go. JMPI and
+ * RJMPI can't be packed: the addresses they jump to are worked out as
+ * the program runs, from values nothing can tell apart from any others.
+ *
+ * load() verifies packed code (unpacking it, so exactly what
+ * Program.load() accepts can be packed) for VirtualMachine.execute() to
+ * run. The SWITCH engine runs the packed words directly; the others run
+ * the code unpacked. Listeners see packed addresses, as do DUMP and
+ * TRACE. Packed code always runs to the end: it can't be run to a
+ * budget, or resumed.
+ */
+public final class PackedCode {
+    /** In an operand field, says the operand is in the next word. */
+    public static final int WIDE = -(1 << 23);
+
+    // The packed words, with a HALT appended, and every CALL straight
+    // before a RET made a TAILCALL (as Program.load() does)
+    final int[] words;
+    // Locals needed by the function entered at each packed address;
+    // only meaningful at 0 and at CALL targets
+    final int[] frameSizes;
+    // The code unpacked and loaded, for the other engines
+    final Program program;
+
+    private PackedCode(int[] words, int[] frameSizes, Program program) {
+        this.words = words;
+        this.frameSizes = frameSizes;
+        this.program = program;
+    }
+
+    /** Length of the packed code, in words. */
+    public int length() {
+        return words.length - 1;
+    }
+
+    // Whether value fits in an operand field (and isn't WIDE)
+    private static boolean fits(int value) {
+        return value > WIDE && value < (1 << 23);
+    }
+
+    /**
+     * Pack code, which Program.load() has to accept, and which can't use
+     * JMPI or RJMPI; throws VirtualMachine.Exception if it doesn't.
+     */
+    public static int[] pack(int[] code) {
+        Program.load(code);
+        int length = code.length;
+        for (int ip = 0; ip < length; ip += 1 + Bytecode.operands(code[ip])) {
+            if (code[ip] == JMPI || code[ip] == RJMPI)
+                throw new VirtualMachine.Exception("Cannot pack " + name(code[ip]) + " at " + ip + ": its target isn't known until it runs");
+        }
+
+        // Lay the code out, then widen any jump whose target has moved
+        // out of reach, and so on until nothing more needs widening
+        // (widening only ever moves targets further away, so this stops)
+        boolean[] wide = new boolean[length];
+        int[] addresses = new int[length + 1];
+        for (boolean widened = true; widened; ) {
+            int at = 0;
+            for (int ip = 0; ip < length; ip += 1 + Bytecode.operands(code[ip])) {
+                addresses[ip] = at;
+                at += wide[ip] ? 2 : 1;
+            }
+            addresses[length] = at;
+            widened = false;
+            for (int ip = 0; ip < length; ip += 1 + Bytecode.operands(code[ip])) {
+                if (Bytecode.operands(code[ip]) > 0 && !wide[ip] && !fits(operand(code, ip, addresses))) {
+                    wide[ip] = true;
+                    widened = true;
+                }
+            }
+        }
+
+        int[] packed = new int[addresses[length]];
+        for (int ip = 0; ip < length; ip += 1 + Bytecode.operands(code[ip])) {
+            int p = addresses[ip];
+            if (Bytecode.operands(code[ip]) == 0) {
+                packed[p] = code[ip];
+            }
+            else if (wide[ip]) {
+                packed[p] = WIDE << 8 | code[ip];
+                packed[p + 1] = operand(code, ip, addresses);
+            }
+            else {
+                packed[p] = operand(code, ip, addresses) << 8 | code[ip];
+            }
+        }
+        return packed;
+    }
+    // The operand of the instruction at ip, as packed
+    private static int operand(int[] code, int ip, int[] addresses) {
+        switch (code[ip]) {
+            case JMP:
+            case JZ:
+            case JNZ:
+            case CALL:
+            case TAILCALL:
+                return addresses[code[ip + 1]];
+            case RJMP:
+                return addresses[ip + code[ip + 1]] - addresses[ip];
+            default:
+                return code[ip + 1];
+        }
+    }
+
+    /**
+     * The code packed was packed from. Only the packing is checked; throws
+     * VirtualMachine.Exception if an opcode is unrecognized (or is JMPI
+     * or RJMPI), an operand is missing or where there shouldn't be one,
+     * or a jump lands somewhere other than the start of an instruction.
+     */
+    public static int[] unpack(int[] packed) {
+        return unpack(packed, new int[packed.length + 1]);
+    }
+    // Fills in originals with the unpacked address of the instruction at
+    // each packed address (or -1 where none starts), and of the end
+    private static int[] unpack(int[] packed, int[] originals) {
+        int length = packed.length;
+        Arrays.fill(originals, -1);
+        int at = 0;
+        for (int p = 0; p < length; ) {
+            int opcode = packed[p] & 0xFF;
+            int field = packed[p] >> 8;
+            int width = Bytecode.operands(opcode);
+            if (width < 0 || opcode == JMPI || opcode == RJMPI)
+                throw new VirtualMachine.Exception("Unrecognized packed opcode " + opcode + " at " + p);
+            if (width == 0 && field != 0)
+                throw new VirtualMachine.Exception("Operand on " + name(opcode) + " at " + p);
+            if (field == WIDE && p + 1 == length)
+                throw new VirtualMachine.Exception("Missing wide operand for " + name(opcode) + " at " + p);
+            originals[p] = at;
+            at += 1 + width;
+            p += field == WIDE ? 2 : 1;
+        }
+        originals[length] = at;
+
+        int[] code = new int[at];
+        for (int p = 0; p < length; ) {
+            int opcode = packed[p] & 0xFF;
+            int operand = packed[p] >> 8;
+            int next = p + 1;
+            if (operand == WIDE)
+                operand = packed[next++];
+            int ip = originals[p];
+            code[ip] = opcode;
+            switch (opcode) {
+                case JMP:
+                case JZ:
+                case JNZ:
+                case CALL:
+                case TAILCALL:
+                    code[ip + 1] = original(originals, p, operand);
+                    break;
+                case RJMP:
+                    code[ip + 1] = original(originals, p, p + operand) - ip;
+                    break;
+                default:
+                    if (Bytecode.operands(opcode) > 0)
+                        code[ip + 1] = operand;
+                    break;
+            }
+            p = next;
+        }
+        return code;
+    }
+    private static int original(int[] originals, int p, int target) {
+        if (target < 0 || target >= originals.length || originals[target] < 0)
+            throw new VirtualMachine.Exception("Jump at " + p + " to " + target + ", which is not an instruction");
+        return originals[target];
+    }
+
+    /**
+     * Verify packed code, as unpack() and then Program.load() would;
+     * throws VirtualMachine.Exception describing the first problem found.
+     * (Problems Program.load() finds are at unpacked addresses.)
+     */
+    public static PackedCode load(int[] packed) {
+        int length = packed.length;
+        int[] originals = new int[length + 1];
+        Program program = Program.load(unpack(packed, originals));
+
+        int[] words = Arrays.copyOf(packed, length + 1);
+        words[length] = HALT;
+        int[] frameSizes = new int[length + 1];
+        frameSizes[0] = program.frameSizes[0];
+        for (int p = 0; p < length; p++) {
+            if (originals[p] < 0)
+                continue;
+            frameSizes[p] = program.frameSizes[originals[p]];
+            if (program.code[originals[p]] == TAILCALL)
+                words[p] = (words[p] & ~0xFF) | TAILCALL;
+        }
+        return new PackedCode(words, frameSizes, program);
+    }
+
+    // Execution
+    //
+    // Much as VirtualMachine.interpret(), but decoding each instruction
+    // out of its word, and keeping ip to ourselves until we stop.
+    void run(VirtualMachine vm) {
+        int[] words = this.words;
+        int[] frameSizes = this.frameSizes;
+        Listener listener = vm.listener;
+        int ip = 0;
+        try {
+            for (;;) {
+                int word = words[ip];
+                int opcode = word & 0xFF;
+                int operand = word >> 8;
+                int next = ip + 1;
+                if (operand == WIDE)
+                    operand = words[next++];
+                if (listener != null)
+                    listener.instruction(vm, ip, opcode, operand);
+                switch (opcode) {
+                    case HALT:
+                        return;
+
+                    case NOP:
+                    case YIELD:
+                        ip = next;
+                        break;
+                    case DUMP:
+                        vm.ip = ip;
+                        vm.dump();
+                        ip = next;
+                        break;
+                    case TRACE:
+                        vm.trace(!vm.trace);
+                        listener = vm.listener;
+                        ip = next;
+                        break;
+                    case PRINT:
+                        vm.print(vm.pop());
+                        ip = next;
+                        break;
+                    case FATAL:
+                        throw vm.fatal(ip);
+                    case CALLHOST:
+                        vm.callHost(operand);
+                        ip = next;
+                        break;
+
+                    // Stack manipulation
+                    case CONST:
+                        vm.push(operand);
+                        ip = next;
+                        break;
+                    case POP:
+                        vm.pop();
+                        ip = next;
+                        break;
+
+                    // Math
+                    case ADD:
+                    {
+                        int rhs = vm.pop();
+                        vm.push(vm.pop() + rhs);
+                        ip = next;
+                        break;
+                    }
+                    case SUB:
+                    {
+                        int rhs = vm.pop();
+                        vm.push(vm.pop() - rhs);
+                        ip = next;
+                        break;
+                    }
+                    case MUL:
+                    {
+                        int rhs = vm.pop();
+                        vm.push(vm.pop() * rhs);
+                        ip = next;
+                        break;
+                    }
+                    case DIV:
+                    {
+                        int rhs = vm.pop();
+                        vm.push(vm.pop() / rhs);
+                        ip = next;
+                        break;
+                    }
+                    case MOD:
+                    {
+                        int rhs = vm.pop();
+                        vm.push(vm.pop() % rhs);
+                        ip = next;
+                        break;
+                    }
+                    case ABS:
+                        vm.push(Math.abs(vm.pop()));
+                        ip = next;
+                        break;
+                    case NEG:
+                        vm.push(- vm.pop());
+                        ip = next;
+                        break;
+
+                    // Comparison
+                    case EQ:
+                    {
+                        int rhs = vm.pop();
+                        vm.push(vm.pop() == rhs ? 1 : 0);
+                        ip = next;
+                        break;
+                    }
+                    case NEQ:
+                    {
+                        int rhs = vm.pop();
+                        vm.push(vm.pop() != rhs ? 1 : 0);
+                        ip = next;
+                        break;
+                    }
+                    case GT:
+                    {
+                        int rhs = vm.pop();
+                        vm.push(vm.pop() > rhs ? 1 : 0);
+                        ip = next;
+                        break;
+                    }
+                    case LT:
+                    {
+                        int rhs = vm.pop();
+                        vm.push(vm.pop() < rhs ? 1 : 0);
+                        ip = next;
+                        break;
+                    }
+                    case GTE:
+                    {
+                        int rhs = vm.pop();
+                        vm.push(vm.pop() >= rhs ? 1 : 0);
+                        ip = next;
+                        break;
+                    }
+                    case LTE:
+                    {
+                        int rhs = vm.pop();
+                        vm.push(vm.pop() <= rhs ? 1 : 0);
+                        ip = next;
+                        break;
+                    }
+
+                    // Branching (there are no JMPIs or RJMPIs)
+                    case JMP:
+                        if (listener != null) listener.branch(vm, ip, operand, true);
+                        ip = operand;
+                        break;
+                    case RJMP:
+                        if (listener != null) listener.branch(vm, ip, ip + operand, true);
+                        ip += operand;
+                        break;
+                    case JZ:
+                    {
+                        boolean taken = vm.pop() == 0;
+                        if (listener != null) listener.branch(vm, ip, operand, taken);
+                        ip = taken ? operand : next;
+                        break;
+                    }
+                    case JNZ:
+                    {
+                        boolean taken = vm.pop() != 0;
+                        if (listener != null) listener.branch(vm, ip, operand, taken);
+                        ip = taken ? operand : next;
+                        break;
+                    }
+
+                    // Globals
+                    case GLOAD:
+                        vm.push(vm.globals[operand]);
+                        ip = next;
+                        break;
+                    case GSTORE:
+                        vm.globals[operand] = vm.pop();
+                        ip = next;
+                        break;
+                    case GCAS:
+                    {
+                        int update = vm.pop();
+                        int expected = vm.pop();
+                        vm.push(vm.segment.compareAndSet(operand, expected, update) ? 1 : 0);
+                        ip = next;
+                        break;
+                    }
+                    case GADD:
+                        vm.push(vm.segment.getAndAdd(operand, vm.pop()));
+                        ip = next;
+                        break;
+                    case CADD:
+                        vm.segment.add(operand, vm.pop());
+                        ip = next;
+                        break;
+                    case CLOAD:
+                        vm.push(vm.segment.sum(operand));
+                        ip = next;
+                        break;
+
+                    // Memory
+                    case ALOAD:
+                        vm.push(vm.memory.load(vm.pop()));
+                        ip = next;
+                        break;
+                    case ASTORE:
+                    {
+                        int value = vm.pop();
+                        vm.memory.store(vm.pop(), value);
+                        ip = next;
+                        break;
+                    }
+                    case MSIZE:
+                        vm.push(vm.memory.size());
+                        ip = next;
+                        break;
+                    case MGROW:
+                        vm.push(vm.memory.grow(vm.pop()));
+                        ip = next;
+                        break;
+
+                    // Functions
+                    case CALL:
+                        if (listener != null) listener.call(vm, ip, operand);
+                        vm.pushFrame(next, frameSizes[operand]);
+                        ip = operand;
+                        break;
+                    case TAILCALL:
+                        if (listener != null) listener.call(vm, ip, operand);
+                        vm.reuseFrame(frameSizes[operand]);
+                        ip = operand;
+                        break;
+                    case RET:
+                    {
+                        int returnAddress = vm.returnAddress();
+                        if (returnAddress == -1)
+                            throw new VirtualMachine.Exception("Cannot RET from topmost level");
+                        if (listener != null) listener.ret(vm, ip, returnAddress);
+                        vm.popFrame();
+                        ip = returnAddress;
+                        break;
+                    }
+                    case LOAD:
+                        vm.push(vm.locals[vm.bp + operand]);
+                        ip = next;
+                        break;
+                    case STORE:
+                        vm.locals[vm.bp + operand] = vm.pop();
+                        ip = next;
+                        break;
+                }
+            }
+        }
+        finally {
+            vm.ip = ip;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package simplevm.vm;
+
+import java.util.Arrays;
+
+/**
+ * Counts what a VirtualMachine does: how often each opcode and each
+ * instruction address executes, how often each function is called, and
+ * which way each JZ/JNZ goes. Attach it as the VM's listener:
+ *
+ *     Profiler profiler = new Profiler();
+ *     vm.setListener(profiler);
+ *     vm.execute(program);
+ *     System.out.print(profiler.report());
+ *
+ * Counting is a few array increments per instruction, but while it's
+ * attached the VM interprets everything (see Listener), so TIERED and
+ * REGISTER run at SWITCH speed. Addresses are those of whatever program
+ * ran; profile one program per Profiler, or reset() in between.
+ */
+public final class Profiler implements Listener {
+    // Opcodes are all below 64 (see Bytecode)
+    private final long[] opcodes = new long[64];
+    // Indexed by address, grown as we see higher ones
+    private long[] instructions = new long[256];
+    private long[] calls = new long[0];
+    private long[] taken = new long[0];
+    private long[] notTaken = new long[0];
+    // The opcode we last saw, to tell conditional branches from the rest
+    private int opcode;
+
+    public void instruction(VirtualMachine vm, int ip, int opcode, int operand) {
+        this.opcode = opcode;
+        opcodes[opcode]++;
+        if (ip >= instructions.length)
+            instructions = grow(instructions, ip);
+        instructions[ip]++;
+    }
+    public void call(VirtualMachine vm, int ip, int target) {
+        if (target >= calls.length)
+            calls = grow(calls, target);
+        calls[target]++;
+    }
+    public void branch(VirtualMachine vm, int ip, int target, boolean wasTaken) {
+        if (opcode != Bytecode.JZ && opcode != Bytecode.JNZ)
+            return;
+        if (ip >= taken.length) {
+            taken = grow(taken, ip);
+            notTaken = grow(notTaken, ip);
+        }
+        if (wasTaken)
+            taken[ip]++;
+        else
+            notTaken[ip]++;
+    }
+    private static long[] grow(long[] counts, int index) {
+        return Arrays.copyOf(counts, Math.max(counts.length * 2, index + 1));
+    }
+
+    /** How many times opcode executed. */
+    public long executions(int opcode) {
+        return opcode >= 0 && opcode < opcodes.length ? opcodes[opcode] : 0;
+    }
+    /** How many times the instruction at ip executed. */
+    public long executionsAt(int ip) {
+        return ip >= 0 && ip < instructions.length ? instructions[ip] : 0;
+    }
+    /** How many times the function at target was CALLed. */
+    public long calls(int target) {
+        return target >= 0 && target < calls.length ? calls[target] : 0;
+    }
+    /** How many times the JZ/JNZ at ip jumped. */
+    public long taken(int ip) {
+        return ip >= 0 && ip < taken.length ? taken[ip] : 0;
+    }
+    /** How many times the JZ/JNZ at ip fell through. */
+    public long notTaken(int ip) {
+        return ip >= 0 && ip < notTaken.length ? notTaken[ip] : 0;
+    }
+    /** How many instructions executed in all. */
+    public long total() {
+        long total = 0;
+        for (long count : opcodes)
+            total += count;
+        return total;
+    }
+
+    public void reset() {
+        Arrays.fill(opcodes, 0);
+        Arrays.fill(instructions, 0);
+        Arrays.fill(calls, 0);
+        Arrays.fill(taken, 0);
+        Arrays.fill(notTaken, 0);
+    }
+
+    /**
+     * A printable summary: the opcode mix, the hottest addresses, every
+     * function called and every conditional branch, busiest first.
+     */
+    public String report() {
+        return report(10);
+    }
+    public String report(int hottest) {
+        long total = total();
+        StringBuilder out = new StringBuilder();
+        out.append("SimpleVM PROFILE").append('\n');
+        out.append("================").append('\n');
+        out.append("Instructions executed: ").append(total).append('\n');
+
+        out.append("Opcodes:").append('\n');
+        for (int op : busiest(opcodes, opcodes.length)) {
+            out.append(String.format("  %-8s %12d  %5.1f%%%n", Bytecode.name(op), opcodes[op], 100.0 * opcodes[op] / total));
+        }
+
+        out.append("Hottest addresses:").append('\n');
+        for (int ip : busiest(instructions, hottest)) {
+            out.append(String.format("  %6d %12d  %5.1f%%%n", ip, instructions[ip], 100.0 * instructions[ip] / total));
+        }
+
+        out.append("Calls:").append('\n');
+        for (int target : busiest(calls, calls.length)) {
+            out.append(String.format("  to %-6d %12d%n", target, calls[target]));
+        }
+
+        out.append("Branches (taken / not taken):").append('\n');
+        long[] branches = new long[taken.length];
+        for (int ip = 0; ip < branches.length; ip++)
+            branches[ip] = taken[ip] + notTaken[ip];
+        for (int ip : busiest(branches, branches.length)) {
+            out.append(String.format("  %6d %12d / %-12d%n", ip, taken[ip], notTaken[ip]));
+        }
+        return out.toString();
+    }
+
+    // The indexes of the (up to) limit largest non-zero counts, largest
+    // first
+    private static int[] busiest(long[] counts, int limit) {
+        int found = 0;
+        for (long count : counts) {
+            if (count > 0)
+                found++;
+        }
+        Integer[] indexes = new Integer[found];
+        found = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0)
+                indexes[found++] = i;
+        }
+        Arrays.sort(indexes, (a, b) -> Long.compare(counts[b], counts[a]));
+        int[] result = new int[Math.min(limit, indexes.length)];
+        for (int i = 0; i < result.length; i++)
+            result[i] = indexes[i];
+        return result;
+    }
+}
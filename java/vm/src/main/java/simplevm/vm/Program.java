@@ -0,0 +1,408 @@
+package simplevm.vm;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import static simplevm.vm.Bytecode.*;
+
+/**
+ * A bytecode program that has been verified and decoded, ready for
+ * VirtualMachine to run.
+ *
+ * Loading makes one pass over the code and rejects it if any opcode is
+ * unrecognized, any operand is missing, any JMP/RJMP/JZ/JNZ/CALL lands
+ * somewhere other than the start of an instruction, or any global or
+ * local index is negative. Everything that passes can then be run
+ * without re-checking it on every instruction.
+ *
+ * Loading also turns every CALL followed straight away by a RET into a
+ * TAILCALL: the callee runs in the caller's frame and returns straight
+ * to the caller's caller, so a function that ends by calling another
+ * (or itself) doesn't leave a frame behind it, and recursion that way
+ * runs in constant space. (The RET stays where it was, in case anything
+ * jumps to it.)
+ *
+ * A Program never changes once loaded, and any number of VirtualMachines
+ * may run it at once, on as many threads; what the engines derive from
+ * it is built on first use and shared between them all. See Launcher.
+ */
+public final class Program {
+    // The most locals a single frame may use
+    public static final int MAX_LOCALS = 1 << 16;
+
+    // The decoded code: the original instructions at their original
+    // addresses, with RJMPs resolved into JMPs and a HALT appended so
+    // running off the end needs no check of its own.
+    final int[] code;
+    // What the SWITCH interpreter runs: the same as code, unless this
+    // Program came from fuse(), in which case it has superinstructions
+    final int[] dispatch;
+    final int fusedSites;
+    // Which addresses start an instruction (code.length included, since
+    // jumping there just halts); only dynamic jumps need this at runtime
+    final boolean[] instructions;
+    // Locals needed by the function entered at each address; only
+    // meaningful at 0 and at CALL targets
+    final int[] frameSizes;
+    // How many globals and counters the program touches
+    final int globalCount;
+    final int counterCount;
+
+    // The THREADED engine's translation, made the first time it's needed
+    private volatile ThreadedCode threaded;
+    // The TIERED engine's call counts and compiled functions, likewise
+    private volatile Jit jit;
+    // The REGISTER engine's translation, or RegisterCode.NONE if the
+    // program can't be translated
+    private volatile RegisterCode registers;
+    // See stackHint(); -1 until worked out
+    private volatile int stackHint = -1;
+
+    private Program(int[] code, int[] dispatch, int fusedSites, boolean[] instructions, int[] frameSizes, int globalCount, int counterCount) {
+        this.code = code;
+        this.dispatch = dispatch;
+        this.fusedSites = fusedSites;
+        this.instructions = instructions;
+        this.frameSizes = frameSizes;
+        this.globalCount = globalCount;
+        this.counterCount = counterCount;
+    }
+
+    /** Length of the original code, in words. */
+    public int length() {
+        return code.length - 1;
+    }
+
+    /**
+     * A copy of this Program in which common instruction sequences
+     * (counting loops, compare-and-branch, constant arithmetic) have been
+     * fused into superinstructions, so the SWITCH and TIERED engines
+     * dispatch fewer times running it. The other engines run it just as
+     * they would this one.
+     */
+    public Program fuse() {
+        if (dispatch != code)
+            return this;
+        int[] fused = code.clone();
+        int sites = Superinstructions.fuse(fused);
+        return new Program(code, fused, sites, instructions, frameSizes, globalCount, counterCount);
+    }
+
+    /** How many sites fuse() fused; 0 for a Program that wasn't fused. */
+    public int fusedSites() {
+        return fusedSites;
+    }
+
+    ThreadedCode threaded() {
+        // Two threads racing here may both translate; either result is fine
+        ThreadedCode result = threaded;
+        if (result == null) {
+            result = ThreadedCode.compile(this);
+            threaded = result;
+        }
+        return result;
+    }
+
+    RegisterCode registers() {
+        // As with threaded(), a race just means translating twice
+        RegisterCode result = registers;
+        if (result == null) {
+            result = RegisterCode.translate(this);
+            registers = result;
+        }
+        return result;
+    }
+
+    Jit jit() {
+        Jit result = jit;
+        if (result == null) {
+            synchronized (this) {
+                result = jit;
+                if (result == null) {
+                    result = new Jit(this);
+                    jit = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Whether ip is somewhere a jump may land. */
+    boolean isInstruction(int ip) {
+        return ip >= 0 && ip < instructions.length && instructions[ip];
+    }
+
+    /**
+     * Verify and decode the given code; throws VirtualMachine.Exception
+     * describing the first problem found.
+     */
+    public static Program load(int[] original) {
+        int length = original.length;
+        int[] code = Arrays.copyOf(original, length + 1);
+        code[length] = HALT;
+        return decode(code, length);
+    }
+    /**
+     * Verify and decode the code from buffer's position to its limit (a
+     * bulk copy, so a mapped file costs one pass over its pages); the
+     * buffer's position is left alone.
+     */
+    public static Program load(IntBuffer buffer) {
+        int length = buffer.remaining();
+        int[] code = new int[length + 1];
+        buffer.duplicate().get(code, 0, length);
+        code[length] = HALT;
+        return decode(code, length);
+    }
+    // code is length instructions' worth, then a HALT
+    private static Program decode(int[] code, int length) {
+        // (free unless JFR is recording simplevm.Load; see Events)
+        Events.Load event = new Events.Load();
+        event.begin();
+
+        // Find the instruction boundaries
+        boolean[] instructions = new boolean[length + 1];
+        instructions[length] = true;
+        for (int ip = 0; ip < length; ) {
+            int width = Bytecode.operands(code[ip]);
+            if (width < 0)
+                throw new VirtualMachine.Exception("Unrecognized opcode " + code[ip] + " at " + ip);
+            if (ip + width >= length)
+                throw new VirtualMachine.Exception("Missing operand for opcode " + code[ip] + " at " + ip);
+            instructions[ip] = true;
+            ip += 1 + width;
+        }
+
+        // Check operands, now that we know where the instructions are
+        int globalCount = 0;
+        int counterCount = 0;
+        for (int ip = 0; ip < length; ip += 1 + Bytecode.operands(code[ip])) {
+            switch (code[ip]) {
+                case JMP:
+                case JZ:
+                case JNZ:
+                    checkTarget(instructions, ip, code[ip + 1]);
+                    break;
+                case RJMP:
+                {
+                    int target = ip + code[ip + 1];
+                    checkTarget(instructions, ip, target);
+                    code[ip] = JMP;
+                    code[ip + 1] = target;
+                    break;
+                }
+                case CALL:
+                case TAILCALL:
+                    if (code[ip + 1] == length)
+                        throw new VirtualMachine.Exception(name(code[ip]) + " at " + ip + " to the end of the program");
+                    checkTarget(instructions, ip, code[ip + 1]);
+                    if (code[ip + 2] == RET)
+                        code[ip] = TAILCALL;
+                    break;
+                case GLOAD:
+                case GSTORE:
+                case GCAS:
+                case GADD:
+                    if (code[ip + 1] < 0)
+                        throw new VirtualMachine.Exception("Negative global " + code[ip + 1] + " at " + ip);
+                    globalCount = Math.max(globalCount, code[ip + 1] + 1);
+                    break;
+                case CADD:
+                case CLOAD:
+                    if (code[ip + 1] < 0)
+                        throw new VirtualMachine.Exception("Negative counter " + code[ip + 1] + " at " + ip);
+                    counterCount = Math.max(counterCount, code[ip + 1] + 1);
+                    break;
+                case CALLHOST:
+                    if (code[ip + 1] < 0)
+                        throw new VirtualMachine.Exception("Negative host function " + code[ip + 1] + " at " + ip);
+                    break;
+                case LOAD:
+                case STORE:
+                    if (code[ip + 1] < 0 || code[ip + 1] >= MAX_LOCALS)
+                        throw new VirtualMachine.Exception("Local " + code[ip + 1] + " out of range at " + ip);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // Size each function's frame
+        int[] frameSizes = new int[length + 1];
+        int[] visited = new int[length];
+        Arrays.fill(visited, -1);
+        frameSizes[0] = localsNeeded(code, 0, visited);
+        for (int ip = 0; ip < length; ip += 1 + Bytecode.operands(code[ip])) {
+            if ((code[ip] == CALL || code[ip] == TAILCALL) && visited[code[ip + 1]] != code[ip + 1])
+                frameSizes[code[ip + 1]] = localsNeeded(code, code[ip + 1], visited);
+        }
+
+        Program program = new Program(code, code, 0, instructions, frameSizes, globalCount, counterCount);
+        if (event.shouldCommit()) {
+            event.length = length;
+            event.commit();
+        }
+        return program;
+    }
+
+    /*
+     * For the function entered at entry, how many values it has pushed
+     * (and not yet popped) at the start of each instruction, or -1 for
+     * instructions it never reaches. Values it pops beyond those belong
+     * to its caller; CALL, TAILCALL, RET and CALLHOST are taken to leave
+     * nothing of the function's own behind, since everything goes onto
+     * the VM stack for the callee or caller. Translators (Jit,
+     * RegisterCode) use this to keep the function's own values somewhere
+     * cheaper than the stack.
+     *
+     * Returns null if this can't be worked out statically: the function
+     * uses a dynamic jump, or two paths reach an instruction with
+     * different depths.
+     */
+    int[] depths(int entry) {
+        int[] depths = new int[code.length];
+        Arrays.fill(depths, -1);
+        int[] pending = new int[16];
+        int pendingCount = 0;
+        depths[entry] = 0;
+        pending[pendingCount++] = entry;
+        while (pendingCount > 0) {
+            int ip = pending[--pendingCount];
+            int opcode = code[ip];
+            int depth = depths[ip];
+            int after = (opcode == CALL || opcode == CALLHOST) ? 0 : Math.max(depth - pops(opcode), 0) + pushes(opcode);
+
+            int next = ip + 1 + Bytecode.operands(opcode);
+            int first;
+            int second = -1;
+            switch (opcode) {
+                case JMPI: case RJMPI: return null;
+                case RET: case TAILCALL: case HALT: case FATAL: continue;
+                case JMP: first = code[ip + 1]; break;
+                case JZ: case JNZ: first = code[ip + 1]; second = next; break;
+                default: first = next; break;
+            }
+            // (a JZ or JNZ to the next instruction has just the one)
+            if (second == first)
+                second = -1;
+            for (int successor = first; successor >= 0; successor = (successor == first) ? second : -1) {
+                if (depths[successor] == -1) {
+                    depths[successor] = after;
+                    if (pendingCount == pending.length)
+                        pending = Arrays.copyOf(pending, pendingCount * 2);
+                    pending[pendingCount++] = successor;
+                }
+                else if (depths[successor] != after) {
+                    return null;
+                }
+            }
+        }
+        return depths;
+    }
+
+    /*
+     * About how deep the stack gets running this program: the deepest
+     * any function's own values get, plus, at each CALL, however deep its
+     * callee goes. That's exact for straight-line code, but only a guess
+     * for recursive functions (counted once), functions that leave
+     * values behind when they return (not counted), and dynamic jumps
+     * (we give up and guess 16). VirtualMachine sizes its stack from
+     * this, and grows it if the guess was low.
+     */
+    int stackHint() {
+        int result = stackHint;
+        if (result < 0) {
+            int[] deepest = new int[code.length];
+            Arrays.fill(deepest, -1);
+            result = Math.max(deepest(0, deepest), 0);
+            stackHint = result;
+        }
+        return result;
+    }
+    // How deep the function at entry goes; deepest[] holds what we've
+    // worked out so far, and -2 for functions we're in the middle of
+    private int deepest(int entry, int[] deepest) {
+        if (deepest[entry] != -1)
+            return Math.max(deepest[entry], 0);
+        deepest[entry] = -2;
+        int[] depths = depths(entry);
+        int result = 16;
+        if (depths != null) {
+            result = 0;
+            for (int ip = 0; ip < code.length; ip++) {
+                if (depths[ip] < 0)
+                    continue;
+                int opcode = code[ip];
+                int after = Math.max(depths[ip] - pops(opcode), 0) + pushes(opcode);
+                if (opcode == CALL || opcode == TAILCALL)
+                    after = depths[ip] + deepest(code[ip + 1], deepest);
+                result = Math.max(result, Math.max(depths[ip], after));
+            }
+        }
+        deepest[entry] = result;
+        return result;
+    }
+
+    private static void checkTarget(boolean[] instructions, int ip, int target) {
+        if (target < 0 || target >= instructions.length || !instructions[target])
+            throw new VirtualMachine.Exception("Jump at " + ip + " to " + target + ", which is not an instruction");
+    }
+
+    // Walk everything reachable from entry without leaving the function
+    // (so following jumps, but stepping over CALLs and stopping at RET
+    // and TAILCALL)
+    // and find the highest local it touches. If the function jumps
+    // somewhere we can't see statically, fall back to the highest local
+    // used anywhere in the program. visited[] is stamped with the entry
+    // point, so one array serves every function.
+    private static int localsNeeded(int[] code, int entry, int[] visited) {
+        int length = visited.length;
+        int max = -1;
+        int[] pending = new int[16];
+        int pendingCount = 0;
+        pending[pendingCount++] = entry;
+        while (pendingCount > 0) {
+            int ip = pending[--pendingCount];
+            while (ip < length && visited[ip] != entry) {
+                visited[ip] = entry;
+                int opcode = code[ip];
+                switch (opcode) {
+                    case LOAD:
+                    case STORE:
+                        max = Math.max(max, code[ip + 1]);
+                        break;
+                    case JMP:
+                        ip = code[ip + 1];
+                        continue;
+                    case JZ:
+                    case JNZ:
+                        if (pendingCount == pending.length)
+                            pending = Arrays.copyOf(pending, pendingCount * 2);
+                        pending[pendingCount++] = code[ip + 1];
+                        break;
+                    case JMPI:
+                    case RJMPI:
+                        return localsUsed(code, length);
+                    case RET:
+                    case TAILCALL:
+                    case HALT:
+                    case FATAL:
+                        ip = length;
+                        continue;
+                    default:
+                        break;
+                }
+                ip += 1 + Bytecode.operands(opcode);
+            }
+        }
+        return max + 1;
+    }
+    private static int localsUsed(int[] code, int length) {
+        int max = -1;
+        for (int ip = 0; ip < length; ip += 1 + Bytecode.operands(code[ip])) {
+            if (code[ip] == LOAD || code[ip] == STORE)
+                max = Math.max(max, code[ip + 1]);
+        }
+        return max + 1;
+    }
+}
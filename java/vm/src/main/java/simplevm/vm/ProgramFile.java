@@ -0,0 +1,209 @@
+package simplevm.vm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A program stored in a file, in SimpleVM's binary format: a sequence of
+ * big-endian ints,
+ *
+ *     header      MAGIC, VERSION, then the length (in ints) of each of
+ *                 the four sections that follow
+ *     constants   initial values for globals 0 onwards
+ *     functions   the entry address of each function, the program's
+ *                 own entry (0) included
+ *     code        the bytecode, exactly as Program.load() takes it
+ *     lines       (address, line) pairs in address order, mapping code
+ *                 back to whatever it was compiled from; may be empty
+ *
+ * open() maps the file rather than reading it, so nothing is parsed up
+ * front beyond the header, and processes running the same file share its
+ * pages. program() verifies and decodes the code section straight out of
+ * the mapping (one bulk copy) the first time it's asked for, and keeps
+ * the result; every engine runs from that decoded form.
+ */
+public final class ProgramFile {
+    public static final int MAGIC = 0x53564D42;     // "SVMB"
+    public static final int VERSION = 1;
+    static final int HEADER = 6;
+
+    private final int version;
+    private final IntBuffer constants;
+    private final IntBuffer functions;
+    private final IntBuffer code;
+    private final IntBuffer lines;
+    private Program program;
+
+    private ProgramFile(int version, IntBuffer constants, IntBuffer functions, IntBuffer code, IntBuffer lines) {
+        this.version = version;
+        this.constants = constants;
+        this.functions = functions;
+        this.code = code;
+        this.lines = lines;
+    }
+
+    /**
+     * Map the file at path. The mapping outlives the (closed) channel,
+     * and lasts until this ProgramFile is collected.
+     */
+    public static ProgramFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new VirtualMachine.Exception(path + " is too big to be a program");
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    /**
+     * A program file already in memory, from bytes' position to its
+     * limit; throws VirtualMachine.Exception if the header is wrong.
+     */
+    public static ProgramFile read(ByteBuffer bytes) {
+        if (bytes.remaining() % 4 != 0 || bytes.remaining() < HEADER * 4)
+            throw new VirtualMachine.Exception("Not a program file: " + bytes.remaining() + " bytes");
+        IntBuffer ints = bytes.duplicate().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        if (ints.get(0) != MAGIC)
+            throw new VirtualMachine.Exception("Not a program file: bad magic number " + Integer.toHexString(ints.get(0)));
+        int version = ints.get(1);
+        if (version != VERSION)
+            throw new VirtualMachine.Exception("Program file version " + version + "; only " + VERSION + " is supported");
+
+        long total = HEADER;
+        for (int section = 2; section < HEADER; section++) {
+            if (ints.get(section) < 0)
+                throw new VirtualMachine.Exception("Program file has a negative section length");
+            total += ints.get(section);
+        }
+        if (ints.get(5) % 2 != 0 || total != ints.limit())
+            throw new VirtualMachine.Exception("Program file is " + ints.limit() + " ints; its header says " + total);
+
+        int offset = HEADER;
+        IntBuffer constants = section(ints, offset, ints.get(2));
+        IntBuffer functions = section(ints, offset += ints.get(2), ints.get(3));
+        IntBuffer code = section(ints, offset += ints.get(3), ints.get(4));
+        IntBuffer lines = section(ints, offset += ints.get(4), ints.get(5));
+        for (int i = 2; i < lines.limit(); i += 2) {
+            if (lines.get(i) < lines.get(i - 2))
+                throw new VirtualMachine.Exception("Program file's line map is out of order at entry " + i / 2);
+        }
+        return new ProgramFile(version, constants, functions, code, lines);
+    }
+    private static IntBuffer section(IntBuffer ints, int offset, int length) {
+        IntBuffer view = ints.duplicate();
+        view.position(offset).limit(offset + length);
+        return view.slice();
+    }
+
+    public int version() {
+        return version;
+    }
+
+    /**
+     * The code, verified and decoded; throws VirtualMachine.Exception if
+     * it (or the function table) doesn't verify.
+     */
+    public synchronized Program program() {
+        if (program == null) {
+            Program loaded = Program.load(code);
+            for (int i = 0; i < functions.limit(); i++) {
+                int entry = functions.get(i);
+                if (entry == loaded.length() || !loaded.isInstruction(entry))
+                    throw new VirtualMachine.Exception("Function " + i + " starts at " + entry + ", which is not an instruction");
+            }
+            program = loaded;
+        }
+        return program;
+    }
+
+    public int[] constants() {
+        return toArray(constants);
+    }
+    public int[] functions() {
+        return toArray(functions);
+    }
+    private static int[] toArray(IntBuffer section) {
+        int[] result = new int[section.limit()];
+        section.duplicate().get(result);
+        return result;
+    }
+
+    /**
+     * The source line the instruction at address came from, or -1 if the
+     * file has no line for it.
+     */
+    public int line(int address) {
+        // The last entry at or before address
+        int low = 0;
+        int high = lines.limit() / 2 - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (lines.get(middle * 2) <= address) {
+                found = middle;
+                low = middle + 1;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return found < 0 ? -1 : lines.get(found * 2 + 1);
+    }
+
+    /**
+     * Copy the constants into vm's globals, growing them first if they're
+     * the VM's own.
+     */
+    public void initialize(VirtualMachine vm) {
+        int count = constants.limit();
+        if (vm.segment.unshared && count > vm.globals.length && count <= vm.maxGlobals)
+            vm.setGlobals(vm.segment.grow(count, 0));
+        if (count > vm.globals.length)
+            throw new VirtualMachine.Exception("Program file has " + count + " constants; only " + vm.globals.length + " globals available");
+        constants.duplicate().get(vm.globals, 0, count);
+    }
+
+    // Writing
+    //
+
+    /**
+     * The given program as a file's contents. Any section may be null,
+     * meaning empty; lines holds (address, line) pairs in address order.
+     */
+    public static ByteBuffer encode(int[] code, int[] constants, int[] functions, int[] lines) {
+        code = orEmpty(code);
+        constants = orEmpty(constants);
+        functions = orEmpty(functions);
+        lines = orEmpty(lines);
+        if (lines.length % 2 != 0)
+            throw new VirtualMachine.Exception("Line map needs (address, line) pairs");
+
+        int total = HEADER + constants.length + functions.length + code.length + lines.length;
+        ByteBuffer bytes = ByteBuffer.allocate(total * 4);
+        IntBuffer ints = bytes.asIntBuffer();
+        ints.put(MAGIC).put(VERSION)
+            .put(constants.length).put(functions.length).put(code.length).put(lines.length);
+        ints.put(constants).put(functions).put(code).put(lines);
+        return bytes;
+    }
+    public static void write(Path path, int[] code, int[] constants, int[] functions, int[] lines) throws IOException {
+        ByteBuffer bytes = encode(code, constants, functions, lines);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+        }
+    }
+    /** write(), for a program with no constants or line map. */
+    public static void write(Path path, int[] code) throws IOException {
+        write(path, code, null, new int[] { 0 }, null);
+    }
+    private static int[] orEmpty(int[] section) {
+        return section == null ? new int[0] : section;
+    }
+}
@@ -0,0 +1,821 @@
+package simplevm.vm;
+
+import java.util.Arrays;
+
+import static simplevm.vm.Bytecode.*;
+
+/*
+ * A Program translated for the REGISTER engine: three-address code over
+ * virtual registers instead of a stack, so that
+ *
+ *     LOAD 0; CONST 1; SUB; STORE 0
+ *
+ * runs as the single instruction SUBK r0, r0, 1 rather than four
+ * dispatches shuffling values through the stack.
+ *
+ * Each function gets its own registers, kept in its frame's slice of the
+ * VM's locals: first its locals, then one register per stack slot the
+ * function uses (its "temps"), then two scratch registers. While
+ * translating we track what each stack slot holds -- a register or a
+ * constant -- and only emit code when a value is actually consumed, or
+ * has to be in its slot's register because control flow meets there.
+ *
+ * As with the JIT (see Program.depths()), only a function's own values
+ * are kept in registers. Its arguments come off the VM stack (POPR), and
+ * anything it still holds goes onto the VM stack (PUSH) at CALL, RET,
+ * HALT and FATAL, so translated and interpreted code agree on the state
+ * of the VM at every point anyone can see it. A function that can't be
+ * translated (it uses TRACE, DUMP or a dynamic jump, or its stack depth
+ * depends on the path taken) is interpreted when called; if the top
+ * level can't be translated, the whole program is interpreted.
+ *
+ * Every instruction is four words: opcode and up to three operands.
+ */
+final class RegisterCode {
+    // Moves
+    static final int MOV = 0;       // d, s        r[d] = r[s]
+    static final int LOADK = 1;     // d, k        r[d] = k
+    static final int POPR = 2;      // d           r[d] = pop()
+    static final int PUSH = 3;      // s           push(r[s])
+    static final int PUSHK = 4;     // k           push(k)
+    static final int DROP = 5;      //             pop()
+    static final int GLOAD = 6;     // d, g        r[d] = globals[g]
+    static final int GSTORE = 7;    // g, s        globals[g] = r[s]
+    static final int GSTOREK = 8;   // g, k        globals[g] = k
+    static final int GCAS = 9;      // g, e, u     r[e] = CAS globals[g] from r[e] to r[u] ? 1 : 0
+    static final int GADD = 10;     // d, g, s     r[d] = globals[g]; globals[g] += r[s], atomically
+    static final int CADD = 11;     // c, s        counters[c] += r[s]
+    static final int CLOAD = 12;    // d, c        r[d] = counters[c]
+    static final int ALOAD = 13;    // d, a        r[d] = memory[r[a]]
+    static final int ASTORE = 14;   // a, s        memory[r[a]] = r[s]
+    static final int MSIZE = 15;    // d           r[d] = memory size
+    static final int MGROW = 16;    // d, s        r[d] = grow memory by r[s]
+
+    // Arithmetic: d, a, b is r[d] = r[a] op r[b]; the K forms take the
+    // constant b in place of r[b]. Comparisons produce 1 or 0.
+    static final int ADD = 20, ADDK = 21;
+    static final int SUB = 22, SUBK = 23;
+    static final int MUL = 24, MULK = 25;
+    static final int DIV = 26, DIVK = 27;
+    static final int MOD = 28, MODK = 29;
+    static final int EQ = 30, EQK = 31;
+    static final int NEQ = 32, NEQK = 33;
+    static final int GT = 34, GTK = 35;
+    static final int LT = 36, LTK = 37;
+    static final int GTE = 38, GTEK = 39;
+    static final int LTE = 40, LTEK = 41;
+    static final int ABS = 42;      // d, a
+    static final int NEG = 43;      // d, a
+    // If r[a] is 0, push r[base .. base + count) and divide by zero;
+    // guards a DIV/MOD that has values underneath it
+    static final int CHECKZ = 44;   // a, base, count
+    // If r[a] is outside memory, push r[base .. base + count) and load
+    // from it; guards an ALOAD/ASTORE that has values underneath it
+    static final int CHECKA = 45;   // a, base, count
+
+    // Control
+    static final int JMP = 50;      // t
+    static final int JZ = 51;       // a, t
+    static final int JNZ = 52;      // a, t
+    // Compare and branch: a, b, t is if (r[a] op r[b]) goto t; K forms
+    // take the constant b. Laid out so IF_x = x + (IF_EQ - EQ).
+    static final int IF_EQ = 60, IF_EQK = 61;
+    static final int IF_NEQ = 62, IF_NEQK = 63;
+    static final int IF_GT = 64, IF_GTK = 65;
+    static final int IF_LT = 66, IF_LTK = 67;
+    static final int IF_GTE = 68, IF_GTEK = 69;
+    static final int IF_LTE = 70, IF_LTEK = 71;
+    static final int CALL = 80;     // start, registers  (a translated function)
+    static final int CALLI = 81;    // target            (an interpreted one)
+    static final int RET = 82;      // ip
+    static final int HALT = 83;     // ip
+    static final int FATAL = 84;    // ip
+    static final int PRINT = 85;    // s
+    static final int PRINTK = 86;   // k
+    static final int CALLHOST = 87; // index
+    static final int TAILCALL = 88; // start, registers  (CALL then RET, in this frame)
+    static final int TAILCALLI = 89; // target
+
+    // Marks a Program that can't be translated
+    static final RegisterCode NONE = new RegisterCode(new int[0], 0);
+
+    final int[] ir;
+    // Registers needed by the top level
+    final int frameSize;
+
+    private RegisterCode(int[] ir, int frameSize) {
+        this.ir = ir;
+        this.frameSize = frameSize;
+    }
+
+    /** How many register instructions the program became. */
+    int instructionCount() {
+        return ir.length / 4;
+    }
+
+    // Execution
+    //
+    void run(VirtualMachine vm) {
+        Program program = vm.program;
+        int[] ir = this.ir;
+        int[] r = vm.locals;
+        int bp = vm.bp;
+        for (int pc = 0; ; ) {
+            switch (ir[pc]) {
+                case MOV: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]]; pc += 4; break;
+                case LOADK: r[bp + ir[pc + 1]] = ir[pc + 2]; pc += 4; break;
+                case POPR: r[bp + ir[pc + 1]] = vm.pop(); pc += 4; break;
+                case PUSH: vm.push(r[bp + ir[pc + 1]]); pc += 4; break;
+                case PUSHK: vm.push(ir[pc + 1]); pc += 4; break;
+                case DROP: vm.pop(); pc += 4; break;
+                case GLOAD: r[bp + ir[pc + 1]] = vm.globals[ir[pc + 2]]; pc += 4; break;
+                case GSTORE: vm.globals[ir[pc + 1]] = r[bp + ir[pc + 2]]; pc += 4; break;
+                case GSTOREK: vm.globals[ir[pc + 1]] = ir[pc + 2]; pc += 4; break;
+                case GCAS:
+                    r[bp + ir[pc + 2]] = vm.segment.compareAndSet(ir[pc + 1], r[bp + ir[pc + 2]], r[bp + ir[pc + 3]]) ? 1 : 0;
+                    pc += 4;
+                    break;
+                case GADD: r[bp + ir[pc + 1]] = vm.segment.getAndAdd(ir[pc + 2], r[bp + ir[pc + 3]]); pc += 4; break;
+                case CADD: vm.segment.add(ir[pc + 1], r[bp + ir[pc + 2]]); pc += 4; break;
+                case CLOAD: r[bp + ir[pc + 1]] = vm.segment.sum(ir[pc + 2]); pc += 4; break;
+                case ALOAD: r[bp + ir[pc + 1]] = vm.memory.load(r[bp + ir[pc + 2]]); pc += 4; break;
+                case ASTORE: vm.memory.store(r[bp + ir[pc + 1]], r[bp + ir[pc + 2]]); pc += 4; break;
+                case MSIZE: r[bp + ir[pc + 1]] = vm.memory.size(); pc += 4; break;
+                case MGROW: r[bp + ir[pc + 1]] = vm.memory.grow(r[bp + ir[pc + 2]]); pc += 4; break;
+
+                case ADD: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] + r[bp + ir[pc + 3]]; pc += 4; break;
+                case ADDK: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] + ir[pc + 3]; pc += 4; break;
+                case SUB: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] - r[bp + ir[pc + 3]]; pc += 4; break;
+                case SUBK: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] - ir[pc + 3]; pc += 4; break;
+                case MUL: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] * r[bp + ir[pc + 3]]; pc += 4; break;
+                case MULK: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] * ir[pc + 3]; pc += 4; break;
+                case DIV: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] / r[bp + ir[pc + 3]]; pc += 4; break;
+                case DIVK: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] / ir[pc + 3]; pc += 4; break;
+                case MOD: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] % r[bp + ir[pc + 3]]; pc += 4; break;
+                case MODK: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] % ir[pc + 3]; pc += 4; break;
+                case EQ: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] == r[bp + ir[pc + 3]] ? 1 : 0; pc += 4; break;
+                case EQK: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] == ir[pc + 3] ? 1 : 0; pc += 4; break;
+                case NEQ: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] != r[bp + ir[pc + 3]] ? 1 : 0; pc += 4; break;
+                case NEQK: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] != ir[pc + 3] ? 1 : 0; pc += 4; break;
+                case GT: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] > r[bp + ir[pc + 3]] ? 1 : 0; pc += 4; break;
+                case GTK: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] > ir[pc + 3] ? 1 : 0; pc += 4; break;
+                case LT: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] < r[bp + ir[pc + 3]] ? 1 : 0; pc += 4; break;
+                case LTK: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] < ir[pc + 3] ? 1 : 0; pc += 4; break;
+                case GTE: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] >= r[bp + ir[pc + 3]] ? 1 : 0; pc += 4; break;
+                case GTEK: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] >= ir[pc + 3] ? 1 : 0; pc += 4; break;
+                case LTE: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] <= r[bp + ir[pc + 3]] ? 1 : 0; pc += 4; break;
+                case LTEK: r[bp + ir[pc + 1]] = r[bp + ir[pc + 2]] <= ir[pc + 3] ? 1 : 0; pc += 4; break;
+                case ABS: r[bp + ir[pc + 1]] = Math.abs(r[bp + ir[pc + 2]]); pc += 4; break;
+                case NEG: r[bp + ir[pc + 1]] = - r[bp + ir[pc + 2]]; pc += 4; break;
+                case CHECKZ:
+                    if (r[bp + ir[pc + 1]] == 0) {
+                        for (int i = 0; i < ir[pc + 3]; i++)
+                            vm.push(r[bp + ir[pc + 2] + i]);
+                        throw new ArithmeticException("/ by zero");
+                    }
+                    pc += 4;
+                    break;
+                case CHECKA:
+                    if (!vm.memory.contains(r[bp + ir[pc + 1]])) {
+                        for (int i = 0; i < ir[pc + 3]; i++)
+                            vm.push(r[bp + ir[pc + 2] + i]);
+                        vm.memory.load(r[bp + ir[pc + 1]]);
+                    }
+                    pc += 4;
+                    break;
+
+                case JMP: pc = ir[pc + 1]; break;
+                case JZ: pc = r[bp + ir[pc + 1]] == 0 ? ir[pc + 2] : pc + 4; break;
+                case JNZ: pc = r[bp + ir[pc + 1]] != 0 ? ir[pc + 2] : pc + 4; break;
+                case IF_EQ: pc = r[bp + ir[pc + 1]] == r[bp + ir[pc + 2]] ? ir[pc + 3] : pc + 4; break;
+                case IF_EQK: pc = r[bp + ir[pc + 1]] == ir[pc + 2] ? ir[pc + 3] : pc + 4; break;
+                case IF_NEQ: pc = r[bp + ir[pc + 1]] != r[bp + ir[pc + 2]] ? ir[pc + 3] : pc + 4; break;
+                case IF_NEQK: pc = r[bp + ir[pc + 1]] != ir[pc + 2] ? ir[pc + 3] : pc + 4; break;
+                case IF_GT: pc = r[bp + ir[pc + 1]] > r[bp + ir[pc + 2]] ? ir[pc + 3] : pc + 4; break;
+                case IF_GTK: pc = r[bp + ir[pc + 1]] > ir[pc + 2] ? ir[pc + 3] : pc + 4; break;
+                case IF_LT: pc = r[bp + ir[pc + 1]] < r[bp + ir[pc + 2]] ? ir[pc + 3] : pc + 4; break;
+                case IF_LTK: pc = r[bp + ir[pc + 1]] < ir[pc + 2] ? ir[pc + 3] : pc + 4; break;
+                case IF_GTE: pc = r[bp + ir[pc + 1]] >= r[bp + ir[pc + 2]] ? ir[pc + 3] : pc + 4; break;
+                case IF_GTEK: pc = r[bp + ir[pc + 1]] >= ir[pc + 2] ? ir[pc + 3] : pc + 4; break;
+                case IF_LTE: pc = r[bp + ir[pc + 1]] <= r[bp + ir[pc + 2]] ? ir[pc + 3] : pc + 4; break;
+                case IF_LTEK: pc = r[bp + ir[pc + 1]] <= ir[pc + 2] ? ir[pc + 3] : pc + 4; break;
+
+                case CALL:
+                    vm.pushFrame(pc + 4, ir[pc + 2]);
+                    r = vm.locals;
+                    bp = vm.bp;
+                    pc = ir[pc + 1];
+                    break;
+                case CALLI:
+                {
+                    int target = ir[pc + 1];
+                    vm.pushFrame(pc + 4, program.frameSizes[target]);
+                    vm.interpret(program, target, vm.frameCount);
+                    r = vm.locals;
+                    bp = vm.bp;
+                    pc += 4;
+                    break;
+                }
+                case TAILCALL:
+                    vm.reuseFrame(ir[pc + 2]);
+                    r = vm.locals;
+                    pc = ir[pc + 1];
+                    break;
+                case TAILCALLI:
+                {
+                    // The interpreter RETs for us, back to our caller
+                    int target = ir[pc + 1];
+                    int returnAddress = vm.returnAddress();
+                    vm.reuseFrame(program.frameSizes[target]);
+                    vm.interpret(program, target, vm.frameCount);
+                    r = vm.locals;
+                    bp = vm.bp;
+                    pc = returnAddress;
+                    break;
+                }
+                case RET:
+                {
+                    int returnAddress = vm.returnAddress();
+                    if (returnAddress == -1) {
+                        // We are returning from the topmost level,
+                        // which means our CALL/RETs are imbalanced
+                        vm.ip = ir[pc + 1];
+                        throw new VirtualMachine.Exception("Cannot RET from topmost level");
+                    }
+                    vm.popFrame();
+                    r = vm.locals;
+                    bp = vm.bp;
+                    pc = returnAddress;
+                    break;
+                }
+                case HALT:
+                    vm.ip = ir[pc + 1];
+                    return;
+                case FATAL:
+                    throw vm.fatal(ir[pc + 1]);
+                case PRINT: vm.print(r[bp + ir[pc + 1]]); pc += 4; break;
+                case PRINTK: vm.print(ir[pc + 1]); pc += 4; break;
+                case CALLHOST: vm.callHost(ir[pc + 1]); pc += 4; break;
+
+                default:
+                    throw new VirtualMachine.Exception("Unrecognized register opcode: " + ir[pc]);
+            }
+        }
+    }
+
+    // Translation
+    //
+    static RegisterCode translate(Program program) {
+        return new Translator(program).translate();
+    }
+
+    private static final class Translator {
+        final Program program;
+        final int[] code;
+
+        int[] ir = new int[256];
+        int length = 0;
+
+        // Where each function's code starts and how many registers it
+        // needs, by entry address; -1 if it couldn't be translated
+        final int[] starts;
+        final int[] frameSizes;
+        // CALLs waiting to find out where their callee ended up
+        int[] calls = new int[16];
+        int callCount = 0;
+
+        // Per function: branches waiting for their targets' positions,
+        // as (position of operand, bytecode target) pairs, and where each
+        // bytecode address that's a jump target landed
+        int[] branches = new int[16];
+        int branchCount = 0;
+        final int[] labels;
+        final boolean[] isLabel;
+
+        // The function being translated: its temps start at register
+        // temps, its scratch registers at scratch
+        int temps;
+        int scratch;
+
+        // What each stack slot holds: a register, or a constant
+        int[] slots = new int[16];
+        boolean[] constant = new boolean[16];
+        int depth = 0;
+
+        // The last instruction emitted, if it computed a fresh value into
+        // a temp that could just as well have gone somewhere else
+        int producer = -1;
+
+        Translator(Program program) {
+            this.program = program;
+            this.code = program.code;
+            this.starts = new int[code.length];
+            this.frameSizes = new int[code.length];
+            this.labels = new int[code.length];
+            this.isLabel = new boolean[code.length];
+            Arrays.fill(starts, -1);
+        }
+
+        RegisterCode translate() {
+            if (!function(0))
+                return NONE;
+            for (int ip = 0; ip < code.length - 1; ip += 1 + Bytecode.operands(code[ip])) {
+                int target = (code[ip] == Bytecode.CALL || code[ip] == Bytecode.TAILCALL) ? code[ip + 1] : -1;
+                if (target > 0 && starts[target] == -1 && frameSizes[target] == 0) {
+                    if (!function(target))
+                        frameSizes[target] = -1; // don't try again
+                }
+            }
+            // Point each CALL at its callee, or at the interpreter
+            for (int c = 0; c < callCount; c++) {
+                int at = calls[c];
+                int target = ir[at + 1];
+                if (starts[target] >= 0) {
+                    ir[at + 1] = starts[target];
+                    ir[at + 2] = frameSizes[target];
+                }
+                else {
+                    ir[at] = (ir[at] == CALL) ? CALLI : TAILCALLI;
+                }
+            }
+            return new RegisterCode(Arrays.copyOf(ir, length), frameSizes[0]);
+        }
+
+        // Translate the function entered at entry onto the end of the
+        // code, or leave the code as it was and return false if it can't
+        // be translated
+        boolean function(int entry) {
+            int[] depths = program.depths(entry);
+            if (depths == null)
+                return false;
+            int maxDepth = 0;
+            for (int ip = 0; ip < code.length; ip++) {
+                isLabel[ip] = false;
+                if (depths[ip] < 0)
+                    continue;
+                if (code[ip] == TRACE || code[ip] == DUMP)
+                    return false;
+                // (operands popped from the caller's stack get temps too,
+                // so as many as the instruction pops)
+                maxDepth = Math.max(maxDepth, Math.max(depths[ip] + Bytecode.pushes(code[ip]), Bytecode.pops(code[ip])));
+            }
+            for (int ip = 0; ip < code.length; ip++) {
+                if (depths[ip] >= 0 && (code[ip] == Bytecode.JMP || code[ip] == Bytecode.JZ || code[ip] == Bytecode.JNZ))
+                    isLabel[code[ip + 1]] = true;
+            }
+
+            int start = length;
+            temps = program.frameSizes[entry];
+            scratch = temps + maxDepth;
+            if (slots.length < maxDepth) {
+                slots = new int[maxDepth];
+                constant = new boolean[maxDepth];
+            }
+            branchCount = 0;
+
+            boolean fallsThrough = false;
+            for (int ip = 0; ip < code.length; ip++) {
+                if (depths[ip] < 0)
+                    continue;
+                if (isLabel[ip] || !fallsThrough) {
+                    // Control can arrive here from elsewhere, so every slot
+                    // has to be in its own temp
+                    if (fallsThrough)
+                        flush();
+                    depth = depths[ip];
+                    for (int slot = 0; slot < depth; slot++) {
+                        slots[slot] = temps + slot;
+                        constant[slot] = false;
+                    }
+                    labels[ip] = length;
+                    producer = -1;
+                }
+                fallsThrough = instruction(ip);
+            }
+
+            for (int b = 0; b < branchCount; b += 2)
+                ir[branches[b]] = labels[branches[b + 1]];
+            starts[entry] = start;
+            frameSizes[entry] = scratch + 2;
+            return true;
+        }
+
+        // Translate the instruction at ip; returns whether control can
+        // fall through to the next one
+        boolean instruction(int ip) {
+            int opcode = code[ip];
+            switch (opcode) {
+                case NOP:
+                case YIELD:     // (register code never runs to a budget)
+                    return true;
+                case Bytecode.PRINT:
+                    operands(1);
+                    emit(constant[depth] ? PRINTK : PRINT, slots[depth], 0, 0);
+                    return true;
+                case Bytecode.HALT:
+                    spill();
+                    emit(HALT, ip, 0, 0);
+                    return false;
+                case Bytecode.FATAL:
+                    spill();
+                    emit(FATAL, ip, 0, 0);
+                    return false;
+
+                case CONST:
+                    slots[depth] = code[ip + 1];
+                    constant[depth] = true;
+                    depth++;
+                    return true;
+                case POP:
+                    if (depth == 0)
+                        emit(DROP, 0, 0, 0);
+                    else
+                        depth--;
+                    return true;
+
+                case Bytecode.ADD: binary(ADD, true); return true;
+                case Bytecode.SUB: binary(SUB, false); return true;
+                case Bytecode.MUL: binary(MUL, true); return true;
+                case Bytecode.DIV: binary(DIV, false); return true;
+                case Bytecode.MOD: binary(MOD, false); return true;
+                case Bytecode.EQ: binary(EQ, true); return true;
+                case Bytecode.NEQ: binary(NEQ, true); return true;
+                case Bytecode.GT: binary(GT, false); return true;
+                case Bytecode.LT: binary(LT, false); return true;
+                case Bytecode.GTE: binary(GTE, false); return true;
+                case Bytecode.LTE: binary(LTE, false); return true;
+                case Bytecode.ABS:
+                case Bytecode.NEG:
+                {
+                    operands(1);
+                    int dst = temps + depth;
+                    if (constant[depth]) {
+                        int value = slots[depth];
+                        slots[depth] = (opcode == Bytecode.ABS) ? Math.abs(value) : - value;
+                    }
+                    else {
+                        producer = emit(opcode == Bytecode.ABS ? ABS : NEG, dst, slots[depth], 0);
+                        slots[depth] = dst;
+                    }
+                    depth++;
+                    return true;
+                }
+
+                case Bytecode.JMP:
+                    flush();
+                    branch(emit(JMP, 0, 0, 0) + 1, code[ip + 1]);
+                    return false;
+                case Bytecode.JZ:
+                case Bytecode.JNZ:
+                {
+                    operands(1);
+                    boolean onZero = (opcode == Bytecode.JZ);
+                    if (constant[depth]) {
+                        if ((slots[depth] == 0) == onZero) {
+                            flush();
+                            branch(emit(JMP, 0, 0, 0) + 1, code[ip + 1]);
+                            return false;
+                        }
+                        return true;
+                    }
+                    int condition = slots[depth];
+                    int comparison = (producer >= 0) ? ir[producer] : -1;
+                    if (comparison >= EQ && comparison <= LTEK && ir[producer + 1] == condition && flushed()) {
+                        // Compare-and-branch in one: turn the comparison we
+                        // just emitted into a conditional jump
+                        if (onZero)
+                            comparison = inverse(comparison);
+                        ir[producer] = comparison + (IF_EQ - EQ);
+                        ir[producer + 1] = ir[producer + 2];
+                        ir[producer + 2] = ir[producer + 3];
+                        branch(producer + 3, code[ip + 1]);
+                        producer = -1;
+                    }
+                    else {
+                        flush();
+                        branch(emit(onZero ? JZ : JNZ, condition, 0, 0) + 2, code[ip + 1]);
+                    }
+                    return true;
+                }
+
+                case Bytecode.GLOAD:
+                {
+                    int dst = temps + depth;
+                    producer = emit(GLOAD, dst, code[ip + 1], 0);
+                    slots[depth] = dst;
+                    constant[depth] = false;
+                    depth++;
+                    return true;
+                }
+                case Bytecode.GSTORE:
+                    operands(1);
+                    if (constant[depth])
+                        emit(GSTOREK, code[ip + 1], slots[depth], 0);
+                    else
+                        emit(GSTORE, code[ip + 1], slots[depth], 0);
+                    return true;
+
+                case Bytecode.GCAS:
+                {
+                    operands(2);
+                    // Both operands in their own temps, where the result
+                    // goes in place of the first. The second first: if
+                    // operands() shifted it up, it can still be in the
+                    // first's temp, which materializing the first would
+                    // overwrite.
+                    materialize(depth + 1);
+                    materialize(depth);
+                    emit(GCAS, code[ip + 1], temps + depth, temps + depth + 1);
+                    depth++;
+                    return true;
+                }
+                case Bytecode.GADD:
+                case Bytecode.CADD:
+                {
+                    operands(1);
+                    if (constant[depth]) {
+                        emit(LOADK, scratch, slots[depth], 0);
+                        slots[depth] = scratch;
+                        constant[depth] = false;
+                    }
+                    if (opcode == Bytecode.CADD) {
+                        emit(CADD, code[ip + 1], slots[depth], 0);
+                    }
+                    else {
+                        emit(GADD, temps + depth, code[ip + 1], slots[depth]);
+                        slots[depth] = temps + depth;
+                        depth++;
+                    }
+                    return true;
+                }
+                case Bytecode.CLOAD:
+                    emit(CLOAD, temps + depth, code[ip + 1], 0);
+                    slots[depth] = temps + depth;
+                    constant[depth] = false;
+                    depth++;
+                    return true;
+
+                case Bytecode.ALOAD:
+                case Bytecode.MGROW:
+                {
+                    operands(1);
+                    if (constant[depth]) {
+                        emit(LOADK, scratch, slots[depth], 0);
+                        slots[depth] = scratch;
+                    }
+                    if (opcode == Bytecode.ALOAD)
+                        checkAddress(slots[depth]);
+                    int dst = temps + depth;
+                    producer = emit(opcode == Bytecode.ALOAD ? ALOAD : MGROW, dst, slots[depth], 0);
+                    slots[depth] = dst;
+                    constant[depth] = false;
+                    depth++;
+                    return true;
+                }
+                case Bytecode.ASTORE:
+                    operands(2);
+                    // (operands() only pops into scratch registers under
+                    // any constant, so these don't clash with those)
+                    for (int slot = depth; slot < depth + 2; slot++) {
+                        if (constant[slot]) {
+                            emit(LOADK, scratch + slot - depth, slots[slot], 0);
+                            slots[slot] = scratch + slot - depth;
+                            constant[slot] = false;
+                        }
+                    }
+                    checkAddress(slots[depth]);
+                    emit(ASTORE, slots[depth], slots[depth + 1], 0);
+                    return true;
+                case Bytecode.MSIZE:
+                    producer = emit(MSIZE, temps + depth, 0, 0);
+                    slots[depth] = temps + depth;
+                    constant[depth] = false;
+                    depth++;
+                    return true;
+
+                case Bytecode.CALLHOST:
+                    spill();
+                    emit(CALLHOST, code[ip + 1], 0, 0);
+                    return true;
+                case Bytecode.CALL:
+                    spill();
+                    calls = grow(calls, callCount + 1);
+                    calls[callCount++] = emit(CALL, code[ip + 1], 0, 0);
+                    return true;
+                case Bytecode.TAILCALL:
+                    spill();
+                    calls = grow(calls, callCount + 1);
+                    calls[callCount++] = emit(TAILCALL, code[ip + 1], 0, 0);
+                    return false;
+                case Bytecode.RET:
+                    spill();
+                    emit(RET, ip, 0, 0);
+                    return false;
+                case LOAD:
+                    slots[depth] = code[ip + 1];
+                    constant[depth] = false;
+                    depth++;
+                    return true;
+                case STORE:
+                {
+                    int local = code[ip + 1];
+                    operands(1);
+                    int before = length;
+                    // Anything still waiting to be read from this local
+                    // has to be read now
+                    for (int slot = 0; slot < depth; slot++) {
+                        if (!constant[slot] && slots[slot] == local)
+                            materialize(slot);
+                    }
+                    int value = slots[depth];
+                    if (constant[depth]) {
+                        emit(LOADK, local, value, 0);
+                    }
+                    else if (producer >= 0 && length == before && ir[producer + 1] == value && value >= temps) {
+                        // Have whatever computed the value put it straight
+                        // into the local
+                        ir[producer + 1] = local;
+                        producer = -1;
+                    }
+                    else if (value != local) {
+                        emit(MOV, local, value, 0);
+                    }
+                    return true;
+                }
+
+                default:
+                    throw new VirtualMachine.Exception("Should never happen");
+            }
+        }
+
+        // Pop count operands off the stack, leaving them in slots[depth]
+        // onwards; any the function didn't push itself come off the VM
+        // stack into scratch registers
+        void operands(int count) {
+            if (depth >= count) {
+                depth -= count;
+                return;
+            }
+            int missing = count - depth;
+            // Shift what we have up to make room underneath
+            for (int slot = depth - 1; slot >= 0; slot--) {
+                slots[slot + missing] = slots[slot];
+                constant[slot + missing] = constant[slot];
+            }
+            for (int slot = missing - 1; slot >= 0; slot--) {
+                emit(POPR, scratch + slot, 0, 0);
+                slots[slot] = scratch + slot;
+                constant[slot] = false;
+            }
+            depth = 0;
+        }
+
+        void binary(int op, boolean commutative) {
+            operands(2);
+            int lhs = slots[depth];
+            int rhs = slots[depth + 1];
+            boolean lhsConstant = constant[depth];
+            boolean rhsConstant = constant[depth + 1];
+            boolean divides = (op == DIV || op == MOD);
+            int dst = temps + depth;
+
+            if (lhsConstant && rhsConstant && !(divides && rhs == 0)) {
+                slots[depth] = fold(op, lhs, rhs);
+                depth++;
+                return;
+            }
+            if (divides && !(rhsConstant && rhs != 0) && depth > 0) {
+                // If this divides by zero, everything underneath has to be
+                // on the VM stack when it throws, as it would have been
+                if (rhsConstant) {
+                    emit(LOADK, scratch + 1, rhs, 0);
+                    rhs = scratch + 1;
+                    rhsConstant = false;
+                }
+                for (int slot = 0; slot < depth; slot++)
+                    materialize(slot);
+                emit(CHECKZ, rhs, temps, depth);
+            }
+            if (lhsConstant && !rhsConstant && commutative) {
+                producer = emit(op + 1, dst, rhs, lhs);
+            }
+            else if (lhsConstant && !rhsConstant && op >= GT && op <= LTE) {
+                producer = emit(mirror(op) + 1, dst, rhs, lhs);
+            }
+            else {
+                if (lhsConstant) {
+                    emit(LOADK, scratch, lhs, 0);
+                    lhs = scratch;
+                }
+                producer = emit(rhsConstant ? op + 1 : op, dst, lhs, rhs);
+            }
+            slots[depth] = dst;
+            constant[depth] = false;
+            depth++;
+        }
+
+        // If the access to memory[r[address]] about to be made faults,
+        // everything underneath has to be on the VM stack when it throws,
+        // as it would have been
+        void checkAddress(int address) {
+            if (depth == 0)
+                return;
+            for (int slot = 0; slot < depth; slot++)
+                materialize(slot);
+            emit(CHECKA, address, temps, depth);
+        }
+
+        static int fold(int op, int lhs, int rhs) {
+            switch (op) {
+                case ADD: return lhs + rhs;
+                case SUB: return lhs - rhs;
+                case MUL: return lhs * rhs;
+                case DIV: return lhs / rhs;
+                case MOD: return lhs % rhs;
+                case EQ: return lhs == rhs ? 1 : 0;
+                case NEQ: return lhs != rhs ? 1 : 0;
+                case GT: return lhs > rhs ? 1 : 0;
+                case LT: return lhs < rhs ? 1 : 0;
+                case GTE: return lhs >= rhs ? 1 : 0;
+                case LTE: return lhs <= rhs ? 1 : 0;
+                default: throw new VirtualMachine.Exception("Should never happen");
+            }
+        }
+        // a op b == b mirror(op) a
+        static int mirror(int op) {
+            switch (op) {
+                case GT: return LT;
+                case LT: return GT;
+                case GTE: return LTE;
+                case LTE: return GTE;
+                default: return op;
+            }
+        }
+        // !(a op b) == a inverse(op) b; keeps the K-ness of op
+        static int inverse(int op) {
+            int k = op & 1;
+            switch (op - k) {
+                case EQ: return NEQ + k;
+                case NEQ: return EQ + k;
+                case GT: return LTE + k;
+                case LTE: return GT + k;
+                case LT: return GTE + k;
+                case GTE: return LT + k;
+                default: throw new VirtualMachine.Exception("Should never happen");
+            }
+        }
+
+        // Make sure the slot's value is in the slot's own temp
+        void materialize(int slot) {
+            int home = temps + slot;
+            if (constant[slot])
+                emit(LOADK, home, slots[slot], 0);
+            else if (slots[slot] != home)
+                emit(MOV, home, slots[slot], 0);
+            slots[slot] = home;
+            constant[slot] = false;
+        }
+        boolean flushed() {
+            for (int slot = 0; slot < depth; slot++) {
+                if (constant[slot] || slots[slot] != temps + slot)
+                    return false;
+            }
+            return true;
+        }
+        void flush() {
+            for (int slot = 0; slot < depth; slot++)
+                materialize(slot);
+        }
+        // Put everything we're holding onto the VM stack
+        void spill() {
+            for (int slot = 0; slot < depth; slot++) {
+                if (constant[slot])
+                    emit(PUSHK, slots[slot], 0, 0);
+                else
+                    emit(PUSH, slots[slot], 0, 0);
+            }
+            depth = 0;
+        }
+
+        void branch(int at, int target) {
+            branches = grow(branches, branchCount + 2);
+            branches[branchCount++] = at;
+            branches[branchCount++] = target;
+        }
+
+        int emit(int op, int a, int b, int c) {
+            ir = grow(ir, length + 4);
+            int at = length;
+            ir[length++] = op;
+            ir[length++] = a;
+            ir[length++] = b;
+            ir[length++] = c;
+            producer = -1;
+            return at;
+        }
+
+        static int[] grow(int[] array, int needed) {
+            return needed <= array.length ? array : Arrays.copyOf(array, Math.max(needed, array.length * 2));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package simplevm.vm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A VirtualMachine's state at some moment: ip, the operand stack, every
+ * call frame and its locals, the globals and counters, and memory.
+ * Snapshots are immutable, so one can be restored into any number of
+ * VMs, on any number of threads:
+ *
+ *     vm.execute(prologue);                 // fills in the globals
+ *     Snapshot warm = vm.snapshot();
+ *     ...
+ *     VirtualMachine request = new VirtualMachine();
+ *     request.restore(warm);                // a few array copies
+ *     request.execute(handler);
+ *
+ * A snapshot is taken between runs, or from a Listener during one (while
+ * something is listening, every engine keeps all its state in the VM);
+ * VirtualMachine.resume() carries on from one taken mid-run.
+ *
+ * toBytes() and read() turn snapshots into big-endian ints and back:
+ * MAGIC, VERSION, ip, the lengths of the six sections, then the stack
+ * (bottom first), frames (return address, locals base, locals count
+ * each), locals, globals, counters and memory. Version 1 had no memory.
+ */
+public final class Snapshot {
+    public static final int MAGIC = 0x53564D53;     // "SVMS"
+    public static final int VERSION = 2;
+    private static final int HEADER = 9;
+
+    final int ip;
+    final int[] stack;
+    final int[] frames;
+    final int[] locals;
+    final int[] globals;
+    final int[] counters;
+    final int[] memory;
+
+    Snapshot(VirtualMachine vm) {
+        int top = (vm.frameCount - 1) * VirtualMachine.FRAME_WORDS;
+        this.ip = vm.ip;
+        this.stack = Arrays.copyOf(vm.stack, vm.sp + 1);
+        this.frames = Arrays.copyOf(vm.frames, vm.frameCount * VirtualMachine.FRAME_WORDS);
+        this.locals = Arrays.copyOf(vm.locals, vm.frames[top + 1] + vm.frames[top + 2]);
+        this.globals = vm.globals.clone();
+        this.counters = vm.segment.counterValues();
+        this.memory = vm.memory.toArray();
+    }
+    private Snapshot(int ip, int[] stack, int[] frames, int[] locals, int[] globals, int[] counters, int[] memory) {
+        this.ip = ip;
+        this.stack = stack;
+        this.frames = frames;
+        this.locals = locals;
+        this.globals = globals;
+        this.counters = counters;
+        this.memory = memory;
+    }
+
+    public int ip() {
+        return ip;
+    }
+    public int[] stack() {
+        return stack.clone();
+    }
+    public int[] globals() {
+        return globals.clone();
+    }
+    public int[] memory() {
+        return memory.clone();
+    }
+    /** How many CALLs deep the VM was, counting the top level. */
+    public int depth() {
+        return frames.length / VirtualMachine.FRAME_WORDS;
+    }
+
+    public byte[] toBytes() {
+        int total = HEADER + stack.length + frames.length + locals.length + globals.length + counters.length + memory.length;
+        ByteBuffer bytes = ByteBuffer.allocate(total * 4);
+        bytes.asIntBuffer()
+            .put(MAGIC).put(VERSION).put(ip)
+            .put(stack.length).put(frames.length).put(locals.length).put(globals.length).put(counters.length).put(memory.length)
+            .put(stack).put(frames).put(locals).put(globals).put(counters).put(memory);
+        return bytes.array();
+    }
+
+    /**
+     * The snapshot in bytes (from its position to its limit), as
+     * toBytes() wrote it; throws VirtualMachine.Exception if it isn't
+     * one.
+     */
+    public static Snapshot read(ByteBuffer bytes) {
+        if (bytes.remaining() % 4 != 0 || bytes.remaining() < HEADER * 4)
+            throw new VirtualMachine.Exception("Not a snapshot: " + bytes.remaining() + " bytes");
+        IntBuffer ints = bytes.duplicate().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        if (ints.get() != MAGIC)
+            throw new VirtualMachine.Exception("Not a snapshot: bad magic number");
+        int version = ints.get();
+        if (version != VERSION)
+            throw new VirtualMachine.Exception("Snapshot version " + version + "; only " + VERSION + " is supported");
+        int ip = ints.get();
+        long total = HEADER;
+        for (int section = 3; section < HEADER; section++) {
+            if (ints.get(section) < 0)
+                throw new VirtualMachine.Exception("Snapshot has a negative section length");
+            total += ints.get(section);
+        }
+        if (total != ints.limit())
+            throw new VirtualMachine.Exception("Snapshot is " + ints.limit() + " ints; its header says " + total);
+
+        int[] stack = new int[ints.get()];
+        int[] frames = new int[ints.get()];
+        int[] locals = new int[ints.get()];
+        int[] globals = new int[ints.get()];
+        int[] counters = new int[ints.get()];
+        int[] memory = new int[ints.get()];
+        ints.get(stack).get(frames).get(locals).get(globals).get(counters).get(memory);
+
+        // Every frame's locals have to be there
+        if (frames.length == 0 || frames.length % VirtualMachine.FRAME_WORDS != 0)
+            throw new VirtualMachine.Exception("Snapshot has no proper call frames");
+        for (int frame = 0; frame < frames.length; frame += VirtualMachine.FRAME_WORDS) {
+            int base = frames[frame + 1];
+            int count = frames[frame + 2];
+            if (base < 0 || count < 0 || (long) base + count > locals.length)
+                throw new VirtualMachine.Exception("Snapshot frame " + frame / VirtualMachine.FRAME_WORDS + " has locals out of range");
+        }
+        return new Snapshot(ip, stack, frames, locals, globals, counters, memory);
+    }
+}
@@ -0,0 +1,103 @@
+package simplevm.vm;
+
+import static simplevm.vm.Bytecode.*;
+
+/*
+ * Superinstructions: common multi-instruction sequences the SWITCH
+ * interpreter can run in a single dispatch. See Program.fuse().
+ *
+ * Fusing only ever rewrites the opcode at the start of a sequence (and,
+ * for folded constants, the operand right after it); the rest of the
+ * sequence stays where it was, and the fused instruction reads its
+ * operands from there. So nothing moves, no jump needs relocating, and
+ * a jump into the middle of a fused sequence still finds the original
+ * instructions waiting for it.
+ *
+ * These opcodes are internal: they only ever appear in a Program's
+ * fused code, never in programs handed to the VM.
+ */
+final class Superinstructions {
+    private Superinstructions() { }
+
+    // LOAD a; CONST k; ADD; STORE b    =>  locals[b] = locals[a] + k
+    static final int LOAD_CONST_ADD_STORE = 100;
+    // LOAD a; CONST k; SUB; STORE b    =>  locals[b] = locals[a] - k
+    static final int LOAD_CONST_SUB_STORE = 101;
+
+    // LOAD a; CONST k; <compare>; JZ/JNZ t  =>  if (locals[a] <cond> k) goto t
+    // (a JZ inverts the comparison, so NEQ; JZ is IF_EQ)
+    static final int LOAD_CONST_IF_EQ = 110;
+    static final int LOAD_CONST_IF_NE = 111;
+    static final int LOAD_CONST_IF_LT = 112;
+    static final int LOAD_CONST_IF_GE = 113;
+    static final int LOAD_CONST_IF_GT = 114;
+    static final int LOAD_CONST_IF_LE = 115;
+
+    // CONST a; CONST b; ADD/SUB/MUL    =>  CONST (a op b), folded into
+    // the first CONST's operand
+    static final int CONST_FOLDED = 120;
+
+    /*
+     * Fuse every sequence we recognize in code (already verified and
+     * decoded), in place; returns how many sites were fused.
+     */
+    static int fuse(int[] code) {
+        int sites = 0;
+        for (int ip = 0; ip < code.length; ) {
+            int fused = match(code, ip);
+            if (fused > 0) {
+                sites++;
+                ip += fused;
+            }
+            else {
+                ip += 1 + Bytecode.operands(code[ip]);
+            }
+        }
+        return sites;
+    }
+
+    // Fuse the sequence at ip if there is one, returning how many words
+    // it covers (or 0 if there's nothing to fuse there)
+    private static int match(int[] code, int ip) {
+        if (ip + 6 < code.length && code[ip] == LOAD && code[ip + 2] == CONST) {
+            int op = code[ip + 4];
+            if ((op == ADD || op == SUB) && code[ip + 5] == STORE) {
+                code[ip] = (op == ADD) ? LOAD_CONST_ADD_STORE : LOAD_CONST_SUB_STORE;
+                return 7;
+            }
+            int branch = code[ip + 5];
+            if (branch == JNZ || branch == JZ) {
+                int fused = condition(op, branch == JZ);
+                if (fused > 0) {
+                    code[ip] = fused;
+                    return 7;
+                }
+            }
+        }
+        if (ip + 4 < code.length && code[ip] == CONST && code[ip + 2] == CONST) {
+            int lhs = code[ip + 1];
+            int rhs = code[ip + 3];
+            switch (code[ip + 4]) {
+                case ADD: code[ip + 1] = lhs + rhs; break;
+                case SUB: code[ip + 1] = lhs - rhs; break;
+                case MUL: code[ip + 1] = lhs * rhs; break;
+                default: return 0;
+            }
+            code[ip] = CONST_FOLDED;
+            return 5;
+        }
+        return 0;
+    }
+
+    private static int condition(int comparison, boolean inverted) {
+        switch (comparison) {
+            case EQ: return inverted ? LOAD_CONST_IF_NE : LOAD_CONST_IF_EQ;
+            case NEQ: return inverted ? LOAD_CONST_IF_EQ : LOAD_CONST_IF_NE;
+            case LT: return inverted ? LOAD_CONST_IF_GE : LOAD_CONST_IF_LT;
+            case GTE: return inverted ? LOAD_CONST_IF_LT : LOAD_CONST_IF_GE;
+            case GT: return inverted ? LOAD_CONST_IF_LE : LOAD_CONST_IF_GT;
+            case LTE: return inverted ? LOAD_CONST_IF_GT : LOAD_CONST_IF_LE;
+            default: return 0;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package simplevm.vm;
+
+import static simplevm.vm.Bytecode.*;
+
+/*
+ * A Program translated for the THREADED engine: one pre-bound Node per
+ * instruction, each holding its operand and direct references to the
+ * Node(s) that run next, so running the program is just
+ *
+ *     while (node != null) node = node.exec(vm);
+ *
+ * with no decoding and no switch. Translation happens once per Program
+ * (see Program.threaded()).
+ */
+final class ThreadedCode {
+    static abstract class Node {
+        final int ip;
+        Node next;
+        Node(int ip) {
+            this.ip = ip;
+        }
+        abstract Node exec(VirtualMachine vm);
+    }
+
+    // Indexed by address, so RET and the dynamic jumps can find where to
+    // go; only the slots where instructions start are filled in.
+    final Node[] nodes;
+
+    private ThreadedCode(Node[] nodes) {
+        this.nodes = nodes;
+    }
+
+    Node entry() {
+        return nodes[0];
+    }
+
+    static ThreadedCode compile(Program program) {
+        int[] code = program.code;
+        Node[] nodes = new Node[code.length];
+        for (int ip = 0; ip < code.length; ip += 1 + Bytecode.operands(code[ip]))
+            nodes[ip] = node(program, nodes, ip);
+
+        // Now that every node exists, point each at the one after it and
+        // each branch at its target
+        for (int ip = 0; ip < code.length; ) {
+            int next = ip + 1 + Bytecode.operands(code[ip]);
+            if (next < code.length)
+                nodes[ip].next = nodes[next];
+            if (nodes[ip] instanceof Branch)
+                ((Branch) nodes[ip]).target = nodes[((Branch) nodes[ip]).address];
+            ip = next;
+        }
+        return new ThreadedCode(nodes);
+    }
+
+    // Any node that may transfer control somewhere other than next
+    static abstract class Branch extends Node {
+        final int address;
+        Node target;
+        Branch(int ip, int address) {
+            super(ip);
+            this.address = address;
+        }
+    }
+
+    private static Node node(Program program, Node[] nodes, int ip) {
+        int[] code = program.code;
+        switch (code[ip]) {
+            case NOP:
+            case YIELD:     // (threaded code never runs to a budget)
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { return next; }
+                };
+            case DUMP:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.ip = ip; vm.dump(); return next; }
+                };
+            case TRACE:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) {
+                        vm.trace(!vm.trace);
+                        if (vm.listener == null)
+                            return next;
+                        // Something's listening now, which threaded code
+                        // can't tell it about; stop and let the
+                        // interpreter carry on from the next instruction
+                        vm.ip = next.ip;
+                        return null;
+                    }
+                };
+            case PRINT:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.print(vm.pop()); return next; }
+                };
+            case HALT:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.ip = ip; return null; }
+                };
+            case FATAL:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { throw vm.fatal(ip); }
+                };
+            case CALLHOST:
+            {
+                int index = code[ip + 1];
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.callHost(index); return next; }
+                };
+            }
+
+            // Stack manipulation
+            case CONST:
+            {
+                int value = code[ip + 1];
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.push(value); return next; }
+                };
+            }
+            case POP:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.pop(); return next; }
+                };
+
+            // Binary math operations
+            // (We are assuming left-to-right parameter order)
+            case ADD:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { int rhs = vm.pop(); vm.push(vm.pop() + rhs); return next; }
+                };
+            case SUB:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { int rhs = vm.pop(); vm.push(vm.pop() - rhs); return next; }
+                };
+            case MUL:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { int rhs = vm.pop(); vm.push(vm.pop() * rhs); return next; }
+                };
+            case DIV:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { int rhs = vm.pop(); vm.push(vm.pop() / rhs); return next; }
+                };
+            case MOD:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { int rhs = vm.pop(); vm.push(vm.pop() % rhs); return next; }
+                };
+
+            // Unary math operations
+            case ABS:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.push(Math.abs(vm.pop())); return next; }
+                };
+            case NEG:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.push(- vm.pop()); return next; }
+                };
+
+            // Comparison ops
+            case EQ:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { int rhs = vm.pop(); vm.push(vm.pop() == rhs ? 1 : 0); return next; }
+                };
+            case NEQ:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { int rhs = vm.pop(); vm.push(vm.pop() != rhs ? 1 : 0); return next; }
+                };
+            case GT:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { int rhs = vm.pop(); vm.push(vm.pop() > rhs ? 1 : 0); return next; }
+                };
+            case LT:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { int rhs = vm.pop(); vm.push(vm.pop() < rhs ? 1 : 0); return next; }
+                };
+            case GTE:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { int rhs = vm.pop(); vm.push(vm.pop() >= rhs ? 1 : 0); return next; }
+                };
+            case LTE:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { int rhs = vm.pop(); vm.push(vm.pop() <= rhs ? 1 : 0); return next; }
+                };
+
+            // Branching ops
+            // (RJMPs were turned into JMPs by Program.load)
+            case JMP:
+                return new Branch(ip, code[ip + 1]) {
+                    Node exec(VirtualMachine vm) { return target; }
+                };
+            case JMPI:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) {
+                        int target = vm.pop();
+                        if (!program.isInstruction(target))
+                            throw new VirtualMachine.Exception("JMPI at " + ip + " to " + target + ", which is not an instruction");
+                        return nodes[target];
+                    }
+                };
+            case RJMPI:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) {
+                        int target = ip + vm.pop();
+                        if (!program.isInstruction(target))
+                            throw new VirtualMachine.Exception("RJMPI at " + ip + " to " + target + ", which is not an instruction");
+                        return nodes[target];
+                    }
+                };
+            case JZ:
+                return new Branch(ip, code[ip + 1]) {
+                    Node exec(VirtualMachine vm) { return vm.pop() == 0 ? target : next; }
+                };
+            case JNZ:
+                return new Branch(ip, code[ip + 1]) {
+                    Node exec(VirtualMachine vm) { return vm.pop() != 0 ? target : next; }
+                };
+
+            // Globals
+            case GLOAD:
+            {
+                int index = code[ip + 1];
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.push(vm.globals[index]); return next; }
+                };
+            }
+            case GSTORE:
+            {
+                int index = code[ip + 1];
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.globals[index] = vm.pop(); return next; }
+                };
+            }
+
+            case GCAS:
+            {
+                int index = code[ip + 1];
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) {
+                        int update = vm.pop();
+                        int expected = vm.pop();
+                        vm.push(vm.segment.compareAndSet(index, expected, update) ? 1 : 0);
+                        return next;
+                    }
+                };
+            }
+            case GADD:
+            {
+                int index = code[ip + 1];
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.push(vm.segment.getAndAdd(index, vm.pop())); return next; }
+                };
+            }
+            case CADD:
+            {
+                int counter = code[ip + 1];
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.segment.add(counter, vm.pop()); return next; }
+                };
+            }
+            case CLOAD:
+            {
+                int counter = code[ip + 1];
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.push(vm.segment.sum(counter)); return next; }
+                };
+            }
+
+            // Memory
+            case ALOAD:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.push(vm.memory.load(vm.pop())); return next; }
+                };
+            case ASTORE:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) {
+                        int value = vm.pop();
+                        vm.memory.store(vm.pop(), value);
+                        return next;
+                    }
+                };
+            case MSIZE:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.push(vm.memory.size()); return next; }
+                };
+            case MGROW:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.push(vm.memory.grow(vm.pop())); return next; }
+                };
+
+            // Functions
+            case CALL:
+            {
+                int frameSize = program.frameSizes[code[ip + 1]];
+                return new Branch(ip, code[ip + 1]) {
+                    Node exec(VirtualMachine vm) { vm.pushFrame(ip + 2, frameSize); return target; }
+                };
+            }
+            case TAILCALL:
+            {
+                int frameSize = program.frameSizes[code[ip + 1]];
+                return new Branch(ip, code[ip + 1]) {
+                    Node exec(VirtualMachine vm) { vm.reuseFrame(frameSize); return target; }
+                };
+            }
+            case RET:
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) {
+                        int returnAddress = vm.returnAddress();
+                        if (returnAddress == -1) {
+                            vm.ip = ip;
+                            throw new VirtualMachine.Exception("Cannot RET from topmost level");
+                        }
+                        vm.popFrame();
+                        return nodes[returnAddress];
+                    }
+                };
+            case LOAD:
+            {
+                int index = code[ip + 1];
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.push(vm.locals[vm.bp + index]); return next; }
+                };
+            }
+            case STORE:
+            {
+                int index = code[ip + 1];
+                return new Node(ip) {
+                    Node exec(VirtualMachine vm) { vm.locals[vm.bp + index] = vm.pop(); return next; }
+                };
+            }
+
+            default:
+                throw new VirtualMachine.Exception("Unrecognized opcode: " + code[ip]);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package simplevm.vm;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/*
+ * What the TRACE opcode turns on: a Listener writing a line per
+ * instruction, along with the stack it's about to work on, to the VM's
+ * trace output.
+ */
+final class Tracer implements Listener {
+    private final Consumer<String> output;
+
+    Tracer(Consumer<String> output) {
+        this.output = output;
+    }
+
+    public void instruction(VirtualMachine vm, int ip, int opcode, int operand) {
+        StringBuilder line = new StringBuilder();
+        line.append("(IP ").append(ip).append("):").append(Bytecode.name(opcode));
+        if (Bytecode.operands(opcode) > 0)
+            line.append(' ').append(operand);
+        if (opcode == Bytecode.RET)
+            line.append(" (to ").append(vm.returnAddress()).append(')');
+        line.append("; stack: ").append(Arrays.toString(vm.getStack()));
+        output.accept(line.toString());
+    }
+}
@@ -1,8 +1,8 @@
 package simplevm.vm;
 
-import java.util.LinkedList;
+import java.lang.invoke.MethodHandle;
 import java.util.Arrays;
-import java.util.List;
+import java.util.function.Consumer;
 
 import static simplevm.vm.Bytecode.*;
 
@@ -14,101 +14,505 @@ public class VirtualMachine {
         }
     }
     
-    // Tracing
+    /**
+     * How a VirtualMachine runs programs handed to execute(int[]) or
+     * execute(Program): SWITCH decodes and dispatches each instruction
+     * through one big switch; THREADED translates each Program once into
+     * a chain of pre-bound handlers (see ThreadedCode) and runs that;
+     * TIERED interprets like SWITCH, but compiles functions that get
+     * called often into JVM classes (see Jit); REGISTER translates each
+     * Program once into register-based code (see RegisterCode) and
+     * runs that.
+     */
+    public enum Engine {
+        SWITCH,
+        THREADED,
+        TIERED,
+        REGISTER
+    }
+    final Engine engine;
+
+    // Instrumentation
     //
+    // listener is whatever is watching right now: the host's listener,
+    // the tracer while TRACE is on, the sampler during a sampled run (see
+    // Flight recording), any of them at once, or (usually) nothing at
+    // all. The engines only ever check it for null, so running unwatched
+    // costs a null check per instruction at most.
+    Listener listener = null;
+    private Listener hostListener = null;
     boolean trace = false;
-    private void trace(String message) {
-        if (trace) {
-            System.out.println("(IP " + ip + "):" + message);
-        }
+    private Consumer<String> traceOutput = null;
+
+    /**
+     * Sends this VM's instruction, call and branch events to listener
+     * (or to nobody, if it's null) from now on.
+     */
+    public void setListener(Listener listener) {
+        hostListener = listener;
+        listen();
+    }
+    public Listener getListener() {
+        return hostListener;
+    }
+    /**
+     * Where TRACE and DUMP write their lines; this VM's Output (see
+     * setOutput()) unless told otherwise, or if output is null.
+     */
+    public void setTraceOutput(Consumer<String> output) {
+        traceOutput = output;
+        listen();
+    }
+    private Consumer<String> traceLines() {
+        return traceOutput != null ? traceOutput : output()::line;
+    }
+    void trace(boolean on) {
+        trace = on;
+        listen();
+    }
+    private void listen() {
+        Listener tracer = trace ? new Tracer(traceLines()) : null;
+        listener = both(both(hostListener, tracer), sampler);
+    }
+    private static Listener both(Listener first, Listener second) {
+        if (first == null)
+            return second;
+        else if (second == null)
+            return first;
+        else
+            return Listener.both(first, second);
     }
 
     // Dump
     //
-    private void dump() {
-        System.out.println("SimpleVM DUMP");
-        System.out.println("=============");
-        System.out.println("IP: " + ip);
-        System.out.println("Globals: " + Arrays.toString(globals));
-        System.out.println("Working stack (SP " + sp + "): " + Arrays.toString(Arrays.copyOfRange(stack, 0, sp+1)));
-        System.out.println("Call stack: ");
-        for (int f = frames.size(); f != 0; f--) {
-            CallFrame cf = frames.get(f - 1);
-            System.out.println("  Call Frame " + (f - 1) + ":");
-            System.out.println("  +-- Return Address: " + cf.returnAddress);
-            System.out.println("  +-- Locals: " + Arrays.toString(cf.locals));
+    void dump() {
+        Consumer<String> out = traceLines();
+        out.accept("SimpleVM DUMP");
+        out.accept("=============");
+        out.accept("IP: " + ip);
+        out.accept("Globals: " + Arrays.toString(globals));
+        out.accept("Memory: " + memory.size() + " words");
+        out.accept("Working stack (SP " + sp + "): " + Arrays.toString(Arrays.copyOfRange(stack, 0, sp+1)));
+        out.accept("Call stack: ");
+        for (int f = frameCount; f != 0; f--) {
+            int frame = (f - 1) * FRAME_WORDS;
+            int base = frames[frame + 1];
+            out.accept("  Call Frame " + (f - 1) + ":");
+            out.accept("  +-- Return Address: " + frames[frame]);
+            out.accept("  +-- Locals: " + Arrays.toString(Arrays.copyOfRange(locals, base, base + frames[frame + 2])));
         }
     }
 
     // Stack management
     //
+    // The stack starts out small and doubles as needed, up to maxStack
+    // values; see Builder.
     int sp = -1;
-    int[] stack = new int[100];
-    int[] getStack() {
+    int[] stack;
+    private final int maxStack;
+    public int[] getStack() {
         if (sp > -1)
             return Arrays.copyOf(stack, sp+1);
         else
             return new int[] { };
     }
     public void push(int value) {
+        if (sp + 1 == stack.length)
+            growStack(sp + 2);
         stack[++sp] = value;
-        trace("---> pushed " + value + "; stack: " + Arrays.toString(Arrays.copyOfRange(stack, 0, sp+1)));
     }
     public int pop() {
-        int result = stack[sp--];
-        trace("---> popped ; stack: " + Arrays.toString(Arrays.copyOfRange(stack, 0, sp+1)));
-        return result;
+        if (sp < 0)
+            throw new Exception("Stack underflow");
+        return stack[sp--];
+    }
+    private void growStack(int needed) {
+        if (needed > maxStack)
+            throw new Exception("Stack overflow: more than " + maxStack + " values");
+        stack = Arrays.copyOf(stack, (int) Math.min(maxStack, Math.max(needed, 2L * stack.length)));
     }
 
-    public static class CallFrame {
-        public int[] locals = null;
-        public int returnAddress = -1;
-        public CallFrame() {
-            // assume a max of 32 locals for now
-            locals = new int[32];
+    // Call frames
+    //
+    // Rather than an object per call, every frame lives in two flat
+    // arrays: "frames" holds a (return address, locals base, locals
+    // count) record per active call, and "locals" holds each frame's
+    // locals back to back, so the current frame's locals start at
+    // locals[bp]. Both arrays grow on demand (up to maxFrames frames and
+    // maxLocals locals in all) and are reused from call to call, so CALL
+    // and RET stop allocating once they've warmed up.
+    static final int FRAME_WORDS = 3;
+    // When we don't have a program to size frames from (the one-opcode
+    // execute() below), assume a max of 32 locals
+    static final int DEFAULT_LOCALS = 32;
+    int[] frames = new int[FRAME_WORDS * 16];
+    int frameCount = 0;
+    int[] locals;
+    int bp = 0;
+    private final int maxFrames;
+    private final int maxLocals;
+
+    void pushFrame(int returnAddress, int localCount) {
+        int base = 0;
+        if (frameCount > 0) {
+            int top = (frameCount - 1) * FRAME_WORDS;
+            base = frames[top + 1] + frames[top + 2];
+        }
+        int frame = frameCount * FRAME_WORDS;
+        if (frame + FRAME_WORDS > frames.length) {
+            if (frameCount >= maxFrames)
+                throw new Exception("Call stack overflow: more than " + maxFrames + " frames");
+            frames = Arrays.copyOf(frames, (int) Math.min((long) maxFrames * FRAME_WORDS, 2L * frames.length));
+        }
+        growLocals(base, localCount);
+        frames[frame] = returnAddress;
+        frames[frame + 1] = base;
+        frames[frame + 2] = localCount;
+        frameCount++;
+        bp = base;
+    }
+    // For TAILCALL: start the current frame over with localCount fresh
+    // locals, keeping its return address
+    void reuseFrame(int localCount) {
+        growLocals(bp, localCount);
+        frames[(frameCount - 1) * FRAME_WORDS + 2] = localCount;
+    }
+    private void growLocals(int base, int localCount) {
+        if (base + localCount > locals.length) {
+            if ((long) base + localCount > maxLocals)
+                throw new Exception("Out of locals: more than " + maxLocals + " in all");
+            locals = Arrays.copyOf(locals, (int) Math.min(maxLocals, Math.max(2L * locals.length, base + localCount)));
+        }
+        Arrays.fill(locals, base, base + localCount, 0);
+    }
+    int returnAddress() {
+        return frames[(frameCount - 1) * FRAME_WORDS];
+    }
+    int localCount() {
+        return frames[(frameCount - 1) * FRAME_WORDS + 2];
+    }
+    void popFrame() {
+        frameCount--;
+        bp = frameCount > 0 ? frames[(frameCount - 1) * FRAME_WORDS + 1] : 0;
+    }
+
+    public VirtualMachine() {
+        this(Engine.SWITCH);
+    }
+    public VirtualMachine(Engine engine) {
+        this(builder().engine(engine));
+    }
+    private VirtualMachine(Builder config) {
+        this.engine = config.engine;
+        this.stack = new int[config.stackSize];
+        this.maxStack = config.maxStackSize;
+        this.locals = new int[config.localsSize];
+        this.maxLocals = config.maxLocalsSize;
+        this.maxFrames = config.maxCallDepth;
+        this.maxGlobals = config.maxGlobals;
+        this.segment = config.shared != null ? config.shared : Globals.unshared(config.globalCount, config.counterCount);
+        this.globals = segment.values;
+        this.memory = new Memory(config.memorySize, config.maxMemorySize);
+        // We always have at least one frame
+        pushFrame(-1, DEFAULT_LOCALS);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+    /**
+     * How big a VirtualMachine starts out, and how big it may get. Every
+     * size has a default; sizedFor() picks starting sizes to suit a
+     * particular program, so that VMs running small scripts stay small.
+     * Anything outgrowing its maximum throws VirtualMachine.Exception.
+     *
+     *     VirtualMachine vm = VirtualMachine.builder()
+     *         .engine(Engine.THREADED)
+     *         .sizedFor(program)
+     *         .build();
+     */
+    public static final class Builder {
+        private Engine engine = Engine.SWITCH;
+        private int stackSize = 16;
+        private int maxStackSize = 1 << 20;
+        private int localsSize = 64;
+        private int maxLocalsSize = 1 << 22;
+        private int maxCallDepth = 1 << 20;
+        private int globalCount = 32;
+        private int counterCount = 8;
+        private int maxGlobals = 1 << 16;
+        private Globals shared = null;
+        private int memorySize = 0;
+        private int maxMemorySize = 1 << 24;
+
+        private Builder() { }
+
+        public Builder engine(Engine engine) {
+            this.engine = engine;
+            return this;
+        }
+        /** Operand stack: values to start with, and the most it can hold. */
+        public Builder stack(int initial, int max) {
+            check(initial, max, "stack");
+            stackSize = initial;
+            maxStackSize = max;
+            return this;
+        }
+        /** Locals, across all active frames. */
+        public Builder locals(int initial, int max) {
+            check(initial, max, "locals");
+            localsSize = initial;
+            maxLocalsSize = max;
+            return this;
+        }
+        /** How many CALLs deep programs may go. */
+        public Builder maxCallDepth(int max) {
+            check(1, max, "call depth");
+            maxCallDepth = max;
+            return this;
+        }
+        /**
+         * Globals and counters to start with; the globals grow (up to max)
+         * for programs that use more.
+         */
+        public Builder globals(int initial, int counters, int max) {
+            check(initial, max, "globals");
+            check(counters, counters, "counters");
+            globalCount = initial;
+            counterCount = counters;
+            maxGlobals = max;
+            return this;
+        }
+        /** Use a shared segment for globals and counters; see Globals. */
+        public Builder globals(Globals shared) {
+            this.shared = shared;
+            return this;
+        }
+        /**
+         * Linear memory, in words (see Memory); at most MAX_MEMORY, which
+         * is as many as a direct buffer can hold.
+         */
+        public Builder memory(int initial, int max) {
+            check(initial, max, "memory");
+            if (max > MAX_MEMORY)
+                throw new Exception("Bad memory size: " + max + " words; at most " + MAX_MEMORY);
+            memorySize = initial;
+            maxMemorySize = max;
+            return this;
+        }
+        /**
+         * Start out with about as much stack, locals and globals as
+         * program needs: enough that it shouldn't have to grow anything,
+         * and no more.
+         */
+        public Builder sizedFor(Program program) {
+            stackSize = Math.min(Math.max(program.stackHint(), 1), maxStackSize);
+            localsSize = Math.min(Math.max(program.frameSizes[0], DEFAULT_LOCALS), maxLocalsSize);
+            globalCount = Math.min(program.globalCount, maxGlobals);
+            counterCount = program.counterCount;
+            return this;
+        }
+        public VirtualMachine build() {
+            return new VirtualMachine(this);
+        }
+
+        private static void check(int initial, int max, String what) {
+            if (initial < 0 || max < initial)
+                throw new Exception("Bad " + what + " sizes: " + initial + " to start, " + max + " at most");
         }
     }
-    public List<CallFrame> frames = new LinkedList<>();
-    public CallFrame fp() { return frames.get(frames.size() - 1); }
 
     // Globals
     //
-    int[] globals = new int[32];
+    // Normally a VM has globals of its own, but it can share a segment
+    // with others (see Globals); either way, globals is the segment's
+    // values, for the engines to get at directly.
+    Globals segment;
+    int[] globals;
+    final int maxGlobals;
     int[] getGlobals() {
         return globals;
     }
+    /**
+     * Use the given segment for globals and counters from now on, in
+     * place of this VM's own.
+     */
+    public void setGlobals(Globals globals) {
+        this.segment = globals;
+        this.globals = globals.values;
+    }
+    public Globals getGlobalSegment() {
+        return segment;
+    }
+
+    // Memory
+    //
+    // Words, not bytes, so the most there can be is what fits in a
+    // direct buffer's int-sized capacity.
+    public static final int MAX_MEMORY = Integer.MAX_VALUE / 4;
+    final Memory memory;
+    public Memory getMemory() {
+        return memory;
+    }
+
+    // Host I/O
+    //
+    // Output is buffered (standard output through a BufferedOutput,
+    // unless told otherwise), and flushed whenever the VM stops running.
+    private Output output = null;
+    /** Where PRINT, and TRACE and DUMP, write from now on. */
+    public void setOutput(Output output) {
+        flush();
+        this.output = output;
+        listen();
+    }
+    public Output getOutput() {
+        return output();
+    }
+    private Output output() {
+        if (output == null)
+            output = new BufferedOutput(System.out);
+        return output;
+    }
+    void print(int value) {
+        output().print(value);
+    }
+    void flush() {
+        if (output != null)
+            output.flush();
+    }
+
+    // Host functions
+    //
+    // What CALLHOST calls, by index: each bound when it's set, into a
+    // handle that takes its arguments off the stack and pushes its
+    // result (see HostFunctions), so calling it is one invokeExact.
+    private MethodHandle[] hostFunctions = new MethodHandle[0];
+    private int[] hostArities = new int[0];
+
+    /**
+     * Make function what CALLHOST index calls (or, if it's null, make
+     * CALLHOST index fail). function has to take only ints and return an
+     * int or nothing; CALLHOST pops its arguments (the last one on top)
+     * and pushes what it returns.
+     *
+     *     vm.setHostFunction(0, MethodHandles.lookup().findStatic(Math.class, "max",
+     *         MethodType.methodType(int.class, int.class, int.class)));
+     */
+    public void setHostFunction(int index, MethodHandle function) {
+        if (index < 0)
+            throw new Exception("Negative host function " + index);
+        if (index >= hostFunctions.length) {
+            hostFunctions = Arrays.copyOf(hostFunctions, Math.max(index + 1, 2 * hostFunctions.length));
+            hostArities = Arrays.copyOf(hostArities, hostFunctions.length);
+        }
+        hostFunctions[index] = function == null ? null : HostFunctions.bind(function);
+        hostArities[index] = function == null ? 0 : HostFunctions.arity(function);
+    }
+    void callHost(int index) {
+        MethodHandle function = (index >= 0 && index < hostFunctions.length) ? hostFunctions[index] : null;
+        if (function == null)
+            throw new Exception("No host function " + index);
+        if (sp + 1 < hostArities[index])
+            throw new Exception("Stack underflow");
+        try {
+            function.invokeExact(this);
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable t) {
+            throw new Exception("Host function " + index + " failed: " + t);
+        }
+    }
 
     // Execution
     //
     int ip = 0;
+    Program program = null;
+
+    Exception fatal(int at) {
+        ip = at;
+        return new Exception("FATAL bytecode executed at " + at);
+    }
+
+    // Thrown to unwind out of compiled code when something it called
+    // HALTs; there's only ever one, and it carries no stack trace.
+    static final class Halt extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        static final Halt INSTANCE = new Halt();
+        private Halt() {
+            super(null, null, false, false);
+        }
+    }
+
+    // CALL from compiled code: run target, compiled if it can be,
+    // interpreted if not, and return once it RETs
+    // Compiled code ends with a TAILCALL to some other function by
+    // leaving the target here and returning; whoever ran it then calls
+    // tailCalls() to run the target in its place, and so on, so that
+    // compiled functions calling each other last pile up neither VM
+    // frames nor JVM ones. (An interpreted target does get a frame, but
+    // only until it RETs.)
+    int tailTarget = -1;
+    void tailCalls() {
+        while (tailTarget >= 0) {
+            int target = tailTarget;
+            tailTarget = -1;
+            Jit.Compiled compiled = listener == null ? program.jit().enter(target) : null;
+            if (compiled != null) {
+                compiled.invoke(this);
+            }
+            else {
+                pushFrame(returnAddress(), program.frameSizes[target]);
+                interpret(program, target, frameCount);
+            }
+        }
+    }
+
+    void call(int target, int returnAddress) {
+        Jit.Compiled compiled = frameCount < Jit.MAX_DEPTH && listener == null ? program.jit().enter(target) : null;
+        if (compiled != null) {
+            pushFrame(returnAddress, 0);
+            compiled.invoke(this);
+            tailCalls();
+            popFrame();
+        }
+        else {
+            pushFrame(returnAddress, program.frameSizes[target]);
+            interpret(program, target, frameCount);
+        }
+    }
+
     public void execute(int opcode, int... operands) {
+        if (listener != null)
+            listener.instruction(this, ip, opcode, operands.length > 0 ? operands[0] : 0);
         switch (opcode) {
             case NOP:
+            case YIELD:
                 // Do nothing!
-                trace("NOP");
                 break;
             case DUMP:
-                trace("DUMP");
                 dump();
+                flush();
                 break;
             case TRACE:
-                trace = !trace;
-                trace("TRACE");
+                trace(!trace);
                 break;
             case PRINT:
-                trace("PRINT");
-                System.out.println(pop());
+                print(pop());
+                flush();
                 break;
             case FATAL:
-                trace("FATAL");
-                throw new Exception("FATAL bytecode executed at " + ip);
-            
+                throw fatal(ip);
+            case CALLHOST:
+                callHost(operands[0]);
+                break;
+
             case CONST:
-                trace("CONST " + operands[0]);
                 push(operands[0]);
                 break;
             case POP:
-                trace("POP");
                 pop();
                 break;
 
@@ -123,22 +527,20 @@ public class VirtualMachine {
                 int rhs = pop();
                 int lhs = pop();
                 switch (opcode) {
-                    case ADD: trace("ADD"); push(lhs + rhs); break;
-                    case SUB: trace("SUB"); push(lhs - rhs); break;
-                    case MUL: trace("MUL"); push(lhs * rhs); break;
-                    case DIV: trace("DIV"); push(lhs / rhs); break;
-                    case MOD: trace("MOD"); push(lhs % rhs); break;
+                    case ADD: push(lhs + rhs); break;
+                    case SUB: push(lhs - rhs); break;
+                    case MUL: push(lhs * rhs); break;
+                    case DIV: push(lhs / rhs); break;
+                    case MOD: push(lhs % rhs); break;
                     default: throw new Exception("Should never happen");
                 }
                 break;
             }
             // Unary math operations
             case ABS:
-                trace("ABS");
                 push(Math.abs(pop()));
                 break;
             case NEG:
-                trace("NEG");
                 push(- pop());
                 break;
 
@@ -154,12 +556,12 @@ public class VirtualMachine {
                 int rhs = pop();
                 int lhs = pop();
                 switch (opcode) {
-                    case EQ: trace("EQ"); push(lhs == rhs ? 1 : 0); break;
-                    case NEQ: trace("NEQ"); push(lhs != rhs ? 1 : 0); break;
-                    case GT: trace("GT"); push(lhs > rhs ? 1 : 0); break;
-                    case LT: trace("LT"); push(lhs < rhs ? 1 : 0); break;
-                    case GTE: trace("GTE"); push(lhs >= rhs ? 1 : 0); break;
-                    case LTE: trace("LTE"); push(lhs <= rhs ? 1 : 0); break;
+                    case EQ: push(lhs == rhs ? 1 : 0); break;
+                    case NEQ: push(lhs != rhs ? 1 : 0); break;
+                    case GT: push(lhs > rhs ? 1 : 0); break;
+                    case LT: push(lhs < rhs ? 1 : 0); break;
+                    case GTE: push(lhs >= rhs ? 1 : 0); break;
+                    case LTE: push(lhs <= rhs ? 1 : 0); break;
                     default:
                         throw new Exception("Should never reach here");
                 }
@@ -169,34 +571,34 @@ public class VirtualMachine {
             // Branching ops
             case JMP:
             {
-                trace("JMP " + operands[0]);
+                if (listener != null) listener.branch(this, ip, operands[0], true);
                 ip = operands[0];
                 break;
             }
             case RJMP:
             {
-                trace("RJMP " + operands[0]);
+                if (listener != null) listener.branch(this, ip, ip + operands[0], true);
                 ip += operands[0];
                 break;
             }
             case JMPI:
             {
-                trace("JMPI");
                 int location = pop();
+                if (listener != null) listener.branch(this, ip, location, true);
                 ip = location;
                 break;
             }
             case RJMPI:
             {
-                trace("RJMPI");
                 int offset = pop();
+                if (listener != null) listener.branch(this, ip, ip + offset, true);
                 ip += offset;
                 break;
             }
             case JZ:
             {
-                trace("JZ " + operands[0]);
                 int jump = pop();
+                if (listener != null) listener.branch(this, ip, operands[0], jump == 0);
                 if (jump == 0) { 
                     ip = operands[0];
                 }
@@ -207,8 +609,8 @@ public class VirtualMachine {
             }
             case JNZ:
             {
-                trace("JNZ " + operands[0]);
                 int jump = pop();
+                if (listener != null) listener.branch(this, ip, operands[0], jump != 0);
                 if (jump != 0) { 
                     ip = operands[0];
                 }
@@ -222,53 +624,93 @@ public class VirtualMachine {
             //
             case GLOAD:
             {
-                trace("GLOAD " + operands[0]);
                 push(globals[operands[0]]);
                 break;
             }
             case GSTORE:
             {
-                trace("GSTORE " + operands[0]);
                 globals[operands[0]] = pop();
                 break;
             }
+            case GCAS:
+            {
+                int update = pop();
+                int expected = pop();
+                push(segment.compareAndSet(operands[0], expected, update) ? 1 : 0);
+                break;
+            }
+            case GADD:
+                push(segment.getAndAdd(operands[0], pop()));
+                break;
+            case CADD:
+                segment.add(operands[0], pop());
+                break;
+            case CLOAD:
+                push(segment.sum(operands[0]));
+                break;
+
+            // Memory
+            //
+            case ALOAD:
+                push(memory.load(pop()));
+                break;
+            case ASTORE:
+            {
+                int value = pop();
+                memory.store(pop(), value);
+                break;
+            }
+            case MSIZE:
+                push(memory.size());
+                break;
+            case MGROW:
+                push(memory.grow(pop()));
+                break;
 
             // Functions
             //
             case CALL:
             {
-                trace("CALL to " + operands[0]); // go to next instruction
-                CallFrame next = new CallFrame();
-                next.returnAddress = ip + 2; // take the instruction after this+operand
-                frames.add(next);
+                if (listener != null) listener.call(this, ip, operands[0]);
+                pushFrame(ip + 2, DEFAULT_LOCALS); // take the instruction after this+operand
                 ip = operands[0];
 
                 break;
             }
+            case TAILCALL:
+            {
+                if (listener != null) listener.call(this, ip, operands[0]);
+                reuseFrame(DEFAULT_LOCALS);
+                ip = operands[0];
+                break;
+            }
             case RET:
             {
-                CallFrame sf = frames.remove(frames.size() - 1);
-                trace("RET (to " + sf.returnAddress + ")");
-                if (sf.returnAddress == -1) {
+                int returnAddress = returnAddress();
+                if (returnAddress == -1) {
                     // We are returning from the topmost level,
                     // which means our CALL/RETs are imbalanced
                     throw new Exception("Cannot RET from topmost level");
                 }
                 else {
-                    ip = sf.returnAddress;
+                    if (listener != null) listener.ret(this, ip, returnAddress);
+                    popFrame();
+                    ip = returnAddress;
                 }
                 break;
             }
             case LOAD:
             {
-                trace("LOAD " + operands[0]);
-                push(fp().locals[operands[0]]);
+                if (operands[0] < 0 || operands[0] >= localCount())
+                    throw new Exception("No such local: " + operands[0]);
+                push(locals[bp + operands[0]]);
                 break;
             }
             case STORE:
             {
-                trace("STORE " + operands[0]);
-                fp().locals[operands[0]] = pop();
+                if (operands[0] < 0 || operands[0] >= localCount())
+                    throw new Exception("No such local: " + operands[0]);
+                locals[bp + operands[0]] = pop();
                 break;
             }
 
@@ -276,73 +718,787 @@ public class VirtualMachine {
                 throw new Exception("Unrecognized opcode: " + opcode);
         }
     }
+    // Run a whole program. Unlike execute(int, int...), which is handy for
+    // poking at the VM one opcode at a time, this decodes each instruction
+    // in place out of the code array, so nothing gets allocated per
+    // instruction unless something is listening. Code is verified by
+    // Program.load before any of it runs; hosts running the same code
+    // over and over can load it once and hand the Program in directly.
     public void execute(int[] code) {
-        // We always have at least one CallFrame
-        frames.add(new CallFrame());
+        execute(Program.load(code));
+    }
+    public void execute(Program program) {
+        prepare(program);
+
+        // We always have at least one frame, sized for the top level
+        frameCount = 0;
+        pushFrame(-1, program.frameSizes[0]);
+        this.program = program;
+
+        Events.Execute event = started();
+        try {
+            switch (engine) {
+                case SWITCH:
+                    interpret(program, 0, -1);
+                    break;
+                case THREADED:
+                    thread(program);
+                    break;
+                case TIERED:
+                    try {
+                        interpret(program, 0, -1);
+                    }
+                    catch (Halt halt) {
+                        // Something called from compiled code HALTed
+                    }
+                    break;
+                case REGISTER:
+                    registers(program);
+                    break;
+            }
+        }
+        catch (RuntimeException e) {
+            failed(e);
+            throw e;
+        }
+        finally {
+            flush();
+            finished(event, program.length());
+        }
+    }
+    /**
+     * Run packed code (see PackedCode). The SWITCH engine runs the packed
+     * words as they are; the other engines run the code unpacked, just as
+     * execute(Program) would.
+     */
+    public void execute(PackedCode code) {
+        if (engine != Engine.SWITCH) {
+            execute(code.program);
+            return;
+        }
+        prepare(code.program);
+        frameCount = 0;
+        pushFrame(-1, code.frameSizes[0]);
+        // ip will be a packed address, which means nothing to run()
+        this.program = null;
+        Events.Execute event = started();
+        try {
+            code.run(this);
+        }
+        catch (RuntimeException e) {
+            failed(e);
+            throw e;
+        }
+        finally {
+            flush();
+            finished(event, code.length());
+        }
+    }
+    private void prepare(Program program) {
+        if (segment.unshared && (program.globalCount > globals.length || program.counterCount > segment.counters())
+                && program.globalCount <= maxGlobals) {
+            // Our own globals can grow to suit; shared ones can't
+            setGlobals(segment.grow(program.globalCount, program.counterCount));
+        }
+        if (program.globalCount > globals.length)
+            throw new Exception("Program uses " + program.globalCount + " globals; only " + globals.length + " available");
+        if (program.counterCount > segment.counters())
+            throw new Exception("Program uses " + program.counterCount + " counters; only " + segment.counters() + " available");
+        int hint = program.stackHint();
+        if (hint > stack.length)
+            stack = Arrays.copyOf(stack, Math.min(hint, maxStack));
+    }
+
+    // Flight recording
+    //
+    // Every run (execute(), resume() or run()) is a simplevm.Execute
+    // event, and an exception ending one is a simplevm.Exception; see
+    // Events. While JFR isn't recording them, all this costs a run is a
+    // read of Events.sampleDue; the engines themselves do nothing extra.
+    //
+    // While it is, the deepest a run calls is read off the frames array
+    // afterwards: the records above the frames in use are zeroed as the
+    // run starts, and no frame ever has 0 for its return address (the
+    // top level's is -1, and a CALL's is past the CALL), so the highest
+    // record with a non-zero one is as deep as the run got. Once a
+    // period, a run is sampled instead: the sampler listens to it,
+    // counting its instructions and each opcode's share of them, and it's
+    // recorded as an OpcodeHistogram (interpreted, it's no measure of
+    // how long the engine takes, so it's left out of the Execute events).
+    private Events.Sampler sampler = null;
+
+    private Events.Execute started() {
+        Events.Execute event = new Events.Execute();
+        if (event.isEnabled()) {
+            Arrays.fill(frames, frameCount * FRAME_WORDS, frames.length, 0);
+            event.measuring = true;
+        }
+        if (Events.sampleDue) {
+            Events.sampleDue = false;
+            sampler = new Events.Sampler();
+            listen();
+        }
+        event.begin();
+        return event;
+    }
+    private void finished(Events.Execute event, int length) {
+        event.end();
+        Events.Sampler sampled = sampler;
+        if (sampled != null) {
+            sampler = null;
+            listen();
+            sampled.commit(engine.name());
+            return;
+        }
+        if (event.measuring && event.shouldCommit()) {
+            int depth = frames.length / FRAME_WORDS;
+            while (depth > frameCount && frames[(depth - 1) * FRAME_WORDS] == 0)
+                depth--;
+            event.engine = engine.name();
+            event.length = length;
+            event.callDepth = depth;
+            event.commit();
+        }
+    }
+    private void failed(RuntimeException e) {
+        Events.Failure event = new Events.Failure();
+        if (event.shouldCommit()) {
+            event.exceptionClass = e.getClass();
+            event.message = e.getMessage();
+            event.ip = ip;
+            event.commit();
+        }
+    }
+
+    // Snapshots
+    //
+
+    /** This VM's state as it stands; see Snapshot. */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+    /**
+     * Make this VM's state snapshot's: its stack, frames and locals (this
+     * VM's own are overwritten), its globals and counters (which are
+     * written into a shared segment, if this VM is using one), and its
+     * memory. All of it is bulk copying, growing the arrays first if they
+     * need it.
+     */
+    public void restore(Snapshot snapshot) {
+        if (snapshot.stack.length > stack.length)
+            growStack(snapshot.stack.length);
+        int frameCount = snapshot.frames.length / FRAME_WORDS;
+        if (frameCount > maxFrames)
+            throw new Exception("Call stack overflow: more than " + maxFrames + " frames");
+        if (snapshot.locals.length > maxLocals)
+            throw new Exception("Out of locals: more than " + maxLocals + " in all");
+        if (segment.unshared && (snapshot.globals.length > globals.length || snapshot.counters.length > segment.counters())
+                && snapshot.globals.length <= maxGlobals) {
+            setGlobals(segment.grow(snapshot.globals.length, snapshot.counters.length));
+        }
+        if (snapshot.globals.length > globals.length || snapshot.counters.length > segment.counters())
+            throw new Exception("Snapshot has " + snapshot.globals.length + " globals and " + snapshot.counters.length
+                + " counters; only " + globals.length + " and " + segment.counters() + " available");
+        if (snapshot.memory.length > memory.max())
+            throw new Exception("Snapshot has " + snapshot.memory.length + " words of memory; only " + memory.max() + " available");
+
+        System.arraycopy(snapshot.stack, 0, stack, 0, snapshot.stack.length);
+        sp = snapshot.stack.length - 1;
+        if (snapshot.frames.length > frames.length)
+            frames = new int[snapshot.frames.length];
+        System.arraycopy(snapshot.frames, 0, frames, 0, snapshot.frames.length);
+        this.frameCount = frameCount;
+        bp = frames[(frameCount - 1) * FRAME_WORDS + 1];
+        if (snapshot.locals.length > locals.length)
+            locals = new int[snapshot.locals.length];
+        System.arraycopy(snapshot.locals, 0, locals, 0, snapshot.locals.length);
+        segment.load(snapshot.globals, snapshot.counters);
+        memory.restore(snapshot.memory);
+        ip = snapshot.ip;
+    }
+    /**
+     * Carry on running program from ip, with the stack and frames as they
+     * are: after restoring a snapshot taken partway through running it,
+     * say. (Resuming is always interpreted, until the next execute().)
+     * Throws VirtualMachine.Exception if ip, or any frame's return
+     * address or locals, can't belong to a run of program.
+     */
+    public void resume(Program program) {
+        if (!program.isInstruction(ip))
+            throw new Exception("Cannot resume at " + ip + ": not an instruction");
+        for (int frame = 0; frame < frameCount; frame++) {
+            int returnAddress = frames[frame * FRAME_WORDS];
+            int base = frames[frame * FRAME_WORDS + 1];
+            int count = frames[frame * FRAME_WORDS + 2];
+            if (returnAddress != -1 && !program.isInstruction(returnAddress))
+                throw new Exception("Cannot resume: frame " + frame + " returns to " + returnAddress + ", not an instruction");
+            if (base < 0 || count < 0 || (long) base + count > locals.length)
+                throw new Exception("Cannot resume: frame " + frame + " has locals out of range");
+        }
+        prepare(program);
+        this.program = program;
+        Events.Execute event = started();
+        try {
+            interpret(program, ip, -1);
+        }
+        catch (Halt halt) {
+            // Something called from compiled code HALTed
+        }
+        catch (RuntimeException e) {
+            failed(e);
+            throw e;
+        }
+        finally {
+            flush();
+            finished(event, program.length());
+        }
+    }
+
+    // Running to a budget
+    //
+    // A budget is counted in steps: every backward branch taken and every
+    // CALL (or TAILCALL) is one, since those are the only ways a program
+    // can keep going for long (straight-line code runs off the end soon
+    // enough). fuel is what's left of it; it only ever runs out during
+    // run(), since otherwise it starts at Long.MAX_VALUE. Checking it
+    // costs a decrement at backward branches and calls, and nothing
+    // anywhere else.
+
+    /** Why run() came back. */
+    public enum Status {
+        /** The program HALTed; running it any more does nothing. */
+        HALTED,
+        /** The budget ran out; run() again to carry on. */
+        OUT_OF_BUDGET,
+        /** The program executed YIELD; run() again to carry on. */
+        YIELDED
+    }
+    private static final long UNMETERED = Long.MAX_VALUE;
+    long fuel = UNMETERED;
+    boolean metered = false;
+    Status status = Status.HALTED;
 
-        for (ip = 0; ip < code.length; )
+    /**
+     * Get ready to run program from the top a slice at a time, by way of
+     * run(). Nothing runs until then.
+     */
+    public void start(Program program) {
+        prepare(program);
+        frameCount = 0;
+        pushFrame(-1, program.frameSizes[0]);
+        this.program = program;
+        ip = 0;
+    }
+    /**
+     * Run the program start() last set going (or execute() or resume()
+     * last ran) from ip, for at most budget steps (see above), and say
+     * why it stopped. Each step is taken before the budget is checked,
+     * so even a budget of 0 gets somewhere.
+     *
+     * A scheduler can share a few threads out between any number of VMs
+     * this way:
+     *
+     *     while (vm.run(1000) != VirtualMachine.Status.HALTED)
+     *         ;   // (or put it back on the run queue)
+     *
+     * Whatever the engine, budgeted runs are interpreted: only the
+     * interpreter keeps all of a program's state in the VM, where it can
+     * be left between slices.
+     */
+    public Status run(long budget) {
+        if (program == null)
+            throw new Exception("Nothing to run: start() a program first");
+        if (budget < 0)
+            throw new Exception("Negative budget " + budget);
+        fuel = budget;
+        metered = true;
+        status = Status.HALTED;
+        Events.Execute event = started();
+        try {
+            interpret(program, ip, -1);
+        }
+        catch (RuntimeException e) {
+            failed(e);
+            throw e;
+        }
+        finally {
+            fuel = UNMETERED;
+            metered = false;
+            flush();
+            finished(event, program.length());
+        }
+        return status;
+    }
+    private void registers(Program program) {
+        RegisterCode registers = program.registers();
+        if (listener != null || registers == RegisterCode.NONE) {
+            // Register code doesn't send events, so interpret instead
+            interpret(program, 0, -1);
+            return;
+        }
+        frameCount = 0;
+        pushFrame(-1, registers.frameSize);
+        try {
+            registers.run(this);
+        }
+        catch (Halt halt) {
+            // Something interpreted on its behalf HALTed
+        }
+    }
+    private void thread(Program program) {
+        if (listener != null) {
+            // Threaded code doesn't send events, so interpret instead
+            interpret(program, 0, -1);
+            return;
+        }
+        ThreadedCode.Node node = program.threaded().entry();
+        try {
+            while (node != null)
+                node = node.exec(this);
+        }
+        catch (RuntimeException e) {
+            // Nodes only keep ip up to date where they stop; one that
+            // throws stops there too
+            ip = node.ip;
+            throw e;
+        }
+        // Turning TRACE on stops the threaded code with ip at the next
+        // instruction; the interpreter picks up from there
+        if (listener != null && program.code[ip] != HALT)
+            interpret(program, ip, -1);
+    }
+    // Interpret from start. At the top level depth is -1 and we run
+    // until HALT; when compiled code calls into the interpreter, depth is
+    // the frame count of the call and we return when that frame RETs.
+    void interpret(Program program, int start, int depth) {
+        // The program has been verified, so every opcode we land on is
+        // one we know, every operand is there, and every static jump lands
+        // on an instruction; the HALT on the end stops us running off it.
+        // Listeners get to see every instruction, so while there is one we
+        // run the unfused code (fusing leaves it laid out the same, so we
+        // can switch between the two at any instruction). Running to a
+        // budget, we do the same, and never leave the loop for compiled
+        // code, so that we can stop at any backward branch or CALL.
+        Listener listener = this.listener;
+        int[] code = (listener == null && !metered) ? program.dispatch : program.code;
+        boolean tiered = engine == Engine.TIERED && !metered;
+        for (ip = start; ; )
         {
-            switch (code[ip])
+            int opcode = code[ip];
+            if (listener != null)
+                listener.instruction(this, ip, opcode, Bytecode.operands(opcode) > 0 ? code[ip + 1] : 0);
+            switch (opcode)
             {
                 case HALT:
-                    trace("HALT at " + ip);
+                    if (depth >= 0)
+                        throw Halt.INSTANCE;
                     return;
 
-                // 0-operand opcodes
                 case NOP:
-                case TRACE:
+                    ip += 1;
+                    break;
+                case YIELD:
+                    ip += 1;
+                    if (metered) {
+                        status = Status.YIELDED;
+                        return;
+                    }
+                    break;
                 case DUMP:
+                    dump();
+                    ip += 1;
+                    break;
+                case TRACE:
+                    trace(!trace);
+                    listener = this.listener;
+                    code = (listener == null && !metered) ? program.dispatch : program.code;
+                    ip += 1;
+                    break;
                 case PRINT:
+                    print(pop());
+                    ip += 1;
+                    break;
                 case FATAL:
+                    throw fatal(ip);
+                case CALLHOST:
+                    callHost(code[ip + 1]);
+                    ip += 2;
+                    break;
+
+                // Stack manipulation
+                case CONST:
+                {
+                    int operand = code[ip + 1];
+                    push(operand);
+                    ip += 2;
+                    break;
+                }
                 case POP:
+                    pop();
+                    ip += 1;
+                    break;
+
+                // Binary math operations
+                // (We are assuming left-to-right parameter order)
                 case ADD:
+                {
+                    int rhs = pop();
+                    int lhs = pop();
+                    push(lhs + rhs);
+                    ip += 1;
+                    break;
+                }
                 case SUB:
+                {
+                    int rhs = pop();
+                    int lhs = pop();
+                    push(lhs - rhs);
+                    ip += 1;
+                    break;
+                }
                 case MUL:
+                {
+                    int rhs = pop();
+                    int lhs = pop();
+                    push(lhs * rhs);
+                    ip += 1;
+                    break;
+                }
                 case DIV:
+                {
+                    int rhs = pop();
+                    int lhs = pop();
+                    push(lhs / rhs);
+                    ip += 1;
+                    break;
+                }
                 case MOD:
+                {
+                    int rhs = pop();
+                    int lhs = pop();
+                    push(lhs % rhs);
+                    ip += 1;
+                    break;
+                }
+
+                // Unary math operations
                 case ABS:
+                    push(Math.abs(pop()));
+                    ip += 1;
+                    break;
                 case NEG:
+                    push(- pop());
+                    ip += 1;
+                    break;
+
+                // Comparison ops
                 case EQ:
+                {
+                    int rhs = pop();
+                    int lhs = pop();
+                    push(lhs == rhs ? 1 : 0);
+                    ip += 1;
+                    break;
+                }
                 case NEQ:
+                {
+                    int rhs = pop();
+                    int lhs = pop();
+                    push(lhs != rhs ? 1 : 0);
+                    ip += 1;
+                    break;
+                }
                 case GT:
+                {
+                    int rhs = pop();
+                    int lhs = pop();
+                    push(lhs > rhs ? 1 : 0);
+                    ip += 1;
+                    break;
+                }
                 case LT:
+                {
+                    int rhs = pop();
+                    int lhs = pop();
+                    push(lhs < rhs ? 1 : 0);
+                    ip += 1;
+                    break;
+                }
                 case GTE:
+                {
+                    int rhs = pop();
+                    int lhs = pop();
+                    push(lhs >= rhs ? 1 : 0);
+                    ip += 1;
+                    break;
+                }
                 case LTE:
-                    execute(code[ip]);
+                {
+                    int rhs = pop();
+                    int lhs = pop();
+                    push(lhs <= rhs ? 1 : 0);
                     ip += 1;
                     break;
+                }
 
+                // Branching ops
+                case JMP:
+                {
+                    int target = code[ip + 1];
+                    if (listener != null) listener.branch(this, ip, target, true);
+                    if (target <= ip && --fuel < 0) {
+                        ip = target;
+                        status = Status.OUT_OF_BUDGET;
+                        return;
+                    }
+                    ip = target;
+                    break;
+                }
+                // (RJMPs were turned into JMPs by Program.load)
                 case JMPI:
+                {
+                    int target = pop();
+                    if (!program.isInstruction(target))
+                        throw new Exception("JMPI at " + ip + " to " + target + ", which is not an instruction");
+                    if (listener != null) listener.branch(this, ip, target, true);
+                    if (target <= ip && --fuel < 0) {
+                        ip = target;
+                        status = Status.OUT_OF_BUDGET;
+                        return;
+                    }
+                    ip = target;
+                    break;
+                }
                 case RJMPI:
-                case RET:
-                    execute(code[ip]);
-                    // Don't modify IP
+                {
+                    int target = ip + pop();
+                    if (!program.isInstruction(target))
+                        throw new Exception("RJMPI at " + ip + " to " + target + ", which is not an instruction");
+                    if (listener != null) listener.branch(this, ip, target, true);
+                    if (target <= ip && --fuel < 0) {
+                        ip = target;
+                        status = Status.OUT_OF_BUDGET;
+                        return;
+                    }
+                    ip = target;
                     break;
-                
-                // 1-operand opcodes
-                case CONST:
+                }
+                case JZ:
+                {
+                    int target = code[ip + 1];
+                    boolean taken = pop() == 0;
+                    if (listener != null) listener.branch(this, ip, target, taken);
+                    if (taken && target <= ip && --fuel < 0) {
+                        ip = target;
+                        status = Status.OUT_OF_BUDGET;
+                        return;
+                    }
+                    ip = taken ? target : ip + 2;
+                    break;
+                }
+                case JNZ:
+                {
+                    int target = code[ip + 1];
+                    boolean taken = pop() != 0;
+                    if (listener != null) listener.branch(this, ip, target, taken);
+                    if (taken && target <= ip && --fuel < 0) {
+                        ip = target;
+                        status = Status.OUT_OF_BUDGET;
+                        return;
+                    }
+                    ip = taken ? target : ip + 2;
+                    break;
+                }
+
+                // Globals
                 case GLOAD:
+                {
+                    int index = code[ip + 1];
+                    push(globals[index]);
+                    ip += 2;
+                    break;
+                }
                 case GSTORE:
-                case STORE:
-                case LOAD:
-                    execute(code[ip], code[ip + 1]);
+                {
+                    int index = code[ip + 1];
+                    globals[index] = pop();
+                    ip += 2;
+                    break;
+                }
+
+                case GCAS:
+                {
+                    int update = pop();
+                    int expected = pop();
+                    push(segment.compareAndSet(code[ip + 1], expected, update) ? 1 : 0);
+                    ip += 2;
+                    break;
+                }
+                case GADD:
+                    push(segment.getAndAdd(code[ip + 1], pop()));
+                    ip += 2;
+                    break;
+                case CADD:
+                    segment.add(code[ip + 1], pop());
+                    ip += 2;
+                    break;
+                case CLOAD:
+                    push(segment.sum(code[ip + 1]));
                     ip += 2;
                     break;
 
+                // Memory
+                case ALOAD:
+                    push(memory.load(pop()));
+                    ip += 1;
+                    break;
+                case ASTORE:
+                {
+                    int value = pop();
+                    memory.store(pop(), value);
+                    ip += 1;
+                    break;
+                }
+                case MSIZE:
+                    push(memory.size());
+                    ip += 1;
+                    break;
+                case MGROW:
+                    push(memory.grow(pop()));
+                    ip += 1;
+                    break;
+
+                // Functions
                 case CALL:
-                case JMP:
-                case RJMP:
-                case JZ:
-                case JNZ:
-                    execute(code[ip], code[ip + 1]);
-                    // Don't modify IP
+                {
+                    int target = code[ip + 1];
+                    if (listener != null) listener.call(this, ip, target);
+                    if (tiered && listener == null && frameCount < Jit.MAX_DEPTH) {
+                        Jit.Compiled compiled = program.jit().enter(target);
+                        if (compiled != null) {
+                            // (ip may change under us if the compiled code
+                            // calls back into the interpreter, and so may
+                            // the listener, if what it calls TRACEs)
+                            int returnAddress = ip + 2;
+                            pushFrame(returnAddress, 0);
+                            compiled.invoke(this);
+                            tailCalls();
+                            popFrame();
+                            ip = returnAddress;
+                            listener = this.listener;
+                            code = (listener == null && !metered) ? program.dispatch : program.code;
+                            break;
+                        }
+                    }
+                    pushFrame(ip + 2, program.frameSizes[target]); // take the instruction after this+operand
+                    ip = target;
+                    if (--fuel < 0) {
+                        status = Status.OUT_OF_BUDGET;
+                        return;
+                    }
+                    break;
+                }
+                case TAILCALL:
+                {
+                    int target = code[ip + 1];
+                    if (listener != null) listener.call(this, ip, target);
+                    if (tiered && listener == null && frameCount < Jit.MAX_DEPTH) {
+                        Jit.Compiled compiled = program.jit().enter(target);
+                        if (compiled != null) {
+                            // Compiled code needs a frame of its own, so
+                            // this is CALL then RET after all
+                            int at = ip;
+                            pushFrame(at + 2, 0);
+                            compiled.invoke(this);
+                            tailCalls();
+                            popFrame();
+                            ip = at;
+                            listener = this.listener;
+                            code = (listener == null && !metered) ? program.dispatch : program.code;
+                            int returnAddress = returnAddress();
+                            if (returnAddress == -1)
+                                throw new Exception("Cannot RET from topmost level");
+                            if (listener != null) listener.ret(this, ip, returnAddress);
+                            popFrame();
+                            if (frameCount < depth)
+                                return;
+                            ip = returnAddress;
+                            break;
+                        }
+                    }
+                    reuseFrame(program.frameSizes[target]);
+                    ip = target;
+                    if (--fuel < 0) {
+                        status = Status.OUT_OF_BUDGET;
+                        return;
+                    }
                     break;
+                }
+                case RET:
+                {
+                    int returnAddress = returnAddress();
+                    if (returnAddress == -1) {
+                        // We are returning from the topmost level,
+                        // which means our CALL/RETs are imbalanced
+                        throw new Exception("Cannot RET from topmost level");
+                    }
+                    if (listener != null) listener.ret(this, ip, returnAddress);
+                    popFrame();
+                    if (frameCount < depth)
+                        return; // back to the compiled code that called us
+                    ip = returnAddress;
+                    break;
+                }
+                case LOAD:
+                {
+                    int index = code[ip + 1];
+                    push(locals[bp + index]);
+                    ip += 2;
+                    break;
+                }
+                case STORE:
+                {
+                    int index = code[ip + 1];
+                    locals[bp + index] = pop();
+                    ip += 2;
+                    break;
+                }
 
-                // 2-operand (or more) opcodes
+                // Superinstructions (only in fused programs; see
+                // Superinstructions for what each one stands for)
+                case Superinstructions.LOAD_CONST_ADD_STORE:
+                    locals[bp + code[ip + 6]] = locals[bp + code[ip + 1]] + code[ip + 3];
+                    ip += 7;
+                    break;
+                case Superinstructions.LOAD_CONST_SUB_STORE:
+                    locals[bp + code[ip + 6]] = locals[bp + code[ip + 1]] - code[ip + 3];
+                    ip += 7;
+                    break;
+                case Superinstructions.LOAD_CONST_IF_EQ:
+                    ip = locals[bp + code[ip + 1]] == code[ip + 3] ? code[ip + 6] : ip + 7;
+                    break;
+                case Superinstructions.LOAD_CONST_IF_NE:
+                    ip = locals[bp + code[ip + 1]] != code[ip + 3] ? code[ip + 6] : ip + 7;
+                    break;
+                case Superinstructions.LOAD_CONST_IF_LT:
+                    ip = locals[bp + code[ip + 1]] < code[ip + 3] ? code[ip + 6] : ip + 7;
+                    break;
+                case Superinstructions.LOAD_CONST_IF_GE:
+                    ip = locals[bp + code[ip + 1]] >= code[ip + 3] ? code[ip + 6] : ip + 7;
+                    break;
+                case Superinstructions.LOAD_CONST_IF_GT:
+                    ip = locals[bp + code[ip + 1]] > code[ip + 3] ? code[ip + 6] : ip + 7;
+                    break;
+                case Superinstructions.LOAD_CONST_IF_LE:
+                    ip = locals[bp + code[ip + 1]] <= code[ip + 3] ? code[ip + 6] : ip + 7;
+                    break;
+                case Superinstructions.CONST_FOLDED:
+                    push(code[ip + 1]);
+                    ip += 5;
+                    break;
 
-                // Unknown
                 default:
-                    throw new Exception("Unrecognized opcode: " + code[ip]);
+                    throw new Exception("Unrecognized opcode " + opcode + " at " + ip);
             }
         }
     }
@@ -0,0 +1,107 @@
+package simplevm.vm.analysis;
+
+import java.util.List;
+
+/**
+ * A run of instructions that control only ever enters at the top and
+ * leaves at the bottom; see ControlFlowGraph. Blocks are views onto the
+ * graph's arrays, and cost nothing until asked for.
+ */
+public final class BasicBlock {
+    private final ControlFlowGraph graph;
+    private final int index;
+
+    BasicBlock(ControlFlowGraph graph, int index) {
+        this.graph = graph;
+        this.index = index;
+    }
+
+    /** Blocks are numbered in address order, from 0. */
+    public int index() {
+        return index;
+    }
+    /** The address of the block's first instruction. */
+    public int start() {
+        return graph.starts[index];
+    }
+    /** The address just past the block. */
+    public int end() {
+        return graph.starts[index + 1];
+    }
+    /** The address of the block's last instruction. */
+    public int last() {
+        return graph.lasts[index];
+    }
+    /** The opcode of the block's last instruction. */
+    public int terminator() {
+        return graph.code[graph.lasts[index]];
+    }
+
+    public List<BasicBlock> successors() {
+        int[] found = new int[2];
+        int count = 0;
+        for (int k = 0; k < 2; k++) {
+            if (graph.successors[2 * index + k] >= 0)
+                found[count++] = graph.successors[2 * index + k];
+        }
+        return graph.list(found, 0, count);
+    }
+    public List<BasicBlock> predecessors() {
+        return graph.list(graph.preds, graph.predStarts[index], graph.predStarts[index + 1]);
+    }
+    /** For a block ending in a CALL or TAILCALL, the called function's entry; else null. */
+    public BasicBlock callee() {
+        return graph.callees[index] < 0 ? null : graph.block(graph.callees[index]);
+    }
+
+    /** Whether this is where the program, or a function it calls, starts. */
+    public boolean isEntry() {
+        return graph.entries[index];
+    }
+    /** Whether some back edge comes here: it's the top of a loop. */
+    public boolean isLoopHeader() {
+        return graph.headers[index];
+    }
+    /** The blocks whose edges here are back edges. */
+    public List<BasicBlock> latches() {
+        int[] found = new int[graph.predStarts[index + 1] - graph.predStarts[index]];
+        int count = 0;
+        for (int p = graph.predStarts[index]; p < graph.predStarts[index + 1]; p++) {
+            int pred = graph.preds[p];
+            for (int k = 0; k < 2; k++) {
+                if (graph.successors[2 * pred + k] == index && graph.back[2 * pred + k])
+                    found[count++] = pred;
+            }
+        }
+        return graph.list(found, 0, count);
+    }
+    /** Whether the edge from here to successor is a back edge. */
+    public boolean isBackEdge(BasicBlock successor) {
+        for (int k = 0; k < 2; k++) {
+            if (graph.successors[2 * index + k] == successor.index)
+                return graph.back[2 * index + k];
+        }
+        return false;
+    }
+
+    /**
+     * How much deeper (or, if negative, shallower) the stack is after the
+     * block than before it. CALLs and CALLHOSTs count as leaving the stack
+     * as it was.
+     */
+    public int stackEffect() {
+        return graph.effects[index];
+    }
+    /** How many values the block needs on the stack when it starts. */
+    public int stackNeeded() {
+        return -graph.lows[index];
+    }
+    /** How much higher than it started the stack ever gets in the block. */
+    public int stackPeak() {
+        return graph.highs[index];
+    }
+
+    @Override public String toString() {
+        return "block " + index + " [" + start() + ", " + end() + ")";
+    }
+}
@@ -0,0 +1,298 @@
+package simplevm.vm.analysis;
+
+import java.util.AbstractList;
+import java.util.List;
+
+import simplevm.vm.Bytecode;
+import simplevm.vm.Program;
+
+import static simplevm.vm.Bytecode.*;
+
+/**
+ * The basic blocks of a program and the edges between them.
+ *
+ * A block ends at every jump, branch, CALL, TAILCALL, RET, HALT and
+ * FATAL, and just before anything something jumps or calls to. Its
+ * successors are where control goes next within the function: a JMP's
+ * (or RJMP's) target, both ways out of a JZ or JNZ, the next block for
+ * anything that falls through, and for a CALL, the block the call
+ * returns to. The call itself is an edge of its own (see
+ * BasicBlock.callee()), so that each function's blocks form a graph of
+ * their own. TAILCALL, RET, HALT and FATAL blocks have no successors,
+ * and neither do JMPI and RJMPI blocks, since where they go isn't known
+ * until run time (see hasDynamicJumps()).
+ *
+ * Loops are found by a depth-first search from each function's entry:
+ * an edge back to a block the search is still inside is a back edge,
+ * and the block it goes to is a loop header (see BasicBlock.latches()).
+ *
+ * Everything is built in a few passes over the code and the blocks, so
+ * it takes time (and memory) linear in the size of the program, with
+ * edges kept in flat int arrays rather than an object apiece.
+ */
+public final class ControlFlowGraph {
+    final int[] code;
+    final int blockCount;
+    // Block b covers code[starts[b]] up to code[starts[b + 1]]
+    final int[] starts;
+    // The block each address is in
+    private final int[] blockOf;
+    // Each block's last instruction
+    final int[] lasts;
+    // Up to two successors per block, at 2b and 2b + 1 (-1 for none),
+    // and whether each is a back edge
+    final int[] successors;
+    final boolean[] back;
+    // Predecessors of block b are preds[predStarts[b]] up to
+    // preds[predStarts[b + 1]]
+    final int[] predStarts;
+    final int[] preds;
+    // Each CALL or TAILCALL block's callee, else -1
+    final int[] callees;
+    final boolean[] entries;
+    final boolean[] headers;
+    // Stack effects: net, and the lowest and highest the stack gets
+    // relative to its depth on entry
+    final int[] effects;
+    final int[] lows;
+    final int[] highs;
+    private final boolean dynamic;
+    private final BasicBlock[] views;
+
+    /**
+     * The graph for code, which has to verify (see Program.load()); throws
+     * VirtualMachine.Exception if it doesn't.
+     */
+    public static ControlFlowGraph build(int[] code) {
+        Program.load(code);
+        return new ControlFlowGraph(code.clone());
+    }
+
+    private ControlFlowGraph(int[] code) {
+        this.code = code;
+        int length = code.length;
+
+        // Leaders: the entry, anything jumped or called to, and anything
+        // after an instruction that ends a block
+        boolean[] leaders = new boolean[length + 1];
+        boolean dynamic = false;
+        leaders[0] = true;
+        leaders[length] = true;
+        for (int ip = 0; ip < length; ip += 1 + Bytecode.operands(code[ip])) {
+            int next = ip + 1 + Bytecode.operands(code[ip]);
+            int target = target(code, ip);
+            if (target >= 0)
+                leaders[target] = true;
+            if (endsBlock(code[ip]))
+                leaders[next] = true;
+            dynamic |= (code[ip] == JMPI || code[ip] == RJMPI);
+        }
+        this.dynamic = dynamic;
+
+        int count = 0;
+        for (int ip = 0; ip < length; ip++) {
+            if (leaders[ip])
+                count++;
+        }
+        blockCount = count;
+        starts = new int[count + 1];
+        lasts = new int[count];
+        blockOf = new int[length + 1];
+        int block = -1;
+        for (int ip = 0; ip < length; ip += 1 + Bytecode.operands(code[ip])) {
+            if (leaders[ip])
+                starts[++block] = ip;
+            lasts[block] = ip;
+            for (int word = ip; word <= ip + Bytecode.operands(code[ip]); word++)
+                blockOf[word] = block;
+        }
+        starts[count] = length;
+        blockOf[length] = count;
+
+        // Edges, and stack effects
+        successors = new int[count * 2];
+        back = new boolean[count * 2];
+        callees = new int[count];
+        entries = new boolean[count];
+        effects = new int[count];
+        lows = new int[count];
+        highs = new int[count];
+        int[] predCounts = new int[count + 1];
+        if (count > 0)
+            entries[0] = true;
+        for (int b = 0; b < count; b++) {
+            int last = lasts[b];
+            int opcode = code[last];
+            int fallthrough = blockOf[last + 1 + Bytecode.operands(opcode)];
+            int first = -1;
+            int second = -1;
+            callees[b] = -1;
+            switch (opcode) {
+                case JMP: case RJMP:
+                    first = blockOf[target(code, last)];
+                    break;
+                case JZ: case JNZ:
+                    first = blockOf[target(code, last)];
+                    second = fallthrough;
+                    break;
+                case CALL:
+                    callees[b] = blockOf[code[last + 1]];
+                    entries[callees[b]] = true;
+                    first = fallthrough;
+                    break;
+                case TAILCALL:
+                    callees[b] = blockOf[code[last + 1]];
+                    entries[callees[b]] = true;
+                    break;
+                case RET: case HALT: case FATAL: case JMPI: case RJMPI:
+                    break;
+                default:
+                    first = fallthrough;
+                    break;
+            }
+            // (falling off the end of the code is a HALT, not a block)
+            successors[2 * b] = (first == count) ? -1 : first;
+            successors[2 * b + 1] = (second == count || second == first) ? -1 : second;
+            for (int k = 0; k < 2; k++) {
+                if (successors[2 * b + k] >= 0)
+                    predCounts[successors[2 * b + k]]++;
+            }
+
+            int depth = 0;
+            int low = 0;
+            int high = 0;
+            for (int ip = starts[b]; ip <= last; ip += 1 + Bytecode.operands(code[ip])) {
+                depth -= Bytecode.pops(code[ip]);
+                low = Math.min(low, depth);
+                depth += Bytecode.pushes(code[ip]);
+                high = Math.max(high, depth);
+            }
+            effects[b] = depth;
+            lows[b] = low;
+            highs[b] = high;
+        }
+
+        // Predecessors, by counting sort
+        predStarts = new int[count + 1];
+        for (int b = 0; b < count; b++)
+            predStarts[b + 1] = predStarts[b] + predCounts[b];
+        preds = new int[predStarts[count]];
+        int[] filled = new int[count];
+        for (int b = 0; b < count; b++) {
+            for (int k = 0; k < 2; k++) {
+                int successor = successors[2 * b + k];
+                if (successor >= 0)
+                    preds[predStarts[successor] + filled[successor]++] = b;
+            }
+        }
+
+        headers = new boolean[count];
+        findLoops();
+        views = new BasicBlock[count];
+    }
+
+    private static boolean endsBlock(int opcode) {
+        switch (opcode) {
+            case JMP: case RJMP: case JMPI: case RJMPI: case JZ: case JNZ:
+            case CALL: case TAILCALL: case RET: case HALT: case FATAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+    // Where the instruction at ip jumps or calls to, if it does and we
+    // know where; else -1
+    private static int target(int[] code, int ip) {
+        switch (code[ip]) {
+            case JMP: case JZ: case JNZ: case CALL: case TAILCALL:
+                return code[ip + 1];
+            case RJMP:
+                return ip + code[ip + 1];
+            default:
+                return -1;
+        }
+    }
+
+    /*
+     * Depth-first search from every function entry, without recursion:
+     * state is 0 for blocks not yet seen, 1 while the search is inside
+     * them, 2 once it's done with them. An edge to a block in state 1 is
+     * a back edge.
+     */
+    private void findLoops() {
+        byte[] state = new byte[blockCount];
+        int[] stack = new int[blockCount];
+        int[] edge = new int[blockCount];
+        for (int root = 0; root < blockCount; root++) {
+            if (!entries[root] || state[root] != 0)
+                continue;
+            int top = 0;
+            stack[0] = root;
+            edge[0] = 0;
+            state[root] = 1;
+            while (top >= 0) {
+                int b = stack[top];
+                if (edge[top] == 2) {
+                    state[b] = 2;
+                    top--;
+                    continue;
+                }
+                int slot = 2 * b + edge[top]++;
+                int successor = successors[slot];
+                if (successor < 0)
+                    continue;
+                if (state[successor] == 1) {
+                    back[slot] = true;
+                    headers[successor] = true;
+                }
+                else if (state[successor] == 0) {
+                    state[successor] = 1;
+                    stack[++top] = successor;
+                    edge[top] = 0;
+                }
+            }
+        }
+    }
+
+    public int blockCount() {
+        return blockCount;
+    }
+    public BasicBlock block(int index) {
+        BasicBlock block = views[index];
+        if (block == null)
+            views[index] = block = new BasicBlock(this, index);
+        return block;
+    }
+    public List<BasicBlock> blocks() {
+        return list(null, 0, blockCount);
+    }
+    /** The block the instruction (or operand) at address is in. */
+    public BasicBlock blockAt(int address) {
+        if (address < 0 || address >= code.length)
+            throw new IndexOutOfBoundsException("No address " + address + " in " + code.length + " words of code");
+        return block(blockOf[address]);
+    }
+    /** The program's entry block. */
+    public BasicBlock entry() {
+        return block(0);
+    }
+    /** Whether any block ends in a JMPI or RJMPI, whose edges are unknown. */
+    public boolean hasDynamicJumps() {
+        return dynamic;
+    }
+
+    // The blocks indices[from] up to indices[to], or from up to to if
+    // indices is null
+    List<BasicBlock> list(int[] indices, int from, int to) {
+        return new AbstractList<BasicBlock>() {
+            @Override public BasicBlock get(int i) {
+                if (i < 0 || i >= to - from)
+                    throw new IndexOutOfBoundsException(i);
+                return block(indices == null ? from + i : indices[from + i]);
+            }
+            @Override public int size() {
+                return to - from;
+            }
+        };
+    }
+}
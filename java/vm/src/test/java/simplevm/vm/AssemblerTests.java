@@ -0,0 +1,135 @@
+package simplevm.vm;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import static simplevm.vm.Bytecode.*;
+
+public class AssemblerTests {
+    static final String FIB =
+        "; fib(15), recursively\n" +
+        "        CONST 15\n" +
+        "        CALL fib\n" +
+        "        HALT\n" +
+        "fib:    STORE 0         # n\n" +
+        "        LOAD 0\n" +
+        "        CONST 2\n" +
+        "        LT\n" +
+        "        JZ recurse\n" +
+        "        LOAD 0\n" +
+        "        RET\n" +
+        "recurse:\n" +
+        "        load, 0\n" +
+        "        const, 1\n" +
+        "        sub\n" +
+        "        call, fib\n" +
+        "        LOAD 0\n" +
+        "        CONST 2\n" +
+        "        SUB\n" +
+        "        CALL fib\n" +
+        "        ADD\n" +
+        "        RET\n";
+
+    @Test void testAssemble() {
+        int[] code = Assembler.assemble(FIB);
+        assertArrayEquals(new int[] {
+            /* 0*/ CONST, 15,
+            /* 2*/ CALL, 5,
+            /* 4*/ HALT,
+            /* 5*/ STORE, 0,
+            /* 7*/ LOAD, 0,
+            /* 9*/ CONST, 2,
+            /*11*/ LT,
+            /*12*/ JZ, 17,
+            /*14*/ LOAD, 0,
+            /*16*/ RET,
+            /*17*/ LOAD, 0,
+            /*19*/ CONST, 1,
+            /*21*/ SUB,
+            /*22*/ CALL, 5,
+            /*24*/ LOAD, 0,
+            /*26*/ CONST, 2,
+            /*28*/ SUB,
+            /*29*/ CALL, 5,
+            /*31*/ ADD,
+            /*32*/ RET
+        }, code);
+
+        VirtualMachine vm = new VirtualMachine();
+        vm.execute(code);
+        assertArrayEquals(new int[] { 610 }, vm.getStack());
+    }
+    @Test void testOperands() {
+        assertArrayEquals(new int[] {
+            /* 0*/ CONST, -7,
+            /* 2*/ CONST, 0x7F,
+            /* 4*/ CONST, -1,
+            /* 6*/ CONST, 8,       // the address of end
+            /* 8*/ RJMP, 2,        // relative to itself
+            /*10*/ 1234
+        }, Assembler.assemble(
+            "  CONST -7\n" +
+            "  CONST 0x7F\n" +
+            "  CONST 0xFFFFFFFF\n" +
+            "  CONST end\n" +
+            "end: RJMP next\n" +
+            "next:\n" +
+            "  .word 1234"));
+    }
+    @Test void testErrors() {
+        assertThrows(VirtualMachine.Exception.class, () -> Assembler.assemble("FROB 3"));
+        assertThrows(VirtualMachine.Exception.class, () -> Assembler.assemble("JMP nowhere"));
+        assertThrows(VirtualMachine.Exception.class, () -> Assembler.assemble("a: NOP\na: NOP"));
+        assertThrows(VirtualMachine.Exception.class, () -> Assembler.assemble("CONST"));
+        assertThrows(VirtualMachine.Exception.class, () -> Assembler.assemble("CONST 1 2"));
+        assertThrows(VirtualMachine.Exception.class, () -> Assembler.assemble("CONST 12x"));
+        assertThrows(VirtualMachine.Exception.class, () -> Assembler.assemble("CONST 2147483648"));
+
+        VirtualMachine.Exception e = assertThrows(VirtualMachine.Exception.class,
+            () -> Assembler.assemble("NOP\n\nJMP nowhere\n"));
+        assertTrue(e.getMessage().contains("Line 3"), e.getMessage());
+    }
+    @Test void testReader() throws IOException {
+        // Enough lines (and labels) to outgrow every buffer a few times over
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+            source.append("l").append(i).append(": CONST ").append(i).append("\n  GSTORE 0\n  JMP l").append(i + 1).append('\n');
+        source.append("l5000: HALT\n");
+
+        int[] code = Assembler.assemble(new StringReader(source.toString()));
+        assertArrayEquals(code, Assembler.assemble(source));
+        assertEquals(5000 * 6 + 1, code.length);
+        assertEquals(6, code[5]);
+
+        VirtualMachine vm = new VirtualMachine();
+        vm.execute(code);
+        assertEquals(4999, vm.getGlobals()[0]);
+    }
+    @Test void testDisassemble() {
+        int[] code = Assembler.assemble(FIB);
+        String text = Disassembler.disassemble(code);
+        assertTrue(text.contains("L5:\n    STORE 0\n"), text);
+        assertTrue(text.contains("    JZ L17\n"), text);
+        assertArrayEquals(code, Assembler.assemble(text));
+    }
+    @Test void testDisassembleAnything() {
+        int[] code = {
+            /* 0*/ RJMP, 3,
+            /* 2*/ 9999,
+            /* 3*/ JMP, 100,
+            /* 5*/ CONST
+        };
+        String text = Disassembler.disassemble(code);
+        assertTrue(text.contains("RJMP L3"), text);
+        assertTrue(text.contains(".word 9999"), text);
+        assertTrue(text.contains("JMP 100"), text);
+        assertArrayEquals(code, Assembler.assemble(text));
+    }
+}
@@ -0,0 +1,118 @@
+package simplevm.vm;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import static simplevm.vm.Bytecode.*;
+
+public class BudgetTests {
+    static final Program FIB = Program.load(new int[] {
+        /* 0*/ CONST, 15,
+        /* 2*/ CALL, 5,
+        /* 4*/ HALT,
+        /* 5*/ STORE, 0,
+        /* 7*/ LOAD, 0,
+        /* 9*/ CONST, 2,
+        /*11*/ LT,
+        /*12*/ JZ, 17,
+        /*14*/ LOAD, 0,
+        /*16*/ RET,
+        /*17*/ LOAD, 0,
+        /*19*/ CONST, 1,
+        /*21*/ SUB,
+        /*22*/ CALL, 5,
+        /*24*/ LOAD, 0,
+        /*26*/ CONST, 2,
+        /*28*/ SUB,
+        /*29*/ CALL, 5,
+        /*31*/ ADD,
+        /*32*/ RET
+    });
+
+    @Test void testForever() {
+        VirtualMachine vm = new VirtualMachine();
+        vm.start(Program.load(new int[] {
+            /* 0*/ GLOAD, 0,
+            /* 2*/ CONST, 1,
+            /* 4*/ ADD,
+            /* 6*/ GSTORE, 0,
+            /* 8*/ JMP, 0
+        }));
+        // The step that runs the budget out is taken too
+        assertEquals(VirtualMachine.Status.OUT_OF_BUDGET, vm.run(100));
+        assertEquals(101, vm.getGlobals()[0]);
+        assertEquals(VirtualMachine.Status.OUT_OF_BUDGET, vm.run(100));
+        assertEquals(202, vm.getGlobals()[0]);
+        assertEquals(VirtualMachine.Status.OUT_OF_BUDGET, vm.run(0));
+        assertEquals(203, vm.getGlobals()[0]);
+    }
+    @Test void testSlices() {
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            VirtualMachine vm = new VirtualMachine(engine);
+            vm.start(FIB);
+            int slices = 1;
+            while (vm.run(50) != VirtualMachine.Status.HALTED)
+                slices++;
+            assertArrayEquals(new int[] { 610 }, vm.getStack(), engine.toString());
+            // fib(15) makes 1973 calls
+            assertEquals(1973 / 51 + 1, slices, engine.toString());
+            assertEquals(VirtualMachine.Status.HALTED, vm.run(50));
+        }
+    }
+    @Test void testYield() {
+        Program program = Program.load(new int[] {
+            /* 0*/ CONST, 1,
+            /* 2*/ YIELD,
+            /* 3*/ CONST, 2,
+            /* 5*/ YIELD,
+            /* 6*/ ADD
+        });
+        VirtualMachine vm = new VirtualMachine();
+        vm.start(program);
+        assertEquals(VirtualMachine.Status.YIELDED, vm.run(1000));
+        assertArrayEquals(new int[] { 1 }, vm.getStack());
+        assertEquals(VirtualMachine.Status.YIELDED, vm.run(1000));
+        assertArrayEquals(new int[] { 1, 2 }, vm.getStack());
+        assertEquals(VirtualMachine.Status.HALTED, vm.run(1000));
+        assertArrayEquals(new int[] { 3 }, vm.getStack());
+
+        // Anywhere but run(), YIELD does nothing
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            VirtualMachine other = new VirtualMachine(engine);
+            other.execute(program);
+            assertArrayEquals(new int[] { 3 }, other.getStack(), engine.toString());
+        }
+    }
+    @Test void testRoundRobin() {
+        Deque<VirtualMachine> ready = new ArrayDeque<>();
+        VirtualMachine[] vms = new VirtualMachine[100];
+        for (int i = 0; i < vms.length; i++) {
+            vms[i] = new VirtualMachine(VirtualMachine.Engine.values()[i % 4]);
+            vms[i].start(FIB);
+            ready.add(vms[i]);
+        }
+        while (!ready.isEmpty()) {
+            VirtualMachine vm = ready.poll();
+            if (vm.run(20) != VirtualMachine.Status.HALTED)
+                ready.add(vm);
+        }
+        for (VirtualMachine vm : vms)
+            assertArrayEquals(new int[] { 610 }, vm.getStack());
+    }
+    @Test void testUnmeteredAfterwards() {
+        VirtualMachine vm = new VirtualMachine(VirtualMachine.Engine.TIERED);
+        vm.start(FIB);
+        vm.run(10);
+        vm.execute(FIB);
+        assertEquals(610, vm.getStack()[vm.getStack().length - 1]);
+    }
+    @Test void testNothingStarted() {
+        assertThrows(VirtualMachine.Exception.class, () -> new VirtualMachine().run(10));
+    }
+}
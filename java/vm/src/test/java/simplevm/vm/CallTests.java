@@ -2,6 +2,7 @@ package simplevm.vm;
 
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import static simplevm.vm.Bytecode.*;
@@ -38,5 +39,136 @@ public class CallTests {
         // Stack should be empty (there was no return from countdown())
         assertEquals(0, vm.getStack().length);
     }
-    
+
+    @Test void testRecursion() {
+        VirtualMachine vm = new VirtualMachine();
+        vm.execute(new int[] {
+            /* 0*/ CONST, 15,
+            /* 2*/ CALL, 5,
+            /* 4*/ HALT,
+            // function fib(n)
+            //    expects n on top of stack; leaves fib(n) on top of stack
+            /* 5*/ STORE, 0,
+            /* 7*/ LOAD, 0,
+            /* 9*/ CONST, 2,
+            /*11*/ LT,
+            /*12*/ JZ, 17,      // n >= 2: recurse
+            /*14*/ LOAD, 0,     // n < 2: fib(n) = n
+            /*16*/ RET,
+            /*17*/ LOAD, 0,
+            /*19*/ CONST, 1,
+            /*21*/ SUB,
+            /*22*/ CALL, 5,     // fib(n - 1)
+            /*24*/ LOAD, 0,     // (our own n, untouched by the call)
+            /*26*/ CONST, 2,
+            /*28*/ SUB,
+            /*29*/ CALL, 5,     // fib(n - 2)
+            /*31*/ ADD,
+            /*32*/ RET
+        });
+
+        assertEquals(1, vm.getStack().length);
+        assertEquals(610, vm.getStack()[0]);
+    }
+
+    @Test void testDeepRecursion() {
+        VirtualMachine vm = new VirtualMachine();
+        vm.execute(new int[] {
+            /* 0*/ CONST, 50000,
+            /* 2*/ CALL, 5,
+            /* 4*/ HALT,
+            // function depth(n)
+            //    recurses n levels deep, then leaves n on top of stack
+            /* 5*/ STORE, 0,
+            /* 7*/ LOAD, 0,
+            /* 9*/ JZ, 22,      // n == 0: bottom out
+            /*11*/ LOAD, 0,
+            /*13*/ CONST, 1,
+            /*15*/ SUB,
+            /*16*/ CALL, 5,     // depth(n - 1)
+            /*18*/ CONST, 1,
+            /*20*/ ADD,
+            /*21*/ RET,
+            /*22*/ CONST, 0,
+            /*24*/ RET
+        });
+
+        assertEquals(1, vm.getStack().length);
+        assertEquals(50000, vm.getStack()[0]);
+    }
+
+    @Test void testTailCall() {
+        Program program = Program.load(new int[] {
+            /* 0*/ CONST, 50000,
+            /* 2*/ CONST, 0,
+            /* 4*/ CALL, 7,
+            /* 6*/ HALT,
+            // function sum(n, total)
+            //    leaves total + n + (n - 1) + ... + 1 on top of stack
+            /* 7*/ STORE, 1,
+            /* 9*/ STORE, 0,
+            /*11*/ LOAD, 0,
+            /*13*/ JZ, 28,      // n == 0: done
+            /*15*/ LOAD, 0,
+            /*17*/ CONST, 1,
+            /*19*/ SUB,
+            /*20*/ LOAD, 0,
+            /*22*/ LOAD, 1,
+            /*24*/ ADD,
+            /*25*/ CALL, 7,     // sum(n - 1, total + n), in this frame
+            /*27*/ RET,
+            /*28*/ LOAD, 1,
+            /*30*/ RET
+        });
+        assertEquals(TAILCALL, program.code[25]);
+        assertEquals(CALL, program.code[4]);
+
+        // Far deeper than the VM's frames would go
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            VirtualMachine vm = VirtualMachine.builder().engine(engine).maxCallDepth(16).build();
+            vm.execute(program);
+            assertArrayEquals(new int[] { 50000 / 2 * 50001 }, vm.getStack(), engine.name());
+        }
+    }
+
+    @Test void testExplicitTailCall() {
+        Program program = Program.load(new int[] {
+            /* 0*/ CONST, 100001,
+            /* 2*/ CALL, 5,
+            /* 4*/ HALT,
+            // function even(n)
+            /* 5*/ STORE, 0,
+            /* 7*/ LOAD, 0,
+            /* 9*/ JNZ, 14,
+            /*11*/ CONST, 1,
+            /*13*/ RET,
+            /*14*/ LOAD, 0,
+            /*16*/ CONST, 1,
+            /*18*/ SUB,
+            /*19*/ TAILCALL, 21, // odd(n - 1)
+            // function odd(n)
+            /*21*/ STORE, 0,
+            /*23*/ LOAD, 0,
+            /*25*/ JNZ, 30,
+            /*27*/ CONST, 0,
+            /*29*/ RET,
+            /*30*/ LOAD, 0,
+            /*32*/ CONST, 1,
+            /*34*/ SUB,
+            /*35*/ TAILCALL, 5   // even(n - 1)
+        });
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            VirtualMachine vm = VirtualMachine.builder().engine(engine).maxCallDepth(16).build();
+            vm.execute(program);
+            assertArrayEquals(new int[] { 0 }, vm.getStack(), engine.name());
+        }
+
+        // One opcode at a time, it's a jump that keeps the frame
+        VirtualMachine vm = new VirtualMachine();
+        vm.execute(CALL, 10);
+        vm.execute(TAILCALL, 20);
+        assertEquals(20, vm.ip);
+        assertEquals(2, vm.frameCount);
+        assertEquals(2, vm.returnAddress());
+    }
 }
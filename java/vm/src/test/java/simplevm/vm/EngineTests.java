@@ -0,0 +1,230 @@
+package simplevm.vm;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import static simplevm.vm.Bytecode.*;
+
+/*
+ * Every engine has to behave exactly like every other, so these run the
+ * same programs through each of them and check they all end up in the
+ * same state.
+ */
+public class EngineTests {
+    static final int[] MATH = {
+        CONST, 5, CONST, 5, ADD,
+        CONST, 15, CONST, 5, SUB,
+        CONST, 2, CONST, 5, MUL,
+        CONST, 50, CONST, 5, DIV,
+        CONST, 30, CONST, 20, MOD,
+        CONST, -10, ABS,
+        CONST, 10, NEG
+    };
+    static final int[] COMPARISONS = {
+        CONST, 5, CONST, 5, EQ,
+        CONST, 5, CONST, 5, NEQ,
+        CONST, 2, CONST, 5, GT,
+        CONST, 2, CONST, 5, LT,
+        CONST, 5, CONST, 5, GTE,
+        CONST, 6, CONST, 5, LTE
+    };
+    static final int[] JUMPS = {
+        /* 0*/ JMP, 3,
+        /* 2*/ FATAL,
+        /* 3*/ RJMP, 4,
+        /* 5*/ FATAL,
+        /* 6*/ FATAL,
+        /* 7*/ CONST, 13,
+        /* 9*/ JMPI,
+        /*10*/ FATAL,
+        /*11*/ FATAL,
+        /*12*/ FATAL,
+        /*13*/ CONST, 4,
+        /*15*/ RJMPI,
+        /*16*/ FATAL,
+        /*17*/ FATAL,
+        /*18*/ FATAL,
+        /*19*/ CONST, 0,
+        /*21*/ JZ, 25,
+        /*23*/ FATAL,
+        /*24*/ FATAL,
+        /*25*/ CONST, 1,
+        /*27*/ JNZ, 31,
+        /*29*/ FATAL,
+        /*30*/ FATAL,
+        /*31*/ CONST, 7
+    };
+    static final int[] COUNTDOWN = {
+        /* 0*/ CONST, 13,
+        /* 2*/ GSTORE, 0,
+        /* 4*/ GLOAD, 0,
+        /* 6*/ PRINT,
+        /* 7*/ GLOAD, 0,
+        /* 9*/ CONST, 10,
+        /*11*/ EQ,
+        /*12*/ JNZ, 23,
+        /*14*/ GLOAD, 0,
+        /*16*/ CONST, 1,
+        /*18*/ SUB,
+        /*19*/ GSTORE, 0,
+        /*21*/ JMP, 4,
+        /*23*/ NOP
+    };
+    static final int[] CALLS = {
+        /* 0*/ CONST, 5,
+        /* 2*/ CALL, 14,    // countdown(5)
+        /* 4*/ CONST, 15,
+        /* 6*/ CALL, 34,    // fib(15)
+        /* 8*/ GSTORE, 1,
+        /*10*/ POP,
+        /*11*/ JMP, 67,
+        /*13*/ FATAL,
+        // function countdown(count): leaves the number of times
+        // around the loop on the stack, and its last count in globals[0]
+        /*14*/ STORE, 0,
+        /*16*/ CONST, 0,
+        /*18*/ STORE, 1,
+        /*20*/ LOAD, 0,
+        /*22*/ GSTORE, 0,
+        /*24*/ LOAD, 1,
+        /*26*/ CONST, 1,
+        /*28*/ ADD,
+        /*29*/ STORE, 1,
+        /*31*/ JMP, 48,
+        /*33*/ FATAL,
+        // function fib(n)
+        /*34*/ STORE, 0,
+        /*36*/ LOAD, 0,
+        /*38*/ CONST, 2,
+        /*40*/ LT,
+        /*41*/ JZ, 53,
+        /*43*/ LOAD, 0,
+        /*45*/ RET,
+        /*46*/ FATAL,
+        /*47*/ FATAL,
+        // (rest of countdown)
+        /*48*/ LOAD, 0,
+        /*50*/ JNZ, 60,
+        /*52*/ FATAL,
+        // (rest of fib)
+        /*53*/ LOAD, 0,
+        /*55*/ CONST, 1,
+        /*57*/ SUB,
+        /*58*/ JMP, 74,
+        // (rest of countdown)
+        /*60*/ LOAD, 0,
+        /*62*/ CONST, 1,
+        /*64*/ SUB,
+        /*65*/ JMP, 88,
+        /*67*/ HALT,
+        /*68*/ FATAL,
+        /*69*/ FATAL,
+        /*70*/ FATAL,
+        /*71*/ FATAL,
+        /*72*/ FATAL,
+        /*73*/ FATAL,
+        // (rest of fib)
+        /*74*/ CALL, 34,
+        /*76*/ LOAD, 0,
+        /*78*/ CONST, 2,
+        /*80*/ SUB,
+        /*81*/ CALL, 34,
+        /*83*/ ADD,
+        /*84*/ RET,
+        /*85*/ FATAL,
+        /*86*/ FATAL,
+        /*87*/ FATAL,
+        // (rest of countdown)
+        /*88*/ STORE, 0,
+        /*90*/ LOAD, 0,
+        /*92*/ JNZ, 20,
+        /*94*/ LOAD, 1,
+        /*96*/ RET
+    };
+
+    static VirtualMachine run(VirtualMachine.Engine engine, int[] code) {
+        VirtualMachine vm = new VirtualMachine(engine);
+        vm.execute(code);
+        return vm;
+    }
+    static void check(int[] code) {
+        VirtualMachine expected = run(VirtualMachine.Engine.SWITCH, code);
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            VirtualMachine actual = run(engine, code);
+            assertArrayEquals(expected.getStack(), actual.getStack(), engine + " stack");
+            assertArrayEquals(expected.getGlobals(), actual.getGlobals(), engine + " globals");
+        }
+    }
+
+    @Test void testMath() {
+        check(MATH);
+        assertArrayEquals(new int[] { 10, 10, 10, 10, 10, 10, -10 },
+            run(VirtualMachine.Engine.SWITCH, MATH).getStack());
+    }
+    @Test void testComparisons() {
+        check(COMPARISONS);
+        assertArrayEquals(new int[] { 1, 0, 0, 1, 1, 0 },
+            run(VirtualMachine.Engine.SWITCH, COMPARISONS).getStack());
+    }
+    @Test void testJumps() {
+        check(JUMPS);
+        assertArrayEquals(new int[] { 7 }, run(VirtualMachine.Engine.SWITCH, JUMPS).getStack());
+    }
+    @Test void testCountdown() {
+        check(COUNTDOWN);
+        assertEquals(10, run(VirtualMachine.Engine.SWITCH, COUNTDOWN).getGlobals()[0]);
+    }
+    @Test void testCalls() {
+        check(CALLS);
+        VirtualMachine vm = run(VirtualMachine.Engine.SWITCH, CALLS);
+        assertEquals(0, vm.getStack().length);
+        assertEquals(1, vm.getGlobals()[0]);
+        assertEquals(610, vm.getGlobals()[1]);
+    }
+    @Test void testFatal() {
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            assertThrows(VirtualMachine.Exception.class, () -> run(engine, new int[] {
+                NOP,
+                FATAL
+            }), engine.toString());
+            assertThrows(VirtualMachine.Exception.class, () -> run(engine, new int[] {
+                RET
+            }), engine.toString());
+            assertThrows(VirtualMachine.Exception.class, () -> run(engine, new int[] {
+                CONST, 1,
+                JMPI
+            }), engine.toString());
+        }
+    }
+    @Test void testFaultingIp() {
+        // Whatever stops a run, ip is where it stopped (at the top level,
+        // which REGISTER code doesn't track)
+        int[][] programs = {
+            { CONST, 1, CONST, 0, DIV },
+            { NOP, NOP, NOP, NOP, POP },
+            { CONST, 1, MSIZE, NOP, ALOAD },
+        };
+        VirtualMachine.Engine[] engines = {
+            VirtualMachine.Engine.SWITCH, VirtualMachine.Engine.THREADED, VirtualMachine.Engine.TIERED
+        };
+        for (VirtualMachine.Engine engine : engines) {
+            for (int[] code : programs) {
+                VirtualMachine vm = new VirtualMachine(engine);
+                assertThrows(RuntimeException.class, () -> vm.execute(code), engine.toString());
+                assertEquals(4, vm.ip, engine.toString());
+            }
+        }
+    }
+    @Test void testTraceAndDump() {
+        check(new int[] {
+            TRACE,
+            CONST, 3,
+            DUMP,
+            TRACE,
+            CONST, 4
+        });
+    }
+}
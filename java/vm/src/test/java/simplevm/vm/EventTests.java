@@ -0,0 +1,102 @@
+package simplevm.vm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import static simplevm.vm.Bytecode.*;
+
+public class EventTests {
+    // f(10), where f(x) is x == 0 ? 0 : f(x - 1) + 1, so 12 frames deep
+    static final int[] CODE = {
+        /* 0*/ CONST, 10,
+        /* 2*/ CALL, 5,
+        /* 4*/ HALT,
+        /* 5*/ STORE, 0,
+        /* 7*/ LOAD, 0,
+        /* 9*/ JZ, 22,
+        /*11*/ LOAD, 0,
+        /*13*/ CONST, 1,
+        /*15*/ SUB,
+        /*16*/ CALL, 5,
+        /*18*/ CONST, 1,
+        /*20*/ ADD,
+        /*21*/ RET,
+        /*22*/ CONST, 0,
+        /*24*/ RET
+    };
+
+    static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+        return events.stream().filter(e -> e.getEventType().getName().equals(name)).collect(Collectors.toList());
+    }
+
+    @Test void testEvents() throws IOException, InterruptedException {
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("simplevm.Load");
+            recording.enable("simplevm.Execute");
+            recording.enable("simplevm.Exception");
+            recording.start();
+
+            Program program = Program.load(CODE);
+            for (VirtualMachine.Engine engine : VirtualMachine.Engine.values())
+                new VirtualMachine(engine).execute(program);
+            VirtualMachine vm = new VirtualMachine(VirtualMachine.Engine.TIERED);
+            assertThrows(VirtualMachine.Exception.class, () -> vm.execute(new int[] { CONST, 1, FATAL }));
+
+            // The next run after the period comes round is sampled
+            recording.enable("simplevm.OpcodeHistogram").withPeriod(Duration.ofMillis(10));
+            for (int k = 0; k < 500 && !Events.sampleDue; k++)
+                Thread.sleep(10);
+            vm.execute(program);
+
+            recording.stop();
+            Path file = Files.createTempFile("simplevm", ".jfr");
+            try {
+                recording.dump(file);
+                events = RecordingFile.readAllEvents(file);
+            }
+            finally {
+                Files.delete(file);
+            }
+        }
+
+        assertTrue(named(events, "simplevm.Load").stream().anyMatch(e -> e.getInt("length") == CODE.length));
+
+        // (the sampled run isn't one of these)
+        List<RecordedEvent> runs = named(events, "simplevm.Execute");
+        assertEquals(VirtualMachine.Engine.values().length + 1, runs.size());
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            RecordedEvent run = runs.stream().filter(e -> e.getString("engine").equals(engine.name())).findFirst().get();
+            assertEquals(CODE.length, run.getInt("length"), engine.name());
+            assertEquals(12, run.getInt("callDepth"), engine.name());
+        }
+
+        RecordedEvent failure = named(events, "simplevm.Exception").get(0);
+        assertEquals(VirtualMachine.Exception.class.getName(), failure.getClass("exceptionClass").getName());
+        assertEquals(2, failure.getInt("ip"));
+        assertTrue(failure.getString("message").contains("FATAL"), failure.getString("message"));
+
+        // f runs 11 times, the top level once
+        List<RecordedEvent> histograms = named(events, "simplevm.OpcodeHistogram");
+        assertFalse(histograms.isEmpty());
+        RecordedEvent histogram = histograms.get(histograms.size() - 1);
+        assertEquals("TIERED", histogram.getString("engine"));
+        assertEquals(3 + 10 * 10 + 5, histogram.getLong("instructions"));
+        assertTrue(histogram.getString("histogram").startsWith("CONST 22, LOAD 21, "), histogram.getString("histogram"));
+        assertTrue(histogram.getDuration().toNanos() > 0);
+    }
+}
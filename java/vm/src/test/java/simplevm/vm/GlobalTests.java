@@ -1,8 +1,16 @@
 package simplevm.vm;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import static simplevm.vm.Bytecode.*;
@@ -50,4 +58,109 @@ public class GlobalTests {
         assertEquals(3, vm.getGlobals()[1]);
         assertEquals(45, vm.getGlobals()[2]);
     }
+
+    // Swaps globals[0] from 0 to 5 (which works) and then from 0 to 7
+    // (which doesn't), adds 3 to globals[1] twice, and counts to 4
+    static final int[] ATOMICS = {
+        CONST, 0,
+        CONST, 5,
+        GCAS, 0,
+        CONST, 0,
+        CONST, 7,
+        GCAS, 0,
+        CONST, 3,
+        GADD, 1,
+        CONST, 3,
+        GADD, 1,
+        CONST, 1,
+        CADD, 2,
+        CONST, 3,
+        CADD, 2,
+        CLOAD, 2
+    };
+    @Test void testAtomics() {
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            VirtualMachine vm = new VirtualMachine(engine);
+            vm.execute(ATOMICS);
+
+            assertArrayEquals(new int[] { 1, 0, 0, 3, 4 }, vm.getStack(), engine.toString());
+            assertEquals(5, vm.getGlobals()[0]);
+            assertEquals(6, vm.getGlobals()[1]);
+            assertEquals(4, vm.getGlobalSegment().sum(2));
+        }
+    }
+    @Test void testCasFromCaller() {
+        // GCAS in a function, with its expected value (or both operands)
+        // left on the stack by the caller
+        int[][] programs = {
+            {
+                /* 0*/ CONST, 9,
+                /* 2*/ GSTORE, 1,
+                /* 4*/ CONST, 0,
+                /* 6*/ CALL, 9,
+                /* 8*/ HALT,
+                /* 9*/ GLOAD, 1,
+                /*11*/ GCAS, 0,
+                /*13*/ RET
+            },
+            {
+                /* 0*/ CONST, 0,
+                /* 2*/ CONST, 9,
+                /* 4*/ CALL, 7,
+                /* 6*/ HALT,
+                /* 7*/ GCAS, 0,
+                /* 9*/ RET
+            },
+        };
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            for (int[] code : programs) {
+                VirtualMachine vm = new VirtualMachine(engine);
+                vm.execute(code);
+                assertArrayEquals(new int[] { 1 }, vm.getStack(), engine.toString());
+                assertEquals(9, vm.getGlobals()[0], engine.toString());
+            }
+        }
+    }
+    @Test void testTooManyCounters() {
+        VirtualMachine vm = new VirtualMachine();
+        vm.setGlobals(new Globals(4, 1));
+        assertThrows(VirtualMachine.Exception.class, () -> vm.execute(new int[] { CLOAD, 1 }));
+    }
+    @Test void testSharedAcrossThreads() throws Exception {
+        // Each run adds 1 to globals[0] and counter 0, 100 times over
+        int[] code = {
+            /* 0*/ CONST, 100,
+            /* 2*/ STORE, 0,
+            /* 4*/ CONST, 1,
+            /* 6*/ GADD, 0,
+            /* 8*/ POP,
+            /* 9*/ CONST, 1,
+            /*11*/ CADD, 0,
+            /*13*/ LOAD, 0,
+            /*15*/ CONST, 1,
+            /*17*/ SUB,
+            /*18*/ STORE, 0,
+            /*20*/ LOAD, 0,
+            /*22*/ JNZ, 4,
+            /*24*/ HALT
+        };
+        Program program = Program.load(code);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+                Globals globals = new Globals(1, 1);
+                Launcher launcher = new Launcher(program, engine, globals);
+                List<Future<int[]>> runs = new ArrayList<>();
+                for (int i = 0; i < 50; i++)
+                    runs.add(pool.submit(launcher.task()));
+                for (Future<int[]> run : runs)
+                    run.get();
+                assertEquals(5000, globals.get(0), engine.toString());
+                assertEquals(5000, globals.sum(0), engine.toString());
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
 }
@@ -0,0 +1,111 @@
+package simplevm.vm;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import static simplevm.vm.Bytecode.*;
+
+public class HostFunctionTests {
+    static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    static int mix(int a, int b) {
+        return a * 10 + b;
+    }
+    static int answer() {
+        return 42;
+    }
+    static void fail(int code) throws IOException {
+        throw new IOException("code " + code);
+    }
+
+    long total;
+    void record(int value) {
+        total += value;
+    }
+
+    static MethodHandle handle(String name, Class<?> result, Class<?>... parameters) throws ReflectiveOperationException {
+        return LOOKUP.findStatic(HostFunctionTests.class, name, MethodType.methodType(result, parameters));
+    }
+
+    @Test void testCalls() throws ReflectiveOperationException {
+        // Called from a function, so the TIERED engine compiles the calls
+        int n = 2 * Jit.THRESHOLD;
+        Program program = Program.load(new int[] {
+            /* 0*/ CONST, 0,
+            /* 2*/ STORE, 0,
+            /* 4*/ LOAD, 0,
+            /* 6*/ CALL, 25,
+            /* 8*/ LOAD, 0,
+            /*10*/ CONST, 1,
+            /*12*/ ADD,
+            /*13*/ STORE, 0,
+            /*15*/ LOAD, 0,
+            /*17*/ CONST, n,
+            /*19*/ LT,
+            /*20*/ JNZ, 4,
+            /*22*/ CALLHOST, 2,
+            /*24*/ HALT,
+            // record(mix(i, 4))
+            /*25*/ CONST, 4,
+            /*27*/ CALLHOST, 0,
+            /*29*/ CALLHOST, 1,
+            /*31*/ RET
+        });
+        MethodHandle record = LOOKUP.findVirtual(HostFunctionTests.class, "record",
+            MethodType.methodType(void.class, int.class)).bindTo(this);
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            VirtualMachine vm = new VirtualMachine(engine);
+            vm.setHostFunction(0, handle("mix", int.class, int.class, int.class));
+            vm.setHostFunction(1, record);
+            vm.setHostFunction(2, handle("answer", int.class));
+            total = 0;
+            vm.execute(program);
+            assertEquals(10L * n * (n - 1) / 2 + 4L * n, total, engine.name());
+            assertArrayEquals(new int[] { 42 }, vm.getStack(), engine.name());
+        }
+    }
+
+    @Test void testImmediate() throws ReflectiveOperationException {
+        VirtualMachine vm = new VirtualMachine();
+        vm.setHostFunction(5, handle("mix", int.class, int.class, int.class));
+        vm.push(1);
+        vm.push(2);
+        vm.push(3);
+        vm.execute(CALLHOST, 5);
+        assertArrayEquals(new int[] { 1, 23 }, vm.getStack());
+    }
+
+    @Test void testErrors() throws ReflectiveOperationException {
+        VirtualMachine vm = new VirtualMachine();
+        vm.setHostFunction(0, handle("mix", int.class, int.class, int.class));
+        vm.setHostFunction(1, handle("fail", void.class, int.class));
+
+        VirtualMachine.Exception e = assertThrows(VirtualMachine.Exception.class,
+            () -> vm.execute(new int[] { CALLHOST, 3 }));
+        assertEquals("No host function 3", e.getMessage());
+        e = assertThrows(VirtualMachine.Exception.class, () -> vm.execute(new int[] { CONST, 1, CALLHOST, 0 }));
+        assertEquals("Stack underflow", e.getMessage());
+        e = assertThrows(VirtualMachine.Exception.class, () -> vm.execute(new int[] { CONST, 7, CALLHOST, 1 }));
+        assertTrue(e.getMessage().contains("code 7"), e.getMessage());
+        assertThrows(VirtualMachine.Exception.class, () -> Program.load(new int[] { CALLHOST, -1 }));
+
+        // Only ints in and out
+        assertThrows(VirtualMachine.Exception.class, () -> vm.setHostFunction(2,
+            LOOKUP.findStatic(Math.class, "max", MethodType.methodType(long.class, long.class, long.class))));
+        assertThrows(VirtualMachine.Exception.class, () -> vm.setHostFunction(2,
+            LOOKUP.findStatic(Integer.class, "toString", MethodType.methodType(String.class, int.class))));
+
+        // Unset, it's gone
+        vm.setHostFunction(0, null);
+        assertThrows(VirtualMachine.Exception.class, () -> vm.execute(new int[] { CONST, 1, CONST, 2, CALLHOST, 0 }));
+    }
+}
@@ -0,0 +1,264 @@
+package simplevm.vm;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import static simplevm.vm.Bytecode.*;
+
+public class JitTests {
+    static int[] fib(int n) {
+        return new int[] {
+            /* 0*/ CONST, n,
+            /* 2*/ CALL, 5,
+            /* 4*/ HALT,
+            // function fib(n)
+            /* 5*/ STORE, 0,
+            /* 7*/ LOAD, 0,
+            /* 9*/ CONST, 2,
+            /*11*/ LT,
+            /*12*/ JZ, 17,
+            /*14*/ LOAD, 0,
+            /*16*/ RET,
+            /*17*/ LOAD, 0,
+            /*19*/ CONST, 1,
+            /*21*/ SUB,
+            /*22*/ CALL, 5,
+            /*24*/ LOAD, 0,
+            /*26*/ CONST, 2,
+            /*28*/ SUB,
+            /*29*/ CALL, 5,
+            /*31*/ ADD,
+            /*32*/ RET
+        };
+    }
+
+    // Calls "function" count times with 100 and 7 as arguments, keeping
+    // a running total of its results in globals[0]
+    static int[] loop(int count, int... function) {
+        int[] driver = {
+            /* 0*/ CONST, count,
+            /* 2*/ GSTORE, 1,
+            /* 4*/ CONST, 100,
+            /* 6*/ CONST, 7,
+            /* 8*/ CALL, 27,
+            /*10*/ GLOAD, 0,
+            /*12*/ ADD,
+            /*13*/ GSTORE, 0,
+            /*15*/ GLOAD, 1,
+            /*17*/ CONST, 1,
+            /*19*/ SUB,
+            /*20*/ GSTORE, 1,
+            /*22*/ GLOAD, 1,
+            /*24*/ JNZ, 4,
+            /*26*/ HALT
+            // function at 27
+        };
+        int[] code = java.util.Arrays.copyOf(driver, driver.length + function.length);
+        System.arraycopy(function, 0, code, driver.length, function.length);
+        return code;
+    }
+
+    static VirtualMachine run(VirtualMachine.Engine engine, Program program) {
+        VirtualMachine vm = new VirtualMachine(engine);
+        vm.execute(program);
+        return vm;
+    }
+
+    @Test void testCompile() {
+        Program program = Program.load(fib(10));
+        assertNotNull(program.jit().compile(5));
+    }
+    @Test void testHiddenClasses() throws ReflectiveOperationException {
+        // (Class.isHidden() is Java 15 and up)
+        java.lang.reflect.Method isHidden;
+        try {
+            isHidden = Class.class.getMethod("isHidden");
+        }
+        catch (NoSuchMethodException e) {
+            return;
+        }
+        Jit.Compiled compiled = Program.load(fib(10)).jit().compile(5);
+        assertEquals(true, isHidden.invoke(compiled.getClass()));
+    }
+    @Test void testHotRecursion() {
+        Program program = Program.load(fib(20));
+        VirtualMachine vm = run(VirtualMachine.Engine.TIERED, program);
+
+        assertArrayEquals(new int[] { 6765 }, vm.getStack());
+        assertNotNull(program.jit().enter(5));
+        // and again, now that it's compiled from the start
+        assertArrayEquals(new int[] { 6765 }, run(VirtualMachine.Engine.TIERED, program).getStack());
+    }
+    @Test void testArguments() {
+        // Operands coming off the VM stack, the JVM stack, and a mix
+        int[] code = loop(3 * Jit.THRESHOLD,
+            /*27*/ SUB,         // both operands are the caller's
+            /*28*/ CONST, 3,
+            /*30*/ MUL,         // one of each
+            /*31*/ CONST, 5,
+            /*33*/ CONST, 2,
+            /*35*/ MOD,         // both ours
+            /*36*/ SUB,
+            /*37*/ GLOAD, 2,
+            /*39*/ CONST, 1,
+            /*41*/ ADD,
+            /*42*/ GSTORE, 2,   // count the calls in globals[2]
+            /*44*/ RET
+        );
+        Program program = Program.load(code);
+        assertNotNull(program.jit().compile(27));
+
+        VirtualMachine expected = run(VirtualMachine.Engine.SWITCH, Program.load(code));
+        VirtualMachine actual = run(VirtualMachine.Engine.TIERED, program);
+        assertArrayEquals(expected.getStack(), actual.getStack());
+        assertArrayEquals(expected.getGlobals(), actual.getGlobals());
+        assertEquals(3 * Jit.THRESHOLD * 278, actual.getGlobals()[0]);
+    }
+    @Test void testReturnValuesLeftOnStack() {
+        int[] code = {
+            /* 0*/ CONST, 2 * Jit.THRESHOLD,
+            /* 2*/ GSTORE, 1,
+            /* 4*/ CALL, 25,    // leaves two values...
+            /* 6*/ ADD,         // ... which we add up
+            /* 7*/ GLOAD, 0,
+            /* 9*/ ADD,
+            /*10*/ GSTORE, 0,
+            /*12*/ GLOAD, 1,
+            /*14*/ CONST, 1,
+            /*16*/ SUB,
+            /*17*/ GSTORE, 1,
+            /*19*/ GLOAD, 1,
+            /*21*/ JNZ, 4,
+            /*23*/ HALT,
+            /*24*/ FATAL,
+            /*25*/ CONST, 3,
+            /*27*/ CONST, 4,
+            /*29*/ RET
+        };
+        Program program = Program.load(code);
+        VirtualMachine vm = run(VirtualMachine.Engine.TIERED, program);
+        assertNotNull(program.jit().enter(25));
+        assertEquals(0, vm.getStack().length);
+        assertEquals(2 * Jit.THRESHOLD * 7, vm.getGlobals()[0]);
+    }
+    @Test void testAtomics() {
+        int[] code = loop(2 * Jit.THRESHOLD,
+            /*27*/ GADD, 2,     // globals[2] += 7
+            /*29*/ POP,
+            /*30*/ CONST, 0,
+            /*32*/ CONST, 0,
+            /*34*/ GCAS, 3,     // always swaps
+            /*36*/ ADD,         // 100 + 1
+            /*37*/ CONST, 1,
+            /*39*/ CADD, 0,
+            /*41*/ CLOAD, 0,
+            /*43*/ POP,
+            /*44*/ RET
+        );
+        Program program = Program.load(code);
+        assertNotNull(program.jit().compile(27));
+
+        VirtualMachine vm = run(VirtualMachine.Engine.TIERED, program);
+        assertEquals(2 * Jit.THRESHOLD * 101, vm.getGlobals()[0]);
+        assertEquals(2 * Jit.THRESHOLD * 7, vm.getGlobals()[2]);
+        assertEquals(2 * Jit.THRESHOLD, vm.getGlobalSegment().sum(0));
+    }
+    @Test void testCallingInterpretedCode() {
+        // A compiled function calling one that can't be compiled, which
+        // calls back into one that can
+        int[] code = loop(2 * Jit.THRESHOLD,
+            /*27*/ ADD,
+            /*28*/ CALL, 31,
+            /*30*/ RET,
+            /*31*/ CONST, 36,
+            /*33*/ JMPI,
+            /*34*/ FATAL,
+            /*35*/ FATAL,
+            /*36*/ CALL, 39,
+            /*38*/ RET,
+            /*39*/ CONST, 2,
+            /*41*/ MUL,
+            /*42*/ RET
+        );
+        Program program = Program.load(code);
+        assertNull(program.jit().compile(31));
+
+        VirtualMachine expected = run(VirtualMachine.Engine.SWITCH, Program.load(code));
+        VirtualMachine actual = run(VirtualMachine.Engine.TIERED, program);
+        assertNotNull(program.jit().enter(27));
+        assertNotNull(program.jit().enter(39));
+        assertArrayEquals(expected.getStack(), actual.getStack());
+        assertArrayEquals(expected.getGlobals(), actual.getGlobals());
+    }
+    @Test void testHaltFromCompiledCode() {
+        int[] code = {
+            /* 0*/ CONST, 1,
+            /* 2*/ CALL, 6,
+            /* 4*/ FATAL,
+            /* 5*/ FATAL,
+            /* 6*/ CALL, 9,
+            /* 8*/ RET,
+            /* 9*/ HALT
+        };
+        Program program = Program.load(code);
+        assertNotNull(program.jit().compile(6));
+        for (int i = 0; i < Jit.THRESHOLD; i++)
+            program.jit().enter(6);
+
+        VirtualMachine vm = run(VirtualMachine.Engine.TIERED, program);
+        assertArrayEquals(new int[] { 1 }, vm.getStack());
+    }
+    @Test void testExceptions() {
+        // Values under a failing DIV stay on the stack, as they would
+        // when interpreted
+        int[] code = {
+            /* 0*/ CALL, 3,
+            /* 2*/ HALT,
+            /* 3*/ CONST, 42,
+            /* 5*/ CONST, 1,
+            /* 7*/ CONST, 0,
+            /* 9*/ DIV,
+            /*10*/ RET
+        };
+        Program program = Program.load(code);
+        for (int i = 0; i < Jit.THRESHOLD; i++)
+            program.jit().enter(3);
+
+        VirtualMachine expected = new VirtualMachine(VirtualMachine.Engine.SWITCH);
+        assertThrows(ArithmeticException.class, () -> expected.execute(code));
+        VirtualMachine actual = new VirtualMachine(VirtualMachine.Engine.TIERED);
+        assertThrows(ArithmeticException.class, () -> actual.execute(program));
+        assertNotNull(program.jit().enter(3));
+        assertArrayEquals(expected.getStack(), actual.getStack());
+    }
+    @Test void testDeepRecursion() {
+        // Deeper than compiled code is allowed to go
+        int[] code = {
+            /* 0*/ CONST, 5 * Jit.MAX_DEPTH,
+            /* 2*/ CALL, 5,
+            /* 4*/ HALT,
+            /* 5*/ STORE, 0,
+            /* 7*/ LOAD, 0,
+            /* 9*/ JZ, 22,
+            /*11*/ LOAD, 0,
+            /*13*/ CONST, 1,
+            /*15*/ SUB,
+            /*16*/ CALL, 5,
+            /*18*/ CONST, 1,
+            /*20*/ ADD,
+            /*21*/ RET,
+            /*22*/ CONST, 0,
+            /*24*/ RET
+        };
+        Program program = Program.load(code);
+        for (int i = 0; i < Jit.THRESHOLD; i++)
+            program.jit().enter(5);
+
+        assertArrayEquals(new int[] { 5 * Jit.MAX_DEPTH }, run(VirtualMachine.Engine.TIERED, program).getStack());
+    }
+}
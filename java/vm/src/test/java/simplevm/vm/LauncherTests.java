@@ -0,0 +1,68 @@
+package simplevm.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import static simplevm.vm.Bytecode.*;
+
+public class LauncherTests {
+    // fib(n), with n passed in on the stack
+    static final int[] FIB = {
+        /* 0*/ CALL, 3,
+        /* 2*/ HALT,
+        // function fib(n)
+        /* 3*/ STORE, 0,
+        /* 5*/ LOAD, 0,
+        /* 7*/ CONST, 2,
+        /* 9*/ LT,
+        /*10*/ JZ, 15,
+        /*12*/ LOAD, 0,
+        /*14*/ RET,
+        /*15*/ LOAD, 0,
+        /*17*/ CONST, 1,
+        /*19*/ SUB,
+        /*20*/ CALL, 3,
+        /*22*/ LOAD, 0,
+        /*24*/ CONST, 2,
+        /*26*/ SUB,
+        /*27*/ CALL, 3,
+        /*29*/ ADD,
+        /*30*/ RET
+    };
+    static int fib(int n) {
+        return n < 2 ? n : fib(n - 1) + fib(n - 2);
+    }
+
+    @Test void testRun() {
+        Launcher launcher = new Launcher(Program.load(FIB));
+        assertArrayEquals(new int[] { 55 }, launcher.run(10));
+    }
+    @Test void testConcurrentRuns() throws Exception {
+        Program program = Program.load(FIB);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+                Launcher launcher = new Launcher(program, engine);
+                List<CompletableFuture<int[]>> results = new ArrayList<>();
+                for (int i = 0; i < 200; i++)
+                    results.add(launcher.submit(pool, i % 20));
+                for (int i = 0; i < 200; i++)
+                    assertArrayEquals(new int[] { fib(i % 20) }, results.get(i).get(), engine + " run " + i);
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+    @Test void testTask() throws Exception {
+        Launcher launcher = new Launcher(Program.load(FIB), VirtualMachine.Engine.REGISTER);
+        assertArrayEquals(new int[] { 8 }, launcher.task(6).call());
+    }
+}
@@ -0,0 +1,107 @@
+package simplevm.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import static simplevm.vm.Bytecode.*;
+
+public class ListenerTests {
+    // Writes down every event it hears about
+    static class Recorder implements Listener {
+        final List<String> events = new ArrayList<>();
+        public void instruction(VirtualMachine vm, int ip, int opcode, int operand) {
+            events.add(ip + ":" + Bytecode.name(opcode));
+        }
+        public void call(VirtualMachine vm, int ip, int target) {
+            events.add("call " + ip + "->" + target);
+        }
+        public void ret(VirtualMachine vm, int ip, int returnAddress) {
+            events.add("ret " + ip + "->" + returnAddress);
+        }
+        public void branch(VirtualMachine vm, int ip, int target, boolean taken) {
+            events.add("branch " + ip + "->" + target + (taken ? " taken" : " not taken"));
+        }
+    }
+
+    static final int[] CODE = {
+        /* 0*/ CONST, 1,
+        /* 2*/ JZ, 7,
+        /* 4*/ CALL, 8,
+        /* 6*/ HALT,
+        /* 7*/ FATAL,
+        // function at 8
+        /* 8*/ RET
+    };
+
+    @Test void testEvents() {
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            Recorder recorder = new Recorder();
+            VirtualMachine vm = new VirtualMachine(engine);
+            vm.setListener(recorder);
+            vm.execute(CODE);
+            assertEquals(List.of(
+                "0:CONST",
+                "2:JZ", "branch 2->7 not taken",
+                "4:CALL", "call 4->8",
+                "8:RET", "ret 8->6",
+                "6:HALT"), recorder.events, engine.toString());
+        }
+    }
+    @Test void testFusedCodeLooksUnfused() {
+        int[] code = {
+            /* 0*/ CONST, 2,
+            /* 2*/ CONST, 3,
+            /* 4*/ ADD,
+            /* 5*/ HALT
+        };
+        Program program = Program.load(code).fuse();
+        Recorder recorder = new Recorder();
+        VirtualMachine vm = new VirtualMachine();
+        vm.setListener(recorder);
+        vm.execute(program);
+        assertEquals(List.of("0:CONST", "2:CONST", "4:ADD", "5:HALT"), recorder.events);
+    }
+    @Test void testTraceOutput() {
+        int[] code = {
+            /* 0*/ CONST, 1,
+            /* 2*/ TRACE,
+            /* 3*/ CONST, 2,
+            /* 5*/ DUMP,
+            /* 6*/ TRACE,
+            /* 7*/ POP,
+            /* 8*/ HALT
+        };
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            List<String> lines = new ArrayList<>();
+            VirtualMachine vm = new VirtualMachine(engine);
+            vm.setTraceOutput(lines::add);
+            vm.execute(code);
+
+            assertEquals("(IP 3):CONST 2; stack: [1]", lines.get(0), engine.toString());
+            assertEquals("(IP 5):DUMP; stack: [1, 2]", lines.get(1), engine.toString());
+            assertTrue(lines.contains("SimpleVM DUMP"), engine.toString());
+            assertEquals("(IP 6):TRACE; stack: [1, 2]", lines.get(lines.size() - 1), engine.toString());
+        }
+    }
+    @Test void testTraceAlongsideListener() {
+        int[] code = {
+            /* 0*/ TRACE,
+            /* 1*/ NOP,
+            /* 2*/ HALT
+        };
+        List<String> lines = new ArrayList<>();
+        Recorder recorder = new Recorder();
+        VirtualMachine vm = new VirtualMachine();
+        vm.setTraceOutput(lines::add);
+        vm.setListener(recorder);
+        vm.execute(code);
+
+        assertEquals(List.of("0:TRACE", "1:NOP", "2:HALT"), recorder.events);
+        assertEquals(2, lines.size());
+    }
+}
@@ -0,0 +1,148 @@
+package simplevm.vm;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import static simplevm.vm.Bytecode.*;
+
+public class MemoryTests {
+    @Test void testSquares() {
+        // Fill memory with squares, a function call apiece, so the
+        // TIERED engine compiles the function partway through
+        int n = 2 * Jit.THRESHOLD;
+        Program program = Program.load(new int[] {
+            /* 0*/ CONST, n,
+            /* 2*/ MGROW,
+            /* 3*/ CONST, 0,
+            /* 5*/ STORE, 0,
+            /* 7*/ LOAD, 0,
+            /* 9*/ CALL, 33,
+            /*11*/ LOAD, 0,
+            /*13*/ CONST, 1,
+            /*15*/ ADD,
+            /*16*/ STORE, 0,
+            /*18*/ LOAD, 0,
+            /*20*/ CONST, n,
+            /*22*/ LT,
+            /*23*/ JNZ, 7,
+            /*25*/ LOAD, 0,
+            /*27*/ CONST, 1,
+            /*29*/ SUB,
+            /*30*/ ALOAD,
+            /*31*/ MSIZE,
+            /*32*/ HALT,
+            // memory[i] = i * i
+            /*33*/ STORE, 0,
+            /*35*/ LOAD, 0,
+            /*37*/ LOAD, 0,
+            /*39*/ LOAD, 0,
+            /*41*/ MUL,
+            /*42*/ ASTORE,
+            /*43*/ RET
+        });
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            VirtualMachine vm = new VirtualMachine(engine);
+            vm.execute(program);
+            assertArrayEquals(new int[] { 0, (n - 1) * (n - 1), n }, vm.getStack(), engine.name());
+            assertEquals(n, vm.getMemory().size());
+            assertEquals(12 * 12, vm.getMemory().load(12));
+        }
+    }
+
+    @Test void testBounds() {
+        int[][] programs = {
+            { CONST, 2, MGROW, POP, MSIZE, ALOAD },
+            { CONST, 2, MGROW, POP, CONST, 0, CONST, 1, SUB, CONST, 5, ASTORE },
+            { MSIZE, ALOAD },
+        };
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            for (int[] code : programs) {
+                VirtualMachine vm = new VirtualMachine(engine);
+                VirtualMachine.Exception e = assertThrows(VirtualMachine.Exception.class, () -> vm.execute(code));
+                assertTrue(e.getMessage().contains("out of bounds"), e.getMessage());
+            }
+        }
+    }
+
+    @Test void testFaultingStack() {
+        // What's under an access that faults is left on the stack, as it
+        // is under a division by zero, however the function was compiled
+        int[][] programs = {
+            {
+                /* 0*/ CONST, 0,
+                /* 2*/ CALL, 5,
+                /* 4*/ HALT,
+                /* 5*/ STORE, 0,
+                /* 7*/ CONST, 7,
+                /* 9*/ CONST, 99,
+                /*11*/ NEG,
+                /*12*/ NEG,
+                /*13*/ ALOAD,
+                /*14*/ RET
+            },
+            {
+                /* 0*/ CONST, 0,
+                /* 2*/ CALL, 5,
+                /* 4*/ HALT,
+                /* 5*/ STORE, 0,
+                /* 7*/ CONST, 7,
+                /* 9*/ CONST, -1,
+                /*11*/ CONST, 8,
+                /*13*/ ASTORE,
+                /*14*/ RET
+            },
+        };
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            for (int[] code : programs) {
+                VirtualMachine vm = new VirtualMachine(engine);
+                VirtualMachine.Exception e = assertThrows(VirtualMachine.Exception.class, () -> vm.execute(code));
+                assertTrue(e.getMessage().contains("out of bounds"), e.getMessage());
+                assertArrayEquals(new int[] { 7 }, vm.getStack(), engine.name());
+            }
+        }
+    }
+
+    @Test void testUnreachedAccesses() {
+        // Accesses that never run can't fail, however bad their addresses
+        for (int address : new int[] { -1, 500000000 }) {
+            Program program = Program.load(new int[] {
+                /* 0*/ CONST, 0,
+                /* 2*/ JZ, 7,
+                /* 4*/ CONST, address,
+                /* 6*/ ALOAD,
+                /* 7*/ HALT
+            });
+            for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+                VirtualMachine vm = new VirtualMachine(engine);
+                vm.execute(program);
+                assertArrayEquals(new int[0], vm.getStack(), engine.name());
+                assertEquals(0, vm.getMemory().size(), engine.name());
+            }
+        }
+    }
+
+    @Test void testGrow() {
+        Memory memory = VirtualMachine.builder().memory(4, 10).build().getMemory();
+        assertEquals(4, memory.size());
+        memory.store(3, 42);
+        assertEquals(4, memory.grow(3));
+        assertEquals(7, memory.size());
+        assertEquals(42, memory.load(3));
+        assertEquals(0, memory.load(6));
+        memory.store(6, 43);
+        assertEquals(7, memory.grow(3));
+        assertEquals(43, memory.load(6));
+        assertEquals(0, memory.load(9));
+
+        // Never past the max, and never smaller
+        assertEquals(-1, memory.grow(1));
+        assertEquals(-1, memory.grow(-1));
+        assertEquals(10, memory.size());
+        assertThrows(VirtualMachine.Exception.class, () -> memory.load(10));
+        assertThrows(VirtualMachine.Exception.class, () -> VirtualMachine.builder().memory(0, VirtualMachine.MAX_MEMORY + 1));
+    }
+}
@@ -0,0 +1,128 @@
+package simplevm.vm;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import static simplevm.vm.Bytecode.*;
+
+public class OptimizerTests {
+    static int[] run(int[] code) {
+        VirtualMachine vm = new VirtualMachine();
+        vm.execute(code);
+        return vm.getStack();
+    }
+
+    @Test void testFold() {
+        int[] code = {
+            CONST, 2,
+            CONST, 3,
+            CONST, 4,
+            MUL,
+            ADD,        // 2 + 3 * 4
+            NEG,
+            CONST, 7,
+            MOD,        // -14 % 7
+            CONST, -5,
+            ABS,
+            GTE         // 0 >= 5
+        };
+        assertArrayEquals(new int[] { CONST, 0 }, Optimizer.optimize(code));
+        assertArrayEquals(run(code), run(Optimizer.optimize(code)));
+    }
+    @Test void testDivideByZero() {
+        int[] code = {
+            CONST, 1,
+            CONST, 0,
+            DIV
+        };
+        assertArrayEquals(code, Optimizer.optimize(code));
+    }
+    @Test void testBranches() {
+        int[] code = {
+            /* 0*/ CONST, 1,
+            /* 2*/ JZ, 9,       // never taken
+            /* 4*/ CONST, 0,
+            /* 6*/ JZ, 11,      // always taken
+            /* 8*/ PRINT,       // so never reached
+            /* 9*/ CONST, 9,
+            /*11*/ CONST, 5,
+            /*13*/ CONST, 99,
+            /*15*/ POP
+        };
+        assertArrayEquals(new int[] { CONST, 5 }, Optimizer.optimize(code));
+    }
+    @Test void testRelocation() {
+        // A loop and a function, with dead code and constants in the way
+        int[] code = {
+            /* 0*/ CONST, 2,
+            /* 2*/ CONST, 3,
+            /* 4*/ ADD,
+            /* 5*/ STORE, 0,
+            /* 7*/ LOAD, 0,     // loop: locals[0] counts down from 5
+            /* 9*/ CALL, 29,
+            /*11*/ LOAD, 0,
+            /*13*/ CONST, 10,
+            /*15*/ CONST, 9,
+            /*17*/ SUB,
+            /*18*/ SUB,
+            /*19*/ STORE, 0,
+            /*21*/ LOAD, 0,
+            /*23*/ JNZ, 7,
+            /*25*/ HALT,
+            /*26*/ PRINT,       // unreachable
+            /*27*/ RJMP, 2,     // unreachable
+            // function: doubles its argument onto the stack
+            /*29*/ CONST, 1,
+            /*31*/ JNZ, 34,
+            /*33*/ FATAL,
+            /*34*/ CONST, 2,
+            /*36*/ MUL,
+            /*37*/ RET
+        };
+        int[] optimized = Optimizer.optimize(code);
+        assertArrayEquals(new int[] {
+            /* 0*/ CONST, 5,
+            /* 2*/ STORE, 0,
+            /* 4*/ LOAD, 0,
+            /* 6*/ CALL, 20,
+            /* 8*/ LOAD, 0,
+            /*10*/ CONST, 1,
+            /*12*/ SUB,
+            /*13*/ STORE, 0,
+            /*15*/ LOAD, 0,
+            /*17*/ JNZ, 4,
+            /*19*/ HALT,
+            /*20*/ CONST, 2,
+            /*22*/ MUL,
+            /*23*/ RET
+        }, optimized);
+        assertArrayEquals(new int[] { 10, 8, 6, 4, 2 }, run(optimized));
+        assertArrayEquals(run(code), run(optimized));
+    }
+    @Test void testJumpIntoSequence() {
+        // Something jumps to the second CONST, so the pair can't fold
+        int[] code = {
+            /* 0*/ CONST, 1,
+            /* 2*/ LOAD, 0,
+            /* 4*/ JNZ, 8,
+            /* 6*/ CONST, 10,
+            /* 8*/ CONST, 20,
+            /*10*/ ADD
+        };
+        assertArrayEquals(code, Optimizer.optimize(code));
+    }
+    @Test void testDynamicJumps() {
+        int[] code = {
+            CONST, 1,
+            CONST, 2,
+            ADD,
+            CONST, 9,
+            JMPI,
+            NOP,
+            NOP,
+            HALT
+        };
+        assertArrayEquals(code, Optimizer.optimize(code));
+    }
+}
@@ -0,0 +1,110 @@
+package simplevm.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import static simplevm.vm.Bytecode.*;
+
+public class OutputTests {
+    static final String NL = System.lineSeparator();
+
+    // Counts the writes that reach it
+    static class Sink extends ByteArrayOutputStream {
+        int writes = 0;
+        @Override public synchronized void write(byte[] bytes, int offset, int length) {
+            writes++;
+            super.write(bytes, offset, length);
+        }
+        String text() {
+            return new String(toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test void testDigits() {
+        Sink sink = new Sink();
+        BufferedOutput output = new BufferedOutput(sink);
+        int[] values = { 0, 7, -7, 10, 1234567890, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        StringBuilder expected = new StringBuilder();
+        for (int value : values) {
+            output.print(value);
+            expected.append(value).append(NL);
+        }
+        assertEquals(0, sink.size());
+        output.flush();
+        assertEquals(expected.toString(), sink.text());
+        assertEquals(1, sink.writes);
+    }
+    @Test void testLines() {
+        Sink sink = new Sink();
+        BufferedOutput output = new BufferedOutput(sink, 16);
+        output.line("short");
+        output.line("rather longer than the buffer");
+        output.line("caf\u00e9");
+        output.print(-42);
+        output.flush();
+        assertEquals("short" + NL + "rather longer than the buffer" + NL + "caf\u00e9" + NL + "-42" + NL, sink.text());
+    }
+    @Test void testBatched() {
+        // Prints 1000 down to 1
+        int[] code = {
+            /* 0*/ CONST, 1000,
+            /* 2*/ STORE, 0,
+            /* 4*/ LOAD, 0,
+            /* 6*/ PRINT,
+            /* 7*/ LOAD, 0,
+            /* 9*/ CONST, 1,
+            /*11*/ SUB,
+            /*12*/ STORE, 0,
+            /*14*/ LOAD, 0,
+            /*16*/ JNZ, 4
+        };
+        StringBuilder expected = new StringBuilder();
+        for (int i = 1000; i > 0; i--)
+            expected.append(i).append(NL);
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            Sink sink = new Sink();
+            VirtualMachine vm = new VirtualMachine(engine);
+            vm.setOutput(new BufferedOutput(sink));
+            vm.execute(code);
+            assertEquals(expected.toString(), sink.text(), engine.toString());
+            assertTrue(sink.writes <= 1 + expected.length() / 8192, engine + ": " + sink.writes + " writes");
+        }
+    }
+    @Test void testDump() {
+        Sink sink = new Sink();
+        VirtualMachine vm = new VirtualMachine();
+        vm.setOutput(new BufferedOutput(sink));
+        vm.execute(new int[] {
+            CONST, 5,
+            PRINT,
+            DUMP
+        });
+        assertTrue(sink.text().startsWith("5" + NL + "SimpleVM DUMP" + NL), sink.text());
+        assertEquals(1, sink.writes);
+    }
+    @Test void testFlushedOnFailure() {
+        Sink sink = new Sink();
+        VirtualMachine vm = new VirtualMachine();
+        vm.setOutput(new BufferedOutput(sink));
+        assertThrows(VirtualMachine.Exception.class, () -> vm.execute(new int[] {
+            CONST, 12,
+            PRINT,
+            FATAL
+        }));
+        assertEquals("12" + NL, sink.text());
+    }
+    @Test void testImmediate() {
+        Sink sink = new Sink();
+        VirtualMachine vm = new VirtualMachine();
+        vm.setOutput(new BufferedOutput(sink));
+        vm.execute(CONST, 3);
+        vm.execute(PRINT);
+        assertEquals("3" + NL, sink.text());
+    }
+}
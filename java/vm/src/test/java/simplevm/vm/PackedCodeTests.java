@@ -0,0 +1,176 @@
+package simplevm.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import static simplevm.vm.Bytecode.*;
+
+public class PackedCodeTests {
+    // Sums 1..n into global 0 by way of a function, and memory[3] (so
+    // it needs 4 words of memory)
+    static int[] program(int n) {
+        return new int[] {
+            /* 0*/ CONST, n,
+            /* 2*/ STORE, 0,
+            /* 4*/ LOAD, 0,
+            /* 6*/ JZ, 19,
+            /* 8*/ LOAD, 0,
+            /*10*/ CALL, 23,
+            /*12*/ LOAD, 0,
+            /*14*/ CONST, 1,
+            /*16*/ SUB,
+            /*17*/ RJMP, -15,
+            /*19*/ CONST, 3,
+            /*21*/ ALOAD,
+            /*22*/ HALT,
+            // globals[0] += x; memory[3] = globals[0]
+            /*23*/ GLOAD, 0,
+            /*25*/ ADD,
+            /*26*/ GSTORE, 0,
+            /*28*/ CONST, 3,
+            /*30*/ GLOAD, 0,
+            /*32*/ ASTORE,
+            /*33*/ RET
+        };
+    }
+
+    @Test void testPack() {
+        int[] code = program(100);
+        int[] packed = PackedCode.pack(code);
+        assertEquals(20, packed.length);
+        assertEquals(CONST | 100 << 8, packed[0]);
+        assertEquals(ADD, packed[14]);
+        assertArrayEquals(code, PackedCode.unpack(packed));
+    }
+
+    @Test void testWideOperands() {
+        int[] code = {
+            CONST, 1 << 23,
+            CONST, -(1 << 23),
+            CONST, (1 << 23) - 1,
+            CONST, -(1 << 23) + 1,
+            CONST, Integer.MIN_VALUE,
+            ADD, ADD, ADD, ADD
+        };
+        int[] packed = PackedCode.pack(code);
+        assertEquals(2 + 2 + 1 + 1 + 2 + 4, packed.length);
+        assertEquals(CONST | PackedCode.WIDE << 8, packed[0]);
+        assertEquals(1 << 23, packed[1]);
+        assertArrayEquals(code, PackedCode.unpack(packed));
+
+        VirtualMachine vm = new VirtualMachine();
+        vm.execute(PackedCode.load(packed));
+        assertArrayEquals(new int[] { Integer.MIN_VALUE }, vm.getStack());
+    }
+
+    @Test void testFarJumps() {
+        // Jumping over enough NOPs that the target only fits wide
+        int far = 1 << 23;
+        int[] code = new int[far + 6];
+        code[0] = CONST;
+        code[1] = 1;
+        code[2] = JNZ;
+        code[3] = far + 4;
+        code[far + 4] = CONST;
+        code[far + 5] = 42;
+        int[] packed = PackedCode.pack(code);
+        assertEquals(far + 4, packed.length);
+        assertEquals(JNZ | PackedCode.WIDE << 8, packed[1]);
+        assertEquals(far + 3, packed[2]);
+        assertArrayEquals(code, PackedCode.unpack(packed));
+
+        VirtualMachine vm = new VirtualMachine();
+        vm.execute(PackedCode.load(packed));
+        assertArrayEquals(new int[] { 42 }, vm.getStack());
+    }
+
+    @Test void testEngines() {
+        int[] code = program(50);
+        PackedCode packed = PackedCode.load(PackedCode.pack(code));
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            VirtualMachine vm = VirtualMachine.builder().engine(engine).memory(4, 4).build();
+            vm.execute(packed);
+            assertArrayEquals(new int[] { 50 * 51 / 2 }, vm.getStack(), engine.name());
+            assertEquals(50 * 51 / 2, vm.getGlobals()[0], engine.name());
+        }
+    }
+
+    @Test void testTailCalls() {
+        // Counts down from n, calling itself last, so in constant frames
+        int n = 1000;
+        int[] code = {
+            /* 0*/ CONST, n,
+            /* 2*/ CALL, 5,
+            /* 4*/ HALT,
+            /* 5*/ STORE, 0,
+            /* 7*/ LOAD, 0,
+            /* 9*/ JZ, 20,
+            /*11*/ LOAD, 0,
+            /*13*/ CONST, 1,
+            /*15*/ SUB,
+            /*16*/ CALL, 5,
+            /*18*/ RET,
+            /*19*/ NOP,
+            /*20*/ CONST, 7,
+            /*22*/ RET
+        };
+        VirtualMachine vm = VirtualMachine.builder().maxCallDepth(16).build();
+        vm.execute(PackedCode.load(PackedCode.pack(code)));
+        assertArrayEquals(new int[] { 7 }, vm.getStack());
+    }
+
+    @Test void testListener() {
+        List<Integer> addresses = new ArrayList<>();
+        VirtualMachine vm = new VirtualMachine();
+        vm.setListener(new Listener() {
+            public void instruction(VirtualMachine vm, int ip, int opcode, int operand) {
+                addresses.add(ip);
+            }
+        });
+        vm.execute(PackedCode.load(PackedCode.pack(new int[] {
+            /* 0*/ CONST, 1 << 30,
+            /* 2*/ CONST, 1,
+            /* 4*/ JMP, 7,
+            /* 6*/ FATAL,
+            /* 7*/ ADD
+        })));
+        // (the HALT on the end included)
+        assertEquals(List.of(0, 2, 3, 5, 6), addresses);
+    }
+
+    @Test void testErrors() {
+        // Not packable
+        assertThrows(VirtualMachine.Exception.class, () -> PackedCode.pack(new int[] { CONST, 0, JMPI }));
+        assertThrows(VirtualMachine.Exception.class, () -> PackedCode.pack(new int[] { CONST }));
+
+        // Not packed properly
+        int[][] bad = {
+            { 200 },
+            { JMPI },
+            { ADD | 1 << 8 },
+            { CONST | PackedCode.WIDE << 8 },
+            { JMP | 4 << 8, CONST | PackedCode.WIDE << 8, 5 },
+            { JMP | 2 << 8, CONST | PackedCode.WIDE << 8, 5 },
+            { RJMP | -1 << 8 },
+        };
+        for (int[] packed : bad)
+            assertThrows(VirtualMachine.Exception.class, () -> PackedCode.unpack(packed));
+
+        // Verified like any other code
+        assertThrows(VirtualMachine.Exception.class, () -> PackedCode.load(new int[] { LOAD | -1 << 8 }));
+
+        // And failing where it's packed
+        VirtualMachine vm = new VirtualMachine();
+        VirtualMachine.Exception e = assertThrows(VirtualMachine.Exception.class,
+            () -> vm.execute(PackedCode.load(PackedCode.pack(new int[] { CONST, 1, CONST, 2, FATAL }))));
+        assertTrue(e.getMessage().endsWith(" 2"), e.getMessage());
+        assertThrows(VirtualMachine.Exception.class, () -> vm.run(10));
+    }
+}
@@ -0,0 +1,68 @@
+package simplevm.vm;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import static simplevm.vm.Bytecode.*;
+
+public class ProfilerTests {
+    // Calls the function at 19 five times
+    static int[] loop() {
+        return new int[] {
+            /* 0*/ CONST, 5,
+            /* 2*/ STORE, 0,
+            /* 4*/ CALL, 19,
+            /* 6*/ LOAD, 0,
+            /* 8*/ CONST, 1,
+            /*10*/ SUB,
+            /*11*/ STORE, 0,
+            /*13*/ LOAD, 0,
+            /*15*/ JNZ, 4,
+            /*17*/ HALT,
+            /*18*/ NOP,
+            // function at 19
+            /*19*/ RET
+        };
+    }
+
+    @Test void testCounts() {
+        Profiler profiler = new Profiler();
+        VirtualMachine vm = new VirtualMachine();
+        vm.setListener(profiler);
+        vm.execute(loop());
+
+        assertEquals(5, profiler.calls(19));
+        assertEquals(5, profiler.executionsAt(19));
+        assertEquals(5, profiler.executions(RET));
+        assertEquals(6, profiler.executions(STORE));
+        assertEquals(4, profiler.taken(15));
+        assertEquals(1, profiler.notTaken(15));
+        assertEquals(0, profiler.executionsAt(18));
+        assertEquals(1, profiler.executions(HALT));
+        // 2 to start, 8 per trip around the loop, and the HALT
+        assertEquals(2 + 5 * 8 + 1, profiler.total());
+    }
+    @Test void testReset() {
+        Profiler profiler = new Profiler();
+        VirtualMachine vm = new VirtualMachine(VirtualMachine.Engine.TIERED);
+        vm.setListener(profiler);
+        vm.execute(loop());
+        profiler.reset();
+        assertEquals(0, profiler.total());
+        assertEquals(0, profiler.calls(19));
+        assertEquals(0, profiler.taken(15));
+    }
+    @Test void testReport() {
+        Profiler profiler = new Profiler();
+        VirtualMachine vm = new VirtualMachine();
+        vm.setListener(profiler);
+        vm.execute(loop());
+
+        String report = profiler.report();
+        assertTrue(report.contains("Instructions executed: 43"), report);
+        assertTrue(report.contains("to 19"), report);
+        assertTrue(report.contains("JNZ"), report);
+    }
+}
@@ -0,0 +1,73 @@
+package simplevm.vm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import static simplevm.vm.Bytecode.*;
+
+public class ProgramFileTests {
+    // Adds globals[0] and globals[1] by way of a function
+    static final int[] CODE = {
+        /* 0*/ GLOAD, 0,
+        /* 2*/ GLOAD, 1,
+        /* 4*/ CALL, 7,
+        /* 6*/ HALT,
+        /* 7*/ ADD,
+        /* 8*/ RET
+    };
+
+    @Test void testRoundTrip() throws IOException {
+        Path path = Files.createTempFile("simplevm", ".svm");
+        try {
+            ProgramFile.write(path, CODE, new int[] { 12, 30 }, new int[] { 0, 7 }, new int[] { 0, 1, 4, 2, 7, 5 });
+            ProgramFile file = ProgramFile.open(path);
+
+            assertEquals(ProgramFile.VERSION, file.version());
+            assertArrayEquals(new int[] { 12, 30 }, file.constants());
+            assertArrayEquals(new int[] { 0, 7 }, file.functions());
+            assertSame(file.program(), file.program());
+            for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+                VirtualMachine vm = new VirtualMachine(engine);
+                file.initialize(vm);
+                vm.execute(file.program());
+                assertArrayEquals(new int[] { 42 }, vm.getStack(), engine.toString());
+            }
+        }
+        finally {
+            Files.delete(path);
+        }
+    }
+    @Test void testLines() {
+        ProgramFile file = ProgramFile.read(ProgramFile.encode(CODE, null, null, new int[] { 2, 10, 7, 20 }));
+        assertEquals(-1, file.line(0));
+        assertEquals(10, file.line(2));
+        assertEquals(10, file.line(6));
+        assertEquals(20, file.line(8));
+    }
+    @Test void testBadHeader() {
+        ByteBuffer bytes = ProgramFile.encode(CODE, null, null, null);
+        bytes.putInt(0, 0xCAFEBABE);
+        assertThrows(VirtualMachine.Exception.class, () -> ProgramFile.read(bytes));
+
+        ByteBuffer version = ProgramFile.encode(CODE, null, null, null);
+        version.putInt(4, ProgramFile.VERSION + 1);
+        assertThrows(VirtualMachine.Exception.class, () -> ProgramFile.read(version));
+
+        ByteBuffer truncated = ProgramFile.encode(CODE, null, null, null);
+        truncated.limit(truncated.limit() - 4);
+        assertThrows(VirtualMachine.Exception.class, () -> ProgramFile.read(truncated));
+    }
+    @Test void testBadFunction() {
+        ProgramFile file = ProgramFile.read(ProgramFile.encode(CODE, null, new int[] { 0, 8, 3 }, null));
+        assertThrows(VirtualMachine.Exception.class, () -> file.program());
+    }
+}
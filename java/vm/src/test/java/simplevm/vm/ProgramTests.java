@@ -0,0 +1,146 @@
+package simplevm.vm;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import static simplevm.vm.Bytecode.*;
+
+public class ProgramTests {
+    @Test void testLoad() {
+        Program program = Program.load(new int[] {
+            CONST, 5,
+            GSTORE, 3,
+            RJMP, 2,
+            NOP
+        });
+
+        assertEquals(7, program.length());
+        assertEquals(4, program.globalCount);
+    }
+    @Test void testUnrecognizedOpcode() {
+        assertThrows(VirtualMachine.Exception.class, () -> Program.load(new int[] {
+            NOP,
+            9999
+        }));
+    }
+    @Test void testMissingOperand() {
+        assertThrows(VirtualMachine.Exception.class, () -> Program.load(new int[] {
+            NOP,
+            CONST
+        }));
+    }
+    @Test void testJumpIntoOperand() {
+        assertThrows(VirtualMachine.Exception.class, () -> Program.load(new int[] {
+            /* 0*/ CONST, 5,
+            /* 2*/ JMP, 1
+        }));
+        assertThrows(VirtualMachine.Exception.class, () -> Program.load(new int[] {
+            /* 0*/ CONST, 5,
+            /* 2*/ RJMP, -1
+        }));
+    }
+    @Test void testJumpOutOfProgram() {
+        assertThrows(VirtualMachine.Exception.class, () -> Program.load(new int[] {
+            JMP, 10
+        }));
+        assertThrows(VirtualMachine.Exception.class, () -> Program.load(new int[] {
+            CALL, 2
+        }));
+    }
+    @Test void testJumpToEnd() {
+        VirtualMachine vm = new VirtualMachine();
+        vm.execute(Program.load(new int[] {
+            /* 0*/ CONST, 0,
+            /* 2*/ JZ, 6,
+            /* 4*/ FATAL,
+            /* 5*/ FATAL
+        }));
+
+        assertEquals(0, vm.getStack().length);
+    }
+    @Test void testBadIndices() {
+        assertThrows(VirtualMachine.Exception.class, () -> Program.load(new int[] {
+            GLOAD, -1
+        }));
+        assertThrows(VirtualMachine.Exception.class, () -> Program.load(new int[] {
+            STORE, -1
+        }));
+        // (A VM's own globals grow to suit the program, up to a point)
+        assertThrows(VirtualMachine.Exception.class, () -> new VirtualMachine().execute(new int[] {
+            GLOAD, 1 << 20
+        }));
+    }
+    @Test void testFrameSizes() {
+        Program program = Program.load(new int[] {
+            /* 0*/ CALL, 5,
+            /* 2*/ CALL, 8,
+            /* 4*/ HALT,
+            /* 5*/ STORE, 3,
+            /* 7*/ RET,
+            /* 8*/ LOAD, 0,
+            /*10*/ RET
+        });
+
+        assertEquals(0, program.frameSizes[0]);
+        assertEquals(4, program.frameSizes[5]);
+        assertEquals(1, program.frameSizes[8]);
+    }
+    @Test void testDynamicJumpIntoOperand() {
+        VirtualMachine vm = new VirtualMachine();
+        assertThrows(VirtualMachine.Exception.class, () -> vm.execute(new int[] {
+            /* 0*/ CONST, 1,
+            /* 2*/ JMPI
+        }));
+    }
+    @Test void testReuse() {
+        Program program = Program.load(new int[] {
+            GLOAD, 0,
+            CONST, 1,
+            ADD,
+            GSTORE, 0
+        });
+        VirtualMachine vm = new VirtualMachine();
+        vm.execute(program);
+        vm.execute(program);
+
+        assertEquals(2, vm.getGlobals()[0]);
+    }
+    @Test void testStackHint() {
+        Program program = Program.load(new int[] {
+            /* 0*/ CONST, 1,
+            /* 2*/ CONST, 2,
+            /* 4*/ CALL, 9,     // two deep, plus three for the call
+            /* 6*/ ADD,
+            /* 7*/ PRINT,
+            /* 8*/ HALT,
+            /* 9*/ CONST, 3,
+            /*11*/ CONST, 4,
+            /*13*/ CONST, 5,
+            /*15*/ ADD,
+            /*16*/ ADD,
+            /*17*/ ADD,
+            /*18*/ RET
+        });
+        assertEquals(5, program.stackHint());
+    }
+    @Test void testBranchToNext() {
+        // A JZ or JNZ that goes the same way either way
+        for (int opcode : new int[] { JZ, JNZ }) {
+            Program program = Program.load(new int[] {
+                /* 0*/ CONST, 0,
+                /* 2*/ opcode, 4,
+                /* 4*/ CONST, 7,
+                /* 6*/ HALT
+            });
+            assertEquals(1, program.depths(0)[6]);
+            for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+                VirtualMachine vm = new VirtualMachine(engine);
+                vm.execute(program);
+                assertArrayEquals(new int[] { 7 }, vm.getStack(), engine.name());
+            }
+        }
+    }
+}
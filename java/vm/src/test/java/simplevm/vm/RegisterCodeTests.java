@@ -0,0 +1,129 @@
+package simplevm.vm;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import static simplevm.vm.Bytecode.*;
+
+public class RegisterCodeTests {
+    static VirtualMachine run(VirtualMachine.Engine engine, int[] code) {
+        VirtualMachine vm = new VirtualMachine(engine);
+        vm.execute(code);
+        return vm;
+    }
+
+    @Test void testFewerInstructions() {
+        // locals[0] = 10; while (locals[0] != 0) locals[0] = locals[0] - 1
+        int[] code = {
+            /* 0*/ CONST, 10,
+            /* 2*/ STORE, 0,
+            /* 4*/ LOAD, 0,
+            /* 6*/ CONST, 0,
+            /* 8*/ EQ,
+            /* 9*/ JNZ, 21,
+            /*11*/ LOAD, 0,
+            /*13*/ CONST, 1,
+            /*15*/ SUB,
+            /*16*/ STORE, 0,
+            /*18*/ JMP, 4,
+            /*20*/ NOP,
+            /*21*/ LOAD, 0,
+            /*23*/ HALT
+        };
+        RegisterCode registers = Program.load(code).registers();
+        assertNotSame(RegisterCode.NONE, registers);
+        // LOADK; IF_EQK; SUBK; JMP; PUSH; HALT
+        assertEquals(6, registers.instructionCount());
+
+        assertArrayEquals(new int[] { 0 }, run(VirtualMachine.Engine.REGISTER, code).getStack());
+    }
+    @Test void testRecursion() {
+        VirtualMachine vm = new VirtualMachine(VirtualMachine.Engine.REGISTER);
+        vm.execute(JitTests.fib(20));
+        assertArrayEquals(new int[] { 6765 }, vm.getStack());
+    }
+    @Test void testCallsInterpretedFunction() {
+        // The function uses a dynamic jump, so it gets interpreted, but
+        // the top level still runs as register code
+        int[] code = {
+            /* 0*/ CONST, 4,
+            /* 2*/ CALL, 7,
+            /* 4*/ CONST, 1,
+            /* 6*/ HALT,
+            // function at 7: n => n * 2, by way of JMPI
+            /* 7*/ CONST, 11,
+            /* 9*/ JMPI,
+            /*10*/ FATAL,
+            /*11*/ CONST, 2,
+            /*13*/ MUL,
+            /*14*/ RET
+        };
+        Program program = Program.load(code);
+        assertNotSame(RegisterCode.NONE, program.registers());
+
+        VirtualMachine vm = new VirtualMachine(VirtualMachine.Engine.REGISTER);
+        vm.execute(program);
+        assertArrayEquals(new int[] { 8, 1 }, vm.getStack());
+    }
+    @Test void testUntranslatable() {
+        int[] code = {
+            /* 0*/ CONST, 1,
+            /* 2*/ TRACE,
+            /* 3*/ TRACE,
+            /* 4*/ HALT
+        };
+        assertSame(RegisterCode.NONE, Program.load(code).registers());
+        assertArrayEquals(new int[] { 1 }, run(VirtualMachine.Engine.REGISTER, code).getStack());
+    }
+    @Test void testDivideByZero() {
+        // The values under the division have to be on the stack when it
+        // throws, as they would be under any other engine
+        int[] code = {
+            /* 0*/ CONST, 1,
+            /* 2*/ CONST, 2,
+            /* 4*/ LOAD, 0,
+            /* 6*/ CONST, 0,
+            /* 8*/ DIV,
+            /* 9*/ HALT
+        };
+        for (VirtualMachine.Engine engine : new VirtualMachine.Engine[] { VirtualMachine.Engine.SWITCH, VirtualMachine.Engine.REGISTER }) {
+            VirtualMachine vm = new VirtualMachine(engine);
+            assertThrows(ArithmeticException.class, () -> vm.execute(code));
+            assertArrayEquals(new int[] { 1, 2 }, vm.getStack(), engine + " stack");
+        }
+    }
+    @Test void testStoreWhileLoaded() {
+        // LOAD 0 is still on the stack when STORE 0 overwrites it
+        int[] code = {
+            /* 0*/ CONST, 5,
+            /* 2*/ STORE, 0,
+            /* 4*/ LOAD, 0,
+            /* 6*/ CONST, 9,
+            /* 8*/ STORE, 0,
+            /*10*/ LOAD, 0,
+            /*12*/ ADD,
+            /*13*/ HALT
+        };
+        assertArrayEquals(new int[] { 14 }, run(VirtualMachine.Engine.REGISTER, code).getStack());
+    }
+    @Test void testFoldsConstants() {
+        int[] code = {
+            /* 0*/ CONST, 6,
+            /* 2*/ CONST, 7,
+            /* 4*/ MUL,
+            /* 5*/ NEG,
+            /* 6*/ PRINT,
+            /* 7*/ HALT
+        };
+        RegisterCode registers = Program.load(code).registers();
+        // PRINTK; HALT
+        assertEquals(2, registers.instructionCount());
+        assertTrue(registers.ir[0] == RegisterCode.PRINTK && registers.ir[1] == -42);
+    }
+}
@@ -0,0 +1,170 @@
+package simplevm.vm;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import static simplevm.vm.Bytecode.*;
+
+public class SnapshotTests {
+    // Sums the squares of 1 to 99 into globals[0], sets globals[100],
+    // counts 7 on counter 2, and leaves 7 on the stack
+    static final int[] PROLOGUE = {
+        /* 0*/ CONST, 99,
+        /* 2*/ STORE, 0,
+        /* 4*/ LOAD, 0,
+        /* 6*/ LOAD, 0,
+        /* 8*/ MUL,
+        /* 9*/ GLOAD, 0,
+        /*11*/ ADD,
+        /*12*/ GSTORE, 0,
+        /*14*/ LOAD, 0,
+        /*16*/ CONST, 1,
+        /*18*/ SUB,
+        /*19*/ STORE, 0,
+        /*21*/ LOAD, 0,
+        /*23*/ JNZ, 4,
+        /*25*/ CONST, 1,
+        /*27*/ GSTORE, 100,
+        /*29*/ CONST, 7,
+        /*31*/ CADD, 2,
+        /*33*/ CONST, 7
+    };
+    // Adds globals[0] (as the prologue left it) to what's on the stack
+    static final int[] HANDLER = {
+        GLOAD, 0,
+        ADD
+    };
+
+    @Test void testWarmStart() {
+        VirtualMachine warm = new VirtualMachine();
+        warm.execute(PROLOGUE);
+        Snapshot snapshot = warm.snapshot();
+        assertEquals(101, snapshot.globals().length);
+        assertArrayEquals(new int[] { 7 }, snapshot.stack());
+
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            VirtualMachine vm = new VirtualMachine(engine);
+            vm.restore(snapshot);
+            assertArrayEquals(warm.getGlobals(), vm.getGlobals(), engine.toString());
+            assertEquals(7, vm.getGlobalSegment().sum(2));
+            vm.execute(HANDLER);
+            assertArrayEquals(new int[] { 328350 + 7 }, vm.getStack(), engine.toString());
+        }
+    }
+    @Test void testBytes() {
+        VirtualMachine warm = new VirtualMachine();
+        warm.execute(PROLOGUE);
+        Snapshot snapshot = Snapshot.read(ByteBuffer.wrap(warm.snapshot().toBytes()));
+
+        VirtualMachine vm = new VirtualMachine();
+        vm.restore(snapshot);
+        assertEquals(warm.ip, vm.ip);
+        assertArrayEquals(warm.getStack(), vm.getStack());
+        assertArrayEquals(warm.getGlobals(), vm.getGlobals());
+        assertEquals(7, vm.getGlobalSegment().sum(2));
+    }
+    @Test void testMemory() {
+        // Grows memory to 3 words and stores 5 in the last
+        VirtualMachine warm = new VirtualMachine();
+        warm.execute(new int[] { CONST, 3, MGROW, POP, CONST, 2, CONST, 5, ASTORE });
+        Snapshot snapshot = Snapshot.read(ByteBuffer.wrap(warm.snapshot().toBytes()));
+        assertArrayEquals(new int[] { 0, 0, 5 }, snapshot.memory());
+
+        // Restoring sets the size, growing or shrinking it
+        VirtualMachine vm = VirtualMachine.builder().memory(8, 8).build();
+        vm.getMemory().store(7, 9);
+        vm.restore(snapshot);
+        assertEquals(3, vm.getMemory().size());
+        assertEquals(5, vm.getMemory().load(2));
+        assertEquals(3, vm.getMemory().grow(5));
+        assertEquals(0, vm.getMemory().load(7));
+
+        vm = new VirtualMachine();
+        vm.restore(snapshot);
+        assertEquals(5, vm.getMemory().load(2));
+        vm.restore(new VirtualMachine().snapshot());
+        assertEquals(0, vm.getMemory().size());
+
+        VirtualMachine small = VirtualMachine.builder().memory(0, 2).build();
+        assertThrows(VirtualMachine.Exception.class, () -> small.restore(snapshot));
+    }
+    @Test void testMidRun() {
+        Program fib = Program.load(new int[] {
+            /* 0*/ CONST, 15,
+            /* 2*/ CALL, 5,
+            /* 4*/ HALT,
+            /* 5*/ STORE, 0,
+            /* 7*/ LOAD, 0,
+            /* 9*/ CONST, 2,
+            /*11*/ LT,
+            /*12*/ JZ, 17,
+            /*14*/ LOAD, 0,
+            /*16*/ RET,
+            /*17*/ LOAD, 0,
+            /*19*/ CONST, 1,
+            /*21*/ SUB,
+            /*22*/ CALL, 5,
+            /*24*/ LOAD, 0,
+            /*26*/ CONST, 2,
+            /*28*/ SUB,
+            /*29*/ CALL, 5,
+            /*31*/ ADD,
+            /*32*/ RET
+        });
+        // Snapshot on the way into the 100th call, a few frames down
+        Snapshot[] taken = new Snapshot[1];
+        VirtualMachine original = new VirtualMachine();
+        original.setListener(new Listener() {
+            int calls = 0;
+            @Override public void call(VirtualMachine vm, int ip, int target) {
+                if (++calls == 100)
+                    taken[0] = vm.snapshot();
+            }
+        });
+        original.execute(fib);
+        assertNotNull(taken[0]);
+
+        Snapshot snapshot = Snapshot.read(ByteBuffer.wrap(taken[0].toBytes()));
+        VirtualMachine vm = new VirtualMachine(VirtualMachine.Engine.TIERED);
+        vm.restore(snapshot);
+        vm.resume(fib);
+        assertArrayEquals(new int[] { 610 }, vm.getStack());
+    }
+    @Test void testWrongProgram() {
+        // A snapshot two frames deep, whose inner frame returns to 1: an
+        // operand in this program, not an instruction
+        ByteBuffer bytes = ByteBuffer.allocate(15 * 4);
+        bytes.asIntBuffer()
+            .put(Snapshot.MAGIC).put(Snapshot.VERSION).put(2)
+            .put(0).put(6).put(0).put(0).put(0).put(0)
+            .put(new int[] { -1, 0, 0, 1, 0, 0 });
+        Snapshot snapshot = Snapshot.read(bytes);
+        Program program = Program.load(new int[] { CONST, 999, RET });
+
+        VirtualMachine vm = new VirtualMachine();
+        vm.restore(snapshot);
+        assertThrows(VirtualMachine.Exception.class, () -> vm.resume(program));
+    }
+    @Test void testBadBytes() {
+        VirtualMachine vm = new VirtualMachine();
+        vm.execute(PROLOGUE);
+        byte[] bytes = vm.snapshot().toBytes();
+
+        byte[] magic = bytes.clone();
+        magic[0] = 0;
+        assertThrows(VirtualMachine.Exception.class, () -> Snapshot.read(ByteBuffer.wrap(magic)));
+        assertThrows(VirtualMachine.Exception.class, () -> Snapshot.read(ByteBuffer.wrap(bytes, 0, bytes.length - 4)));
+    }
+    @Test void testTooBig() {
+        VirtualMachine warm = new VirtualMachine();
+        warm.execute(PROLOGUE);
+        VirtualMachine small = VirtualMachine.builder().globals(32, 8, 64).build();
+        assertThrows(VirtualMachine.Exception.class, () -> small.restore(warm.snapshot()));
+    }
+}
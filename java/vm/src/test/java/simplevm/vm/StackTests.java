@@ -3,6 +3,7 @@ package simplevm.vm;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class StackTests {
@@ -27,4 +28,60 @@ public class StackTests {
         // If we got here, with no exception, we're good
         assertTrue(true);
     }
+    @Test void testGrowth() {
+        VirtualMachine vm = VirtualMachine.builder().stack(1, 1000).build();
+        for (int i = 0; i < 1000; i++)
+            vm.push(i);
+        assertEquals(1000, vm.getStack().length);
+        assertEquals(999, vm.pop());
+    }
+    @Test void testOverflow() {
+        VirtualMachine vm = VirtualMachine.builder().stack(4, 8).build();
+        int[] code = {
+            /* 0*/ Bytecode.CONST, 1,
+            /* 2*/ Bytecode.JMP, 0
+        };
+        assertThrows(VirtualMachine.Exception.class, () -> vm.execute(code));
+        assertEquals(8, vm.getStack().length);
+    }
+    @Test void testUnderflow() {
+        VirtualMachine vm = new VirtualMachine();
+        assertThrows(VirtualMachine.Exception.class, () -> vm.execute(new int[] { Bytecode.POP }));
+    }
+    @Test void testCallDepth() {
+        int[] code = {
+            /* 0*/ Bytecode.CALL, 0
+        };
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            VirtualMachine vm = VirtualMachine.builder().engine(engine).maxCallDepth(100).build();
+            assertThrows(VirtualMachine.Exception.class, () -> vm.execute(code), engine.toString());
+        }
+    }
+    @Test void testSizedFor() {
+        Program program = Program.load(new int[] {
+            Bytecode.CONST, 1,
+            Bytecode.CONST, 2,
+            Bytecode.CONST, 3,
+            Bytecode.ADD,
+            Bytecode.GSTORE, 2,
+            Bytecode.PRINT
+        });
+        VirtualMachine vm = VirtualMachine.builder().sizedFor(program).build();
+        assertEquals(3, vm.stack.length);
+        assertEquals(3, vm.getGlobals().length);
+    }
+    @Test void testSizedForBranchToNext() {
+        // Sizing the stack walks the code, branches to ip + 2 included
+        int[][] programs = {
+            { Bytecode.CONST, 0, Bytecode.JZ, 4, Bytecode.CONST, 7, Bytecode.HALT },
+            { Bytecode.CONST, 1, Bytecode.JNZ, 4, Bytecode.CONST, 7, Bytecode.HALT },
+        };
+        for (int[] code : programs) {
+            VirtualMachine vm = new VirtualMachine();
+            vm.execute(code);
+            assertEquals(1, vm.getStack().length);
+            assertEquals(7, vm.pop());
+            assertEquals(1, VirtualMachine.builder().sizedFor(Program.load(code)).build().stack.length);
+        }
+    }
 }
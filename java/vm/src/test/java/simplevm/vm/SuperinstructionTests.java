@@ -0,0 +1,102 @@
+package simplevm.vm;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import static simplevm.vm.Bytecode.*;
+
+public class SuperinstructionTests {
+    static final int[] COUNTDOWN = {
+        /* 0*/ JMP, 25,
+        // function countdown(count)
+        /* 2*/ STORE, 0,
+        /* 4*/ LOAD, 0,
+        /* 6*/ GSTORE, 0,
+        /* 8*/ LOAD, 0,
+        /*10*/ CONST, 0,
+        /*12*/ NEQ,
+        /*13*/ JZ, 24,      // locals[0] == 0: return
+        /*15*/ LOAD, 0,
+        /*17*/ CONST, 1,
+        /*19*/ SUB,
+        /*20*/ STORE, 0,
+        /*22*/ JMP, 4,
+        /*24*/ RET,
+        // end
+        /*25*/ CONST, 2,
+        /*27*/ CONST, 3,
+        /*29*/ MUL,         // pass 6 into call
+        /*30*/ CALL, 2,
+        /*32*/ HALT
+    };
+
+    @Test void testFuse() {
+        Program program = Program.load(COUNTDOWN);
+        assertEquals(0, program.fusedSites());
+
+        Program fused = program.fuse();
+        assertEquals(3, fused.fusedSites());
+        assertSame(fused, fused.fuse());
+    }
+    @Test void testSameResults() {
+        Program fused = Program.load(COUNTDOWN).fuse();
+        for (VirtualMachine.Engine engine : VirtualMachine.Engine.values()) {
+            VirtualMachine vm = new VirtualMachine(engine);
+            vm.execute(fused);
+
+            assertEquals(0, vm.getStack().length);
+            assertEquals(0, vm.getGlobals()[0]);
+        }
+    }
+    @Test void testConditions() {
+        for (int comparison : new int[] { EQ, NEQ, LT, GT, LTE, GTE }) {
+            for (int branch : new int[] { JZ, JNZ }) {
+                for (int value = 4; value <= 6; value++) {
+                    int[] code = {
+                        /* 0*/ CONST, value,
+                        /* 2*/ STORE, 0,
+                        /* 4*/ LOAD, 0,
+                        /* 6*/ CONST, 5,
+                        /* 8*/ comparison,
+                        /* 9*/ branch, 15,
+                        /*11*/ CONST, 0,
+                        /*13*/ JMP, 17,
+                        /*15*/ CONST, 1
+                    };
+                    VirtualMachine expected = new VirtualMachine();
+                    expected.execute(code);
+                    VirtualMachine actual = new VirtualMachine();
+                    actual.execute(Program.load(code).fuse());
+
+                    assertArrayEquals(expected.getStack(), actual.getStack(), comparison + "/" + branch + "/" + value);
+                }
+            }
+        }
+    }
+    @Test void testJumpIntoFusedSequence() {
+        // Jumping into the middle of a fused sequence runs what was there
+        Program program = Program.load(new int[] {
+            /* 0*/ CONST, 10,
+            /* 2*/ STORE, 0,
+            /* 4*/ CONST, 20,
+            /* 6*/ JMP, 10,     // locals[0] = 20 - 1
+            /* 8*/ LOAD, 0,
+            /*10*/ CONST, 1,
+            /*12*/ SUB,
+            /*13*/ STORE, 0,
+            /*15*/ LOAD, 0,
+            /*17*/ CONST, 18,
+            /*19*/ GT,
+            /*20*/ JNZ, 8,      // then back round the whole thing
+            /*22*/ LOAD, 0
+        }).fuse();
+        assertEquals(2, program.fusedSites());
+
+        VirtualMachine vm = new VirtualMachine();
+        vm.execute(program);
+        assertArrayEquals(new int[] { 18 }, vm.getStack());
+    }
+}
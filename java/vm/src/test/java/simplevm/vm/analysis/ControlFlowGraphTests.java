@@ -0,0 +1,136 @@
+package simplevm.vm.analysis;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import simplevm.vm.VirtualMachine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import static simplevm.vm.Bytecode.*;
+
+public class ControlFlowGraphTests {
+    // Calls the function at 19 five times
+    static final int[] LOOP = {
+        /* 0*/ CONST, 5,
+        /* 2*/ STORE, 0,
+        /* 4*/ CALL, 19,
+        /* 6*/ LOAD, 0,
+        /* 8*/ CONST, 1,
+        /*10*/ SUB,
+        /*11*/ STORE, 0,
+        /*13*/ LOAD, 0,
+        /*15*/ JNZ, 4,
+        /*17*/ HALT,
+        /*18*/ NOP,
+        // function at 19
+        /*19*/ CONST, 1,
+        /*21*/ PRINT,
+        /*22*/ RET
+    };
+
+    @Test void testBlocks() {
+        ControlFlowGraph graph = ControlFlowGraph.build(LOOP);
+        assertEquals(6, graph.blockCount());
+        int[][] bounds = { { 0, 4 }, { 4, 6 }, { 6, 17 }, { 17, 18 }, { 18, 19 }, { 19, 23 } };
+        for (int b = 0; b < bounds.length; b++) {
+            assertEquals(bounds[b][0], graph.block(b).start());
+            assertEquals(bounds[b][1], graph.block(b).end());
+        }
+        assertSame(graph.block(2), graph.blockAt(16));
+        assertEquals(JNZ, graph.block(2).terminator());
+        assertEquals(15, graph.block(2).last());
+        assertFalse(graph.hasDynamicJumps());
+    }
+    @Test void testEdges() {
+        ControlFlowGraph graph = ControlFlowGraph.build(LOOP);
+        assertEquals(List.of(graph.block(1)), graph.entry().successors());
+        // The CALL goes to 19, and comes back to 6
+        BasicBlock call = graph.block(1);
+        assertSame(graph.block(5), call.callee());
+        assertEquals(List.of(graph.block(2)), call.successors());
+        assertTrue(graph.block(5).isEntry());
+        // JNZ: back to the CALL, or on to the HALT
+        BasicBlock loop = graph.block(2);
+        assertEquals(List.of(call, graph.block(3)), loop.successors());
+        assertEquals(List.of(), graph.block(3).successors());
+        assertEquals(List.of(), graph.block(5).successors());
+        assertNull(graph.block(5).callee());
+        // The NOP at 18 is unreachable; it falls into the function
+        assertEquals(List.of(graph.block(4)), graph.block(5).predecessors());
+        assertEquals(List.of(graph.entry(), loop), call.predecessors());
+    }
+    @Test void testLoops() {
+        ControlFlowGraph graph = ControlFlowGraph.build(LOOP);
+        BasicBlock call = graph.block(1);
+        BasicBlock loop = graph.block(2);
+        assertTrue(call.isLoopHeader());
+        assertEquals(List.of(loop), call.latches());
+        assertTrue(loop.isBackEdge(call));
+        assertFalse(loop.isBackEdge(graph.block(3)));
+        assertFalse(graph.entry().isBackEdge(call));
+        for (int b = 0; b < graph.blockCount(); b++)
+            assertEquals(b == 1, graph.block(b).isLoopHeader());
+    }
+    @Test void testStackEffects() {
+        ControlFlowGraph graph = ControlFlowGraph.build(LOOP);
+        // LOAD, CONST, SUB, STORE, LOAD, JNZ
+        BasicBlock loop = graph.block(2);
+        assertEquals(0, loop.stackEffect());
+        assertEquals(0, loop.stackNeeded());
+        assertEquals(2, loop.stackPeak());
+
+        ControlFlowGraph adds = ControlFlowGraph.build(new int[] {
+            ADD,
+            ADD,
+            CONST, 1
+        });
+        assertEquals(-1, adds.entry().stackEffect());
+        assertEquals(3, adds.entry().stackNeeded());
+        assertEquals(0, adds.entry().stackPeak());
+    }
+    @Test void testRelativeAndDynamicJumps() {
+        ControlFlowGraph graph = ControlFlowGraph.build(new int[] {
+            /* 0*/ CONST, 6,
+            /* 2*/ RJMP, 2,
+            /* 4*/ JMPI,
+            /* 5*/ NOP,
+            /* 6*/ RJMP, -2
+        });
+        assertTrue(graph.hasDynamicJumps());
+        assertEquals(List.of(graph.blockAt(4)), graph.entry().successors());
+        assertEquals(List.of(), graph.blockAt(4).successors());
+        assertEquals(List.of(graph.blockAt(4)), graph.blockAt(6).successors());
+    }
+    @Test void testLarge() {
+        // A million instructions' worth of straight-line code and loops
+        int loops = 100_000;
+        int[] code = new int[loops * 10];
+        for (int i = 0; i < loops; i++) {
+            int at = i * 10;
+            code[at] = LOAD; code[at + 1] = 0;
+            code[at + 2] = CONST; code[at + 3] = 1;
+            code[at + 4] = SUB;
+            code[at + 5] = STORE; code[at + 6] = 0;
+            code[at + 7] = NOP;
+            code[at + 8] = JZ; code[at + 9] = at;
+        }
+        ControlFlowGraph graph = ControlFlowGraph.build(code);
+        assertEquals(loops, graph.blockCount());
+        int headers = 0;
+        for (BasicBlock block : graph.blocks()) {
+            if (block.isLoopHeader())
+                headers++;
+        }
+        assertEquals(loops, headers);
+    }
+    @Test void testUnverified() {
+        assertThrows(VirtualMachine.Exception.class, () -> ControlFlowGraph.build(new int[] { JMP, 1 }));
+    }
+}